@@ -79,9 +79,14 @@ public final class MahoExport {
             MAHO_LOGS_INSTANCE            = "amadeus.maho.logs.instance", // String
             MAHO_LOGS_FORCED_INTERRUPTION = "amadeus.maho.logs.forced.interruption", // boolean
             MAHO_LOGS_OUTPUT_FILE         = "amadeus.maho.logs.output.file", // boolean
+            MAHO_LOGS_BUFFER_CAPACITY     = "amadeus.maho.logs.buffer.capacity", // int
+            MAHO_LOGS_OVERFLOW_POLICY     = "amadeus.maho.logs.overflow.policy", // Enum name
+            MAHO_LOGS_CAPTURE_FRAME       = "amadeus.maho.logs.capture.frame", // boolean
             MAHO_DEBUG_MODE               = "amadeus.maho.debug", // boolean
             MAHO_DEBUG_HOTSWAP            = "amadeus.maho.debug.hotswap", // boolean
-            MAHO_DEBUG_DUMP_BYTECODE      = "amadeus.maho.debug.dump.bytecode"; // boolean
+            MAHO_DEBUG_DUMP_BYTECODE      = "amadeus.maho.debug.dump.bytecode", // boolean
+            MAHO_TRANSFORM_CACHE          = "amadeus.maho.transform.cache", // boolean
+            MAHO_PROFILE_HISTOGRAM        = "amadeus.maho.profile.histogram"; // boolean
     
     private static final Environment env = Environment.local();
     
@@ -7,6 +7,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.dynamic.CallerContext;
+import amadeus.maho.util.misc.Environment;
 import amadeus.maho.util.profile.Sampler;
 import amadeus.maho.util.tuple.Tuple2;
 
@@ -15,7 +16,10 @@ public interface MahoProfile {
     @Getter
     ConcurrentHashMap<String, Sampler<?>> samplers = { };
     
-    static <T> Sampler<T> sampler(final String name = CallerContext.caller().getSimpleName()) = (Sampler<T>) samplers().computeIfAbsent(name, key -> new Sampler<>());
+    // Histogram samplers stop retaining frames, but every mark costs a few dozen KB of buckets, so they are only worth it for long runs over few marks.
+    boolean histogram = Environment.local().lookup(MahoExport.MAHO_PROFILE_HISTOGRAM, false);
+    
+    static <T> Sampler<T> sampler(final String name = CallerContext.caller().getSimpleName()) = (Sampler<T>) samplers().computeIfAbsent(name, key -> histogram ? new Sampler.Histogram<>() : new Sampler<>());
     
     static void mark(final String name, final Sampler<?> sampler) = samplers()[name] = sampler;
     
@@ -24,6 +28,11 @@ public interface MahoProfile {
         list += "Maho Profile:";
         list += STR."\{subHead}Samplers:";
         samplers.forEach((name, sampler) -> {
+            if (sampler instanceof Sampler.Histogram<?> histogram) {
+                list += STR."\{subHead2}\{name} [ \{histogram.snapshot()} ]";
+                histogram.recorders().forEach((key, recorder) -> list += STR."\{subHead3}\{key} [ \{recorder.snapshot()} ]");
+                return;
+            }
             final long total = ~sampler.total(), count = ~sampler.count();
             if (count == 0L)
                 list += STR."\{subHead2}\{name}: <empty>";
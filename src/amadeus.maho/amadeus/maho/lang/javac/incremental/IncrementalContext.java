@@ -1,7 +1,7 @@
 package amadeus.maho.lang.javac.incremental;
 
-import java.io.ByteArrayInputStream;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -20,115 +20,60 @@ import com.sun.tools.javac.util.Context;
 import amadeus.maho.core.MahoExport;
 import amadeus.maho.lang.Privilege;
 import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.lang.javac.JavacContext;
 import amadeus.maho.lang.javac.multithreaded.SharedComponent;
 import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchContext;
 import amadeus.maho.util.concurrent.ConcurrentWeakIdentityHashMap;
-import amadeus.maho.util.container.Indexed;
+import amadeus.maho.util.runtime.ChecksumHelper;
 import amadeus.maho.util.runtime.DebugHelper;
-import amadeus.maho.util.serialization.Deserializable;
 import amadeus.maho.util.serialization.FilesRecord;
-import amadeus.maho.util.serialization.Serializable;
-import amadeus.maho.util.serialization.base.TrustedByteArrayOutputStream;
 
 public record IncrementalContext(
         String jdkVersion = Runtime.version().toString(),
         String mahoVersion = MahoExport.VERSION,
         ConcurrentHashMap<String, Long> timestamps = { },
+        ConcurrentHashMap<String, String> hashes = { },
         ConcurrentHashMap<String, String> moduleVersions = { },
         ConcurrentHashMap<DependencyItem.Class, Set<DependencyItem>> dependencies = { },
+        ConcurrentHashMap<DependencyItem.Class, String> fingerprints = { },
+        ConcurrentHashMap<DependencyItem.Class, String> pendingFingerprints = { },
+        ConcurrentHashMap<String, String> sourceHashes = { },
         ConcurrentWeakIdentityHashMap<Symbol, List<DependencyItem>> cache = { },
         ConcurrentWeakIdentityHashMap<Symbol.ModuleSymbol, Boolean> systemModules = { }) implements SharedComponent {
     
     @SneakyThrows
     public interface Serializer {
         
-        record TargetFiles(Path runtimeVersion, Path timestamps, Path moduleVersions, Path indexed, Path dependencies) implements FilesRecord {
+        record TargetFiles(Path store) implements FilesRecord {
             
             public static final TargetFiles relative = FilesRecord.of(TargetFiles.class);
             
         }
         
-        List<Class<? extends DependencyItem>> dependencyItemTypes = List.of(DependencyItem.Module.class, DependencyItem.Class.class, DependencyItem.Field.class, DependencyItem.Method.class);
-        
         static IncrementalContext deserialize(final Path dir) {
             final TargetFiles files = TargetFiles.relative.resolve(dir);
             try {
-                final List<String> versions = Files.readAllLines(files.runtimeVersion());
-                final IncrementalContext context = { versions[0], versions[1] };
-                Files.lines(files.timestamps()).map(line -> line.split(":")).forEach(parts -> context.timestamps().put(parts[0], Long.parseLong(parts[1])));
-                Files.lines(files.moduleVersions()).map(line -> line.split(":")).forEach(parts -> context.moduleVersions().put(parts[0], parts[1]));
-                final Indexed<String> indexed = Indexed.of();
-                Files.lines(files.indexed()).forEach(indexed::id);
-                final byte buffer[] = Files.readAllBytes(files.dependencies());
-                final Deserializable.Input.Limited input = { new ByteArrayInputStream(buffer), buffer.length };
-                while (input.offset() < input.limit()) {
-                    final DependencyItem.Class owner = { indexed[input.readVarInt()], indexed[input.readVarInt()] };
-                    final int count = input.readVarInt();
-                    final Set<DependencyItem> dependencies = context.dependencies(owner);
-                    for (int i = 0; i < count; i++)
-                        dependencies += switch (input.readVarInt()) {
-                            case 0  -> new DependencyItem.Module(indexed[input.readVarInt()]);
-                            case 1  -> new DependencyItem.Class(indexed[input.readVarInt()], indexed[input.readVarInt()]);
-                            case 2  -> new DependencyItem.Field(new DependencyItem.Class(indexed[input.readVarInt()], indexed[input.readVarInt()]), indexed[input.readVarInt()], indexed[input.readVarInt()]);
-                            case 3  -> new DependencyItem.Method(new DependencyItem.Class(indexed[input.readVarInt()], indexed[input.readVarInt()]), indexed[input.readVarInt()], indexed[input.readVarInt()]);
-                            default -> throw new UnsupportedOperationException();
-                        };
-                }
-                return context;
+                if (Files.isRegularFile(files.store()))
+                    return new IncrementalStore(files.store()).context();
             } catch (final Throwable throwable) { DebugHelper.breakpoint(throwable); }
             return { };
         }
         
+        // Appends what changed since the store was opened, the store is rewritten when it belongs to another build or has grown too many generations.
         static boolean serialize(final IncrementalContext context, final Path dir) {
             final TargetFiles files = TargetFiles.relative.resolve(dir);
             try {
-                Files.write(files.runtimeVersion(), List.of(STR."""
-                    \{context.jdkVersion()}
-                    \{context.mahoVersion()}
-                """));
-                Files.write(files.timestamps(), context.timestamps().entrySet().stream().map(entry -> STR."\{entry.getKey()}:\{entry.getValue()}").toList());
-                Files.write(files.moduleVersions(), context.moduleVersions().entrySet().stream().map(entry -> STR."\{entry.getKey()}:\{entry.getValue()}").toList());
-                final Indexed<String> indexed = Indexed.of();
-                final TrustedByteArrayOutputStream buffer = { 1024 };
-                final Serializable.Output output = { buffer };
-                context.dependencies().forEach((owner, dependencies) -> {
-                    output.writeVarInt(indexed[owner.module()]);
-                    output.writeVarInt(indexed[owner.name()]);
-                    output.writeVarInt(dependencies.size());
-                    dependencies.forEach(dependency -> {
-                        switch (dependency) {
-                            case DependencyItem.Module module -> {
-                                output.writeVarInt(0);
-                                output.writeVarInt(indexed[module.name()]);
-                            }
-                            case DependencyItem.Class clazz   -> {
-                                output.writeVarInt(1);
-                                output.writeVarInt(indexed[clazz.module()]);
-                                output.writeVarInt(indexed[clazz.name()]);
-                            }
-                            case DependencyItem.Field field   -> {
-                                output.writeVarInt(2);
-                                output.writeVarInt(indexed[field.owner().module()]);
-                                output.writeVarInt(indexed[field.owner().name()]);
-                                output.writeVarInt(indexed[field.name()]);
-                                output.writeVarInt(indexed[field.signature()]);
-                            }
-                            case DependencyItem.Method method -> {
-                                output.writeVarInt(3);
-                                output.writeVarInt(indexed[method.owner().module()]);
-                                output.writeVarInt(indexed[method.owner().name()]);
-                                output.writeVarInt(indexed[method.name()]);
-                                output.writeVarInt(indexed[method.signature()]);
-                            }
-                            default                           -> throw new IncompatibleClassChangeError();
-                        }
-                    });
-                });
-                Files.write(files.indexed(), indexed.values());
-                try (final SeekableByteChannel channel = Files.newByteChannel(files.dependencies())) {
-                    channel.write(buffer.toByteBuffer());
-                }
+                if (context.dependencies() instanceof IncrementalStore.Dependencies dependencies) {
+                    final @Nullable IncrementalStore store = dependencies.store();
+                    if (store != null && store.path().equals(files.store()) && context.compatible(store.jdkVersion(), store.mahoVersion()) && store.generations() < IncrementalStore.MAX_GENERATIONS)
+                        store.append(context, dependencies);
+                    else {
+                        IncrementalStore.write(context, files.store());
+                        dependencies.attach(new IncrementalStore(files.store()));
+                    }
+                } else
+                    IncrementalStore.write(context, files.store());
                 return true;
             } catch (final Throwable throwable) { DebugHelper.breakpoint(throwable); }
             return false;
@@ -155,9 +100,22 @@ public record IncrementalContext(
     
     public Set<DependencyItem> dependencies(final DependencyItem.Class item) = dependencies().computeIfAbsent(item, _ -> ConcurrentHashMap.newKeySet());
     
-    public void recordTimestamp(final Symbol.ClassSymbol symbol) = recordTimestamp(symbol.sourcefile);
-    
-    public void recordTimestamp(final JavaFileObject file) = timestamps().computeIfAbsent(file.getName(), _ -> file.getLastModified());
+    // Content hash of the source as it is being compiled now, each file is read and hashed at most once per compilation.
+    @SneakyThrows
+    public String contentHash(final JavaFileObject file) = sourceHashes().computeIfAbsent(file.getName(), _ -> ChecksumHelper.checksum(StandardCharsets.UTF_8.encode(CharBuffer.wrap(file.getCharContent(true))), "SHA-1"));
+    
+    // Called for every class that was compiled, the fingerprint computed while marking becomes the recorded one.
+    public void recordSource(final Symbol.ClassSymbol symbol) {
+        final JavaFileObject file = symbol.sourcefile;
+        timestamps()[file.getName()] = file.getLastModified();
+        hashes()[file.getName()] = contentHash(file);
+        final DependencyItem.Class item = asClassDependencyItem(symbol);
+        final @Nullable String fingerprint = pendingFingerprints().remove(item);
+        if (fingerprint != null)
+            fingerprints()[item] = fingerprint;
+        else
+            fingerprints().remove(item);
+    }
     
     public void recordDependency(final Symbol.ClassSymbol symbol, final Symbol dependency) {
         if (dependency instanceof Symbol.ModuleSymbol module && !moduleVersions().contains(module.name.toString()))
@@ -169,9 +127,21 @@ public record IncrementalContext(
     
     public void clear() {
         timestamps().clear();
+        hashes().clear();
         moduleVersions().clear();
         dependencies().clear();
+        fingerprints().clear();
+        pendingFingerprints().clear();
+        sourceHashes().clear();
+        cache().clear();
+    }
+    
+    // Drops everything that belongs to the symbols of the previous compilation when the context outlives it.
+    public void beginCompilation() {
+        pendingFingerprints().clear();
+        sourceHashes().clear();
         cache().clear();
+        systemModules().clear();
     }
     
     public IncrementalGraph graph(final DispatchContext context) = { context, this };
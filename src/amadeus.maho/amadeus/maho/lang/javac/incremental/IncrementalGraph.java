@@ -1,16 +1,24 @@
 package amadeus.maho.lang.javac.incremental;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+import javax.tools.JavaFileObject;
 
+import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Symtab;
+import com.sun.tools.javac.code.TypeTag;
 import com.sun.tools.javac.comp.AttrContext;
 import com.sun.tools.javac.comp.Env;
 import com.sun.tools.javac.comp.Todo;
+import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.ListBuffer;
 import com.sun.tools.javac.util.Names;
 
@@ -19,12 +27,14 @@ import amadeus.maho.lang.AccessLevel;
 import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.lang.javac.JavacContext;
 import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchCompiler;
 import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchContext;
 import amadeus.maho.lang.javac.multithreaded.parallel.ParallelCompiler;
 import amadeus.maho.util.logging.LogLevel;
+import amadeus.maho.util.runtime.ChecksumHelper;
 import amadeus.maho.util.runtime.DebugHelper;
 
 @Getter
@@ -32,6 +42,10 @@ import amadeus.maho.util.runtime.DebugHelper;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class IncrementalGraph {
     
+    private static final long
+            ABI_FLAGS      = Flags.AccessFlags | Flags.STATIC | Flags.FINAL | Flags.ABSTRACT | Flags.INTERFACE | Flags.ENUM | Flags.ANNOTATION | Flags.DEFAULT | Flags.VARARGS | Flags.SEALED | Flags.NON_SEALED | Flags.RECORD,
+            CONSTANT_FLAGS = Flags.PRIVATE | Flags.STATIC | Flags.FINAL;
+    
     DispatchContext context;
     
     IncrementalContext incrementalContext;
@@ -60,6 +74,12 @@ public class IncrementalGraph {
     
     ConcurrentHashMap<Symbol, String> signatureCache = { };
     
+    ConcurrentHashMap<Symbol.ClassSymbol, JCTree.JCClassDecl> trees = { };
+    
+    ConcurrentHashMap<Symbol.ClassSymbol, String> fingerprintCache = { };
+    
+    Set<Symbol.ClassSymbol> derivedConstants = ConcurrentHashMap.newKeySet();
+    
     public Set<Symbol.ClassSymbol> dependencies(final Symbol.ClassSymbol symbol) = dependencies.computeIfAbsent(symbol, _ -> ConcurrentHashMap.newKeySet());
     
     public @Nullable Symbol symbol(final JavacContext.SignatureGenerator signatureGenerator, final DependencyItem item) = switch (item) {
@@ -77,23 +97,75 @@ public class IncrementalGraph {
     public String signature(final JavacContext.SignatureGenerator signatureGenerator, final Symbol symbol) = signatureCache().computeIfAbsent(symbol, it -> signatureGenerator.signature(it.type));
     
     public Queue<Env<AttrContext>> mark() {
+        todo().forEach(env -> trees()[env.enclClass.sym] = env.enclClass);
+        compiler().dispatch("incremental-fingerprint", trees().keySet(), (compiler, symbol) -> fingerprint(JavacContext.SignatureGenerator.instance(compiler.context), symbol));
         if (!incrementalContext().compatible()) {
             log()[LogLevel.WARNING] = "Incompatible version detected, clearing IncrementalContext";
             incrementalContext().clear();
+            recompile() *= trees().keySet();
+            recordFingerprints();
             return todo();
         }
-        markBy("incremental-markByTimestamp", this::markByTimestamp);
+        markBy("incremental-markByContent", this::markByContent);
         markBy("incremental-markByDependency", this::markByDependency);
         processDependencies();
+        recordFingerprints();
         return todo().stream().filter(env -> recompile().contains(env.enclClass.sym)).collect(ListBuffer::new, ListBuffer::append, ListBuffer::appendList);
     }
     
+    public void recordFingerprints() = recompile().forEach(symbol -> incrementalContext().pendingFingerprints()[incrementalContext().asClassDependencyItem(symbol)] = fingerprintCache()[symbol]);
+    
+    // Not computed inside computeIfAbsent, the fingerprint of a class includes the fingerprints of its supertypes.
+    public String fingerprint(final JavacContext.SignatureGenerator signatureGenerator, final Symbol.ClassSymbol symbol) {
+        final @Nullable String cached = fingerprintCache()[symbol];
+        if (cached != null)
+            return cached;
+        final String fingerprint = abi(signatureGenerator, symbol);
+        return fingerprintCache().putIfAbsent(symbol, fingerprint) ?? fingerprint;
+    }
+    
+    /*
+     * Everything a dependent can observe without reading the body: flags, supertypes, annotations and the signatures of all non-private members.
+     * Constant initializers are taken from the source as written, since dependents inline their values.
+     */
+    @SneakyThrows
+    public String abi(final JavacContext.SignatureGenerator signatureGenerator, final Symbol.ClassSymbol symbol) {
+        final ArrayList<String> entries = { };
+        entries += STR."class \{symbol.flags() & ABI_FLAGS} \{symbol.getRawAttributes()}";
+        Stream.concat(Stream.of(symbol.getSuperclass()), symbol.getInterfaces().stream())
+                .filter(type -> type.hasTag(TypeTag.CLASS))
+                .forEach(type -> entries += type.tsym instanceof Symbol.ClassSymbol superSymbol && trees()[superSymbol] != null ?
+                        STR."super \{signatureGenerator.signature(type)} \{fingerprint(signatureGenerator, superSymbol)}" : STR."super \{signatureGenerator.signature(type)}");
+        for (final Symbol member : symbol.members().getSymbols(it -> (it.flags() & (Flags.PRIVATE | Flags.SYNTHETIC)) == 0))
+            entries += STR."\{member.kind} \{member.name} \{member.flags() & ABI_FLAGS} \{signatureGenerator.signature(member.type)} \{member.getRawAttributes()}";
+        final @Nullable JCTree.JCClassDecl tree = trees()[symbol];
+        if (tree != null)
+            for (final JCTree def : tree.defs)
+                if (def instanceof JCTree.JCVariableDecl variable && variable.init != null && variable.sym != null && (variable.sym.flags() & CONSTANT_FLAGS) == (Flags.STATIC | Flags.FINAL)) {
+                    entries += STR."constant \{variable.name} = \{variable.init}";
+                    if (!(variable.init instanceof JCTree.JCLiteral))
+                        derivedConstants() += symbol;
+                }
+        entries.sort(null);
+        return ChecksumHelper.checksum(StandardCharsets.UTF_8.encode(String.join("\n", entries)), "SHA-1");
+    }
+    
+    public boolean abiChanged(final Symbol.ClassSymbol symbol) = !Objects.equals(fingerprintCache()[symbol], incrementalContext().fingerprints()[incrementalContext().asClassDependencyItem(symbol)]);
+    
+    // Dependents only observe the recompilation of a class if its ABI changed, or if it has constants that may fold values of other classes.
+    public boolean propagates(final Symbol.ClassSymbol symbol) = abiChanged(symbol) || derivedConstants()[symbol];
+    
     public void markBy(final String name, final BiPredicate<ParallelCompiler, Symbol.ClassSymbol> marker)
         = compiler().dispatch(name, todo().stream().map(env -> env.enclClass.sym).filterNot(recompile()::contains).toList(), marker > (_, symbol) -> recompile() += symbol);
     
-    public boolean markByTimestamp(final ParallelCompiler compiler, final Symbol.ClassSymbol symbol) {
-        final @Nullable Long recordTime = incrementalContext().timestamps()[symbol.sourcefile.getName()];
-        return recordTime == null || symbol.sourcefile.getLastModified() > recordTime;
+    // The timestamp only decides whether the content has to be hashed, touched but unchanged files are not recompiled.
+    public boolean markByContent(final ParallelCompiler compiler, final Symbol.ClassSymbol symbol) {
+        final JavaFileObject file = symbol.sourcefile;
+        final @Nullable Long recordTime = incrementalContext().timestamps()[file.getName()];
+        final @Nullable String recordHash = incrementalContext().hashes()[file.getName()];
+        if (recordHash == null)
+            return true;
+        return (recordTime == null || file.getLastModified() != recordTime) && !recordHash.equals(incrementalContext().contentHash(file));
     }
     
     public boolean outdated(final Symbol.ModuleSymbol symbol) = outdated().computeIfAbsent(symbol, it -> {
@@ -112,7 +184,7 @@ public class IncrementalGraph {
             case null                           -> recompileByMissing(symbol, it);
             case Symbol.ModuleSymbol dependency -> outdated(dependency) && recompileByChanged(symbol, dependency);
             case Symbol.ClassSymbol dependency  -> {
-                if (recompile()[dependency])
+                if (recompile()[dependency] && propagates(dependency))
                     yield recompileByChanged(symbol, dependency);
                 else
                     dependencies(symbol) += dependency;
@@ -131,16 +203,18 @@ public class IncrementalGraph {
         return processed;
     }
     
+    // Returns whether the dependents of the symbol have to be recompiled.
     public boolean processDependencies(final Symbol.ClassSymbol symbol) {
         if (recompile()[symbol])
-            return true;
+            return propagates(symbol);
         final @Nullable Set<Symbol.ClassSymbol> dependencies = dependencies()[symbol];
         if (dependencies == null)
             return false;
         for (final Symbol.ClassSymbol dependency : dependencies)
             if (processDependenciesWithCache(dependency)) {
                 recompile() += symbol;
-                return recompileByChanged(symbol, dependency);
+                recompileByChanged(symbol, dependency);
+                return propagates(symbol);
             }
         return false;
     }
@@ -42,7 +42,7 @@ public class IncrementalScanner extends TreeScanner {
     
     @Override
     public void visitClassDef(final JCTree.JCClassDecl tree) {
-        incrementalContext.recordTimestamp(owner = tree.sym);
+        incrementalContext.recordSource(owner = tree.sym);
         incrementalContext.dependencies(owner).clear();
         super.visitClassDef(tree);
     }
@@ -0,0 +1,334 @@
+package amadeus.maho.lang.javac.incremental;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
+import amadeus.maho.util.container.Indexed;
+import amadeus.maho.util.runtime.MemoryHelper;
+import amadeus.maho.util.serialization.Deserializable;
+import amadeus.maho.util.serialization.Serializable;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/*
+ * Single file store of an IncrementalContext.
+ * Layout: MAGIC, VERSION, then generations of [int length][body], later generations only carry what changed and replace earlier entries.
+ * Body: jdk and maho version, string pool, files (name, timestamp, hash), modules (name, version), class table (module, name, fingerprint, edge offset, edge count), edges.
+ * Ids refer to the pool of the same generation. Opening reads everything but the edges, which are decoded from the mapped file when a class is first queried.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class IncrementalStore {
+    
+    // Entries recorded or modified in this compilation live in the map itself, everything else is looked up in the store.
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class Dependencies extends ConcurrentHashMap<DependencyItem.Class, Set<DependencyItem>> {
+        
+        @Getter
+        volatile @Nullable IncrementalStore store;
+        
+        public Dependencies(final IncrementalStore store) {
+            this.store = store;
+        }
+        
+        @Override
+        public @Nullable Set<DependencyItem> get(final Object key) {
+            final @Nullable Set<DependencyItem> local = super.get(key);
+            if (local != null)
+                return local;
+            final @Nullable IncrementalStore store = this.store;
+            return store != null && key instanceof DependencyItem.Class item ? store.dependencies(item) : null;
+        }
+        
+        @Override
+        public Set<DependencyItem> computeIfAbsent(final DependencyItem.Class key, final Function<? super DependencyItem.Class, ? extends Set<DependencyItem>> mapping) = super.computeIfAbsent(key, it -> {
+            final @Nullable IncrementalStore store = this.store;
+            final @Nullable Set<DependencyItem> stored = store == null ? null : store.dependencies(it);
+            return stored == null ? mapping.apply(it) : ConcurrentHashMap.<DependencyItem>newKeySet().let(set -> set *= stored);
+        });
+        
+        // The entries were written to the store, only entries modified from now on are kept in the map.
+        public void attach(final IncrementalStore store) {
+            super.clear();
+            this.store = store;
+        }
+        
+        @Override
+        public void clear() {
+            store = null;
+            super.clear();
+        }
+        
+        public Set<DependencyItem.Class> modified() = keySet();
+        
+        public Set<DependencyItem.Class> all() {
+            final LinkedHashSet<DependencyItem.Class> result = { };
+            final @Nullable IncrementalStore store = this.store;
+            if (store != null)
+                result *= store.classes.keySet();
+            result *= keySet();
+            return result;
+        }
+        
+    }
+    
+    private record Location(int generation, long offset, int count) { }
+    
+    public static final int MAGIC = 0x4D49_4353, VERSION = 1;
+    
+    // Appending stops paying off once most of the file is shadowed, the next save rewrites it.
+    public static final int MAX_GENERATIONS = 16;
+    
+    @Getter
+    Path path;
+    
+    @Getter
+    @Mutable
+    String jdkVersion = "", mahoVersion = "";
+    
+    @Getter
+    @Mutable
+    int generations;
+    
+    // End of the last complete generation, appends start here.
+    @Mutable
+    long end;
+    
+    ArrayList<MemorySegment> bodies = { };
+    
+    ArrayList<long[]> pools = { };
+    
+    ArrayList<String[]> decoded = { };
+    
+    // Snapshot of what the file holds, saving only writes entries that differ.
+    HashMap<String, Long> timestamps = { };
+    
+    HashMap<String, String> hashes = { }, moduleVersions = { };
+    
+    HashMap<DependencyItem.Class, String> fingerprints = { };
+    
+    HashMap<DependencyItem.Class, Location> classes = { };
+    
+    ConcurrentHashMap<DependencyItem.Class, Set<DependencyItem>> loaded = { };
+    
+    @SneakyThrows
+    public IncrementalStore(final Path path) {
+        this.path = path;
+        final Deserializable.Input.OfBuffer input = { MemoryHelper.map(path) };
+        if (input.readIntBigEndian() != MAGIC || input.readIntBigEndian() != VERSION)
+            throw new IOException(STR."Incompatible incremental store: \{path}");
+        // A torn append leaves a generation whose length exceeds the file, it is ignored and overwritten by the next save.
+        while (input.remaining() >= Integer.BYTES) {
+            final int length = input.readIntBigEndian();
+            if (length < 0 || length > input.remaining())
+                break;
+            final MemorySegment body = input.readSlice(length);
+            bodies += body;
+            readGeneration(new Deserializable.Input.OfBuffer(body), generations++);
+        }
+        end = input.offset();
+    }
+    
+    private void readGeneration(final Deserializable.Input.OfBuffer input, final int generation) throws IOException {
+        jdkVersion = input.readUTF();
+        mahoVersion = input.readUTF();
+        final long pool[] = new long[input.readVarInt()];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = input.offset();
+            input.skip(input.readVarInt());
+        }
+        pools += pool;
+        decoded += new String[pool.length];
+        for (int i = input.readVarInt(); i > 0; i--) {
+            final String file = string(generation, input.readVarInt());
+            timestamps[file] = input.readLongBigEndian();
+            hashes[file] = string(generation, input.readVarInt());
+        }
+        for (int i = input.readVarInt(); i > 0; i--)
+            moduleVersions[string(generation, input.readVarInt())] = string(generation, input.readVarInt());
+        final int count = input.readVarInt();
+        final DependencyItem.Class items[] = new DependencyItem.Class[count];
+        final long offsets[] = new long[count];
+        final int counts[] = new int[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = { string(generation, input.readVarInt()), string(generation, input.readVarInt()) };
+            final int fingerprint = input.readVarInt() - 1;
+            if (fingerprint == -1)
+                fingerprints.remove(items[i]);
+            else
+                fingerprints[items[i]] = string(generation, fingerprint);
+            offsets[i] = input.readVarLong();
+            counts[i] = input.readVarInt();
+        }
+        input.readVarLong();
+        final long start = input.offset();
+        for (int i = 0; i < count; i++)
+            classes[items[i]] = new Location(generation, start + offsets[i], counts[i]);
+    }
+    
+    @SneakyThrows
+    private String string(final int generation, final int id) {
+        final String cache[] = decoded[generation];
+        @Nullable String result = cache[id];
+        if (result == null) {
+            final Deserializable.Input.OfBuffer input = { bodies[generation].asSlice(pools[generation][id]) };
+            cache[id] = result = input.readUTF();
+        }
+        return result;
+    }
+    
+    public @Nullable Set<DependencyItem> dependencies(final DependencyItem.Class item) {
+        final @Nullable Location location = classes[item];
+        return location == null ? null : loaded.computeIfAbsent(item, _ -> readEdges(location));
+    }
+    
+    @SneakyThrows
+    private Set<DependencyItem> readEdges(final Location location) {
+        final int generation = location.generation();
+        final Deserializable.Input.OfBuffer input = { bodies[generation].asSlice(location.offset()) };
+        final DependencyItem items[] = new DependencyItem[location.count()];
+        for (int i = 0; i < items.length; i++)
+            items[i] = switch (input.readVarInt()) {
+                case 0  -> new DependencyItem.Module(string(generation, input.readVarInt()));
+                case 1  -> new DependencyItem.Class(string(generation, input.readVarInt()), string(generation, input.readVarInt()));
+                case 2  -> new DependencyItem.Field(new DependencyItem.Class(string(generation, input.readVarInt()), string(generation, input.readVarInt())), string(generation, input.readVarInt()), string(generation, input.readVarInt()));
+                case 3  -> new DependencyItem.Method(new DependencyItem.Class(string(generation, input.readVarInt()), string(generation, input.readVarInt())), string(generation, input.readVarInt()), string(generation, input.readVarInt()));
+                default -> throw new UnsupportedOperationException();
+            };
+        return Set.of(items);
+    }
+    
+    public IncrementalContext context() = {
+            jdkVersion, mahoVersion,
+            new ConcurrentHashMap<>(timestamps), new ConcurrentHashMap<>(hashes), new ConcurrentHashMap<>(moduleVersions),
+            new Dependencies(this), new ConcurrentHashMap<>(fingerprints)
+    };
+    
+    // Appends the entries of the context that differ from the file, the context has to be the one this store created.
+    @SneakyThrows
+    public void append(final IncrementalContext context, final Dependencies dependencies) {
+        final LinkedHashSet<String> files = { };
+        context.timestamps().forEach((file, timestamp) -> {
+            if (!timestamp.equals(timestamps[file]) || !Objects.equals(context.hashes()[file], hashes[file]))
+                files += file;
+        });
+        final LinkedHashSet<String> modules = { };
+        context.moduleVersions().forEach((module, version) -> {
+            if (!version.equals(moduleVersions[module]))
+                modules += module;
+        });
+        final LinkedHashSet<DependencyItem.Class> modified = { dependencies.modified() };
+        context.fingerprints().forEach((item, fingerprint) -> {
+            if (!fingerprint.equals(fingerprints[item]))
+                modified += item;
+        });
+        fingerprints.keySet().stream().filter(item -> !context.fingerprints().containsKey(item)).forEach(modified::add);
+        if (files.isEmpty() && modules.isEmpty() && modified.isEmpty())
+            return;
+        final byte generation[] = writeGeneration(context, files, modules, modified);
+        try (final FileChannel channel = FileChannel.open(path, WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + generation.length).putInt(generation.length).put(generation).flip();
+            channel.truncate(end).position(end);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        end += Integer.BYTES + generation.length;
+        generations++;
+        files.forEach(file -> {
+            timestamps[file] = context.timestamps()[file];
+            hashes[file] = context.hashes()[file];
+        });
+        modules.forEach(module -> moduleVersions[module] = context.moduleVersions()[module]);
+        modified.forEach(item -> {
+            final @Nullable String fingerprint = context.fingerprints()[item];
+            if (fingerprint == null)
+                fingerprints.remove(item);
+            else
+                fingerprints[item] = fingerprint;
+        });
+    }
+    
+    @SneakyThrows
+    public static void write(final IncrementalContext context, final Path path) {
+        final Set<DependencyItem.Class> classes = context.dependencies() instanceof Dependencies dependencies ? dependencies.all() : new LinkedHashSet<>(context.dependencies().keySet());
+        classes *= context.fingerprints().keySet();
+        final byte generation[] = writeGeneration(context, context.timestamps().keySet(), context.moduleVersions().keySet(), classes);
+        final Path temp = path << ".tmp";
+        Files.write(++temp, ByteBuffer.allocate(Integer.BYTES * 3 + generation.length).putInt(MAGIC).putInt(VERSION).putInt(generation.length).put(generation).array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static byte[] writeGeneration(final IncrementalContext context, final Collection<String> files, final Collection<String> modules, final Collection<DependencyItem.Class> classes) throws IOException {
+        final Indexed<String> pool = Indexed.of();
+        final Serializable.Output.OfBuffer tables = Serializable.Output.OfBuffer.ofHeap(), edges = Serializable.Output.OfBuffer.ofHeap();
+        tables.writeVarInt(files.size());
+        for (final String file : files) {
+            tables.writeVarInt(pool[file]);
+            tables.writeLongBigEndian(context.timestamps()[file] ?? 0L);
+            tables.writeVarInt(pool[context.hashes()[file] ?? ""]);
+        }
+        tables.writeVarInt(modules.size());
+        for (final String module : modules) {
+            tables.writeVarInt(pool[module]);
+            tables.writeVarInt(pool[context.moduleVersions()[module]]);
+        }
+        tables.writeVarInt(classes.size());
+        for (final DependencyItem.Class owner : classes) {
+            final @Nullable String fingerprint = context.fingerprints()[owner];
+            final Set<DependencyItem> dependencies = context.dependencies()[owner] ?? Set.of();
+            tables.writeVarInt(pool[owner.module()]);
+            tables.writeVarInt(pool[owner.name()]);
+            tables.writeVarInt(fingerprint == null ? 0 : pool[fingerprint] + 1);
+            tables.writeVarLong(edges.offset());
+            tables.writeVarInt(dependencies.size());
+            for (final DependencyItem dependency : dependencies)
+                switch (dependency) {
+                    case DependencyItem.Module module -> {
+                        edges.writeVarInt(0);
+                        edges.writeVarInt(pool[module.name()]);
+                    }
+                    case DependencyItem.Class clazz   -> {
+                        edges.writeVarInt(1);
+                        edges.writeVarInt(pool[clazz.module()]);
+                        edges.writeVarInt(pool[clazz.name()]);
+                    }
+                    case DependencyItem.Member member -> {
+                        edges.writeVarInt(member instanceof DependencyItem.Field ? 2 : 3);
+                        edges.writeVarInt(pool[member.owner().module()]);
+                        edges.writeVarInt(pool[member.owner().name()]);
+                        edges.writeVarInt(pool[member.name()]);
+                        edges.writeVarInt(pool[member.signature()]);
+                    }
+                }
+        }
+        final Serializable.Output.OfBuffer output = Serializable.Output.OfBuffer.ofHeap((int) (tables.offset() + edges.offset()) + (1 << 10));
+        output.writeUTF(context.jdkVersion());
+        output.writeUTF(context.mahoVersion());
+        output.writeVarInt(pool.values().size());
+        for (final String value : pool.values())
+            output.writeUTF(value);
+        output.write(tables.toByteArray());
+        output.writeVarLong(edges.offset());
+        output.write(edges.toByteArray());
+        return output.toByteArray();
+    }
+    
+}
@@ -1,8 +1,7 @@
 package amadeus.maho.lang.javac.multithreaded.concurrent;
 
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.sun.tools.javac.util.Convert;
 import com.sun.tools.javac.util.InvalidUtfException;
@@ -13,8 +12,17 @@ import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.NoArgsConstructor;
 import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
 
+/*
+ * Open addressing table of names keyed by their (modified) UTF-8 bytes, which live in shared append-only chunks.
+ * Lookups hash and compare the requested range in place and only read volatile slots, so finding an existing name allocates nothing.
+ * Insertions and resizing happen under the table monitor, a lookup racing with a resize may miss and then retries there.
+ */
 @NoArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
 public class ConcurrentNameTable extends Name.Table {
     
     @Getter
@@ -24,55 +32,216 @@ public class ConcurrentNameTable extends Name.Table {
         
         int index;
         
-        String name;
+        int hash;
         
-        byte utf[] = name.getBytes(StandardCharsets.UTF_8);
+        byte bytes[];
+        
+        int offset, length;
+        
+        @Mutable
+        @Nullable String string;
         
         @Override
         public int getIndex() = index;
         
         @Override
-        public int getByteLength() = utf.length;
+        public int getByteLength() = length;
         
         @Override
-        public byte getByteAt(final int i) = utf[i];
+        public byte getByteAt(final int i) = bytes[offset + i];
         
         @Override
-        public byte[] getByteArray() = utf;
+        public byte[] getByteArray() = bytes;
         
         @Override
-        public int getByteOffset() = 0;
+        public int getByteOffset() = offset;
         
+        // Racy but benign, every thread computes the same string.
         @Override
-        public String toString() = name;
+        @SneakyThrows
+        public String toString() {
+            @Nullable String result = string;
+            if (result == null)
+                string = result = Convert.utf2string(bytes, offset, length, Convert.Validation.NONE);
+            return result;
+        }
         
         @Override
-        public byte[] toUtf() = utf;
+        public byte[] toUtf() = Arrays.copyOfRange(bytes, offset, offset + length);
+        
+        private boolean contentEquals(final byte cs[], final int start, final int len) = length == len && Arrays.equals(bytes, offset, offset + length, cs, start, start + len);
+        
+        // Encodes the chars as they are being compared, see Convert.chars2utf.
+        private boolean contentEquals(final char cs[], final int start, final int len) {
+            int at = offset;
+            final int limit = offset + length;
+            for (int i = start, end = start + len; i < end; i++) {
+                final char c = cs[i];
+                if (1 <= c && c <= 0x7F) {
+                    if (at >= limit || bytes[at++] != (byte) c)
+                        return false;
+                } else if (c <= 0x7FF) {
+                    if (at + 2 > limit || bytes[at++] != (byte) (0xC0 | c >> 6) || bytes[at++] != (byte) (0x80 | c & 0x3F))
+                        return false;
+                } else if (at + 3 > limit || bytes[at++] != (byte) (0xE0 | c >> 12) || bytes[at++] != (byte) (0x80 | c >> 6 & 0x3F) || bytes[at++] != (byte) (0x80 | c & 0x3F))
+                    return false;
+            }
+            return at == limit;
+        }
         
     }
     
-    AtomicInteger index = { };
+    public static final int CHUNK_SIZE = 1 << 16, INITIAL_CAPACITY = 1 << 15;
+    
+    volatile AtomicReferenceArray<NameImpl> table = { INITIAL_CAPACITY };
+    
+    int size;
+    
+    byte chunk[] = new byte[CHUNK_SIZE];
+    
+    int used, allocated;
+    
+    private static int hash(final byte cs[], final int start, final int len) {
+        int hash = 0;
+        for (int i = start, end = start + len; i < end; i++)
+            hash = hash * 31 + cs[i];
+        return hash;
+    }
+    
+    // Same value as hashing the modified UTF-8 form of the chars.
+    private static int hash(final char cs[], final int start, final int len) {
+        int hash = 0;
+        for (int i = start, end = start + len; i < end; i++) {
+            final char c = cs[i];
+            if (1 <= c && c <= 0x7F)
+                hash = hash * 31 + (byte) c;
+            else if (c <= 0x7FF)
+                hash = (hash * 31 + (byte) (0xC0 | c >> 6)) * 31 + (byte) (0x80 | c & 0x3F);
+            else
+                hash = ((hash * 31 + (byte) (0xE0 | c >> 12)) * 31 + (byte) (0x80 | c >> 6 & 0x3F)) * 31 + (byte) (0x80 | c & 0x3F);
+        }
+        return hash;
+    }
+    
+    private static int utfLength(final char cs[], final int start, final int len) {
+        int length = 0;
+        for (int i = start, end = start + len; i < end; i++) {
+            final char c = cs[i];
+            length += 1 <= c && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
     
-    ConcurrentHashMap<String, NameImpl> cache = { };
+    private static int mix(final int hash) = hash ^ hash >>> 16;
     
     @Override
-    public Name fromString(final String string) = cache.computeIfAbsent(string, it -> new NameImpl(this, index.getAndIncrement(), it));
+    public Name fromString(final String string) {
+        final char cs[] = string.toCharArray();
+        return fromChars(cs, 0, cs.length);
+    }
     
     @Override
-    public Name fromChars(final char[] cs, final int start, final int len) {
-        final String string = { cs, start, len };
-        return fromString(string);
+    public Name fromChars(final char cs[], final int start, final int len) {
+        final int hash = hash(cs, start, len);
+        final @Nullable NameImpl found = lookup(hash, cs, start, len);
+        if (found != null)
+            return found;
+        synchronized (this) {
+            final @Nullable NameImpl name = lookup(hash, cs, start, len);
+            if (name != null)
+                return name;
+            final int length = utfLength(cs, start, len);
+            final byte bytes[] = allocate(length);
+            Convert.chars2utf(cs, start, bytes, allocated, len);
+            return insert(hash, bytes, allocated, length);
+        }
     }
     
     @Override
-    public Name fromUtf(final byte[] cs, final int start, final int len, final Convert.Validation validation) throws InvalidUtfException {
+    public Name fromUtf(final byte cs[], final int start, final int len, final Convert.Validation validation) throws InvalidUtfException {
         if (validation != Convert.Validation.NONE)
             Convert.utfValidate(cs, start, len, validation);
-        final String string = { cs, start, len, StandardCharsets.UTF_8 };
-        return fromString(string);
+        final int hash = hash(cs, start, len);
+        final @Nullable NameImpl found = lookup(hash, cs, start, len);
+        if (found != null)
+            return found;
+        synchronized (this) {
+            final @Nullable NameImpl name = lookup(hash, cs, start, len);
+            if (name != null)
+                return name;
+            final byte bytes[] = allocate(len);
+            System.arraycopy(cs, start, bytes, allocated, len);
+            return insert(hash, bytes, allocated, len);
+        }
+    }
+    
+    private @Nullable NameImpl lookup(final int hash, final char cs[], final int start, final int len) {
+        final AtomicReferenceArray<NameImpl> table = this.table;
+        final int mask = table.length() - 1;
+        for (int i = mix(hash) & mask; ; i = i + 1 & mask) {
+            final @Nullable NameImpl name = table.get(i);
+            if (name == null || name.hash == hash && name.contentEquals(cs, start, len))
+                return name;
+        }
+    }
+    
+    private @Nullable NameImpl lookup(final int hash, final byte cs[], final int start, final int len) {
+        final AtomicReferenceArray<NameImpl> table = this.table;
+        final int mask = table.length() - 1;
+        for (int i = mix(hash) & mask; ; i = i + 1 & mask) {
+            final @Nullable NameImpl name = table.get(i);
+            if (name == null || name.hash == hash && name.contentEquals(cs, start, len))
+                return name;
+        }
+    }
+    
+    // Reserves the bytes of a new name, they start at allocated in the returned array. Large names get an array of their own instead of wasting a chunk.
+    private byte[] allocate(final int length) {
+        if (length > CHUNK_SIZE >> 2) {
+            allocated = 0;
+            return new byte[length];
+        }
+        if (used + length > chunk.length) {
+            chunk = new byte[CHUNK_SIZE];
+            used = 0;
+        }
+        allocated = used;
+        used += length;
+        return chunk;
+    }
+    
+    private NameImpl insert(final int hash, final byte bytes[], final int offset, final int length) {
+        final NameImpl name = { this, size++, hash, bytes, offset, length };
+        if (size > table.length() >> 1)
+            resize();
+        place(table, name);
+        return name;
+    }
+    
+    private static void place(final AtomicReferenceArray<NameImpl> table, final NameImpl name) {
+        final int mask = table.length() - 1;
+        int i = mix(name.hash) & mask;
+        while (table.get(i) != null)
+            i = i + 1 & mask;
+        table.set(i, name);
+    }
+    
+    private void resize() {
+        final AtomicReferenceArray<NameImpl> table = this.table, resized = { table.length() << 1 };
+        for (int i = 0; i < table.length(); i++) {
+            final @Nullable NameImpl name = table.get(i);
+            if (name != null)
+                place(resized, name);
+        }
+        this.table = resized;
     }
     
     @Override
-    public void dispose() = cache.clear();
+    public synchronized void dispose() {
+        table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        size = 0;
+        chunk = new byte[CHUNK_SIZE];
+        used = 0;
+    }
     
 }
@@ -1,10 +1,13 @@
 package amadeus.maho.lang.javac.multithreaded.concurrent;
 
 import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Symtab;
@@ -20,6 +23,7 @@ import amadeus.maho.lang.EqualsAndHashCode;
 import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.NoArgsConstructor;
 import amadeus.maho.lang.Privilege;
+import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.ToString;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.lang.javac.JavacContext;
@@ -271,7 +275,51 @@ public class ConcurrentSymtab extends Symtab {
     @Override
     public Collection<Symbol.ModuleSymbol> getAllModules() = modules().values();
     
-    public Symbol.ClassSymbol tryLoadClass(final Symbol.ModuleSymbol moduleSymbol, final Name flatname) throws Symbol.CompletionFailure {
+    // Drops the modules and classes a later build has to enter again, packages that held a dropped class are listed again on their next completion.
+    public void retain(final Predicate<Symbol.ModuleSymbol> retainedModule, final Predicate<Symbol.ClassSymbol> retainedClass) {
+        final Predicate<Symbol.ModuleSymbol> retained = moduleSymbol -> moduleSymbol == unnamedModule || moduleSymbol == noModule || retainedModule.test(moduleSymbol);
+        modules().values().removeIf(retained.negate());
+        classes().values().forEach(map -> map.entrySet().removeIf(entry -> !retained.test(entry.getKey()) || !retainedClass.test(entry.getValue())));
+        classes().values().removeIf(Map::isEmpty);
+        packages().values().forEach(map -> map.keySet().removeIf(retained.negate()));
+        packages().values().removeIf(Map::isEmpty);
+        Stream.concat(packages().values().stream().flatMap(map -> map.values().stream()), Stream.concat(modules().values().stream(), Stream.of(unnamedModule, noModule)).map(moduleSymbol -> moduleSymbol.unnamedPackage))
+                .distinct()
+                .filter(packageSymbol -> packageSymbol != null && packageSymbol != rootPackage)
+                .forEach(packageSymbol -> {
+                    if (packageSymbol.package_info != null && !retainedClass.test(packageSymbol.package_info))
+                        packageSymbol.package_info = null;
+                    if (packageSymbol.members_field != null && packageSymbol.members_field.anyMatch(symbol -> symbol instanceof Symbol.ClassSymbol classSymbol && !retainedClass.test(classSymbol))) {
+                        packageSymbol.members_field = null;
+                        packageSymbol.completer = (Privilege) initialCompleter;
+                    }
+                });
+        classFields().clear();
+        tryLoadingMap.clear();
+    }
+    
+    private static final Field initialCompleterField = completerField("initialCompleter"), moduleCompleterField = completerField("moduleCompleter");
+    
+    @SneakyThrows
+    private static Field completerField(final String name) {
+        final Field field = Symtab.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+    
+    // Symbols retained from an earlier build complete through the class finder and modules of the build adopting them.
+    @SneakyThrows
+    public void rebind(final Symbol.Completer initialCompleter, final Symbol.Completer moduleCompleter) {
+        final Symbol.Completer previous = (Privilege) this.initialCompleter;
+        initialCompleterField.set(this, initialCompleter);
+        moduleCompleterField.set(this, moduleCompleter);
+        Stream.<Map<Symbol.ModuleSymbol, ? extends Symbol.TypeSymbol>>concat(classes().values().stream(), packages().values().stream())
+                .<Symbol.TypeSymbol>flatMap(map -> map.values().stream())
+                .filter(symbol -> symbol.completer == previous)
+                .forEach(symbol -> symbol.completer = initialCompleter);
+    }
+
+final Symbol.ModuleSymbol moduleSymbol, final Name flatname) throws Symbol.CompletionFailure {
         final Symbol.PackageSymbol packageSymbol = lookupPackage(moduleSymbol, Convert.packagePart(flatname));
         packageSymbol.complete();
         final @Nullable Symbol.ClassSymbol definedClassSymbol = getClass(packageSymbol.modle, flatname);
@@ -0,0 +1,56 @@
+package amadeus.maho.lang.javac.multithreaded.dispatch;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaFileObject;
+
+import com.sun.tools.javac.code.ClassFinder;
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symtab;
+import com.sun.tools.javac.comp.Modules;
+import com.sun.tools.javac.file.PathFileObject;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Names;
+
+import amadeus.maho.lang.Privilege;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.javac.multithreaded.SharedComponent;
+import amadeus.maho.lang.javac.multithreaded.concurrent.ConcurrentSymtab;
+
+/*
+ * Names and symbol table of a finished build, cut down to the classes read from archives, the dependency jars and the platform image.
+ * A later build with the same options against jars of the same checksums adopts them, completed dependency classes are not read again.
+ */
+public record DependencySymbols(List<String> options, Map<Path, String> checksums, Names names, ConcurrentSymtab symtab) implements SharedComponent {
+    
+    public static final Context.Key<DependencySymbols> dependencySymbolsKey = { };
+    
+    public static boolean archived(final Symbol.ClassSymbol symbol)
+        = symbol.kind == Kinds.Kind.TYP && symbol.classfile instanceof PathFileObject file && file.getKind() == JavaFileObject.Kind.CLASS && file.getPath().getFileSystem() != FileSystems.getDefault();
+    
+    // Taken once the build succeeded and before its compiler is closed, the names then outlive the compiler.
+    public static @Nullable DependencySymbols capture(final DispatchContext context, final List<String> options, final Map<Path, String> checksums) {
+        if (!(Symtab.instance(context) instanceof ConcurrentSymtab symtab))
+            return null;
+        symtab.retain(moduleSymbol -> moduleSymbol.sourceLocation == null, DependencySymbols::archived);
+        final DependencySymbols symbols = { List.copyOf(options), Map.copyOf(checksums), Names.instance(context), symtab };
+        context.replace(dependencySymbolsKey, symbols);
+        return symbols;
+    }
+    
+    public boolean matches(final List<String> options, final Map<Path, String> checksums) = options().equals(options) && checksums().equals(checksums);
+    
+    // Has to run on a fresh context before anything reads its names, the shared keys hand the adopted components to every parallel context.
+    public void install(final DispatchContext context) {
+        context.replace(Names.namesKey, names());
+        context.replace((Privilege) Symtab.symtabKey, symtab());
+        context.sharedKeys()[dependencySymbolsKey] = true;
+        context.put(dependencySymbolsKey, this);
+    }
+    
+    public void rebind(final ClassFinder finder, final Modules modules) = symtab().rebind(finder.getCompleter(), modules.getCompleter());
+    
+}
@@ -17,7 +17,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -69,6 +68,7 @@ import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Pair;
 import com.sun.tools.javac.util.Position;
 
+import amadeus.maho.core.MahoExport;
 import amadeus.maho.lang.AccessLevel;
 import amadeus.maho.lang.EqualsAndHashCode;
 import amadeus.maho.lang.FieldDefaults;
@@ -136,34 +136,62 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
     
     final @Nullable IncrementalContext incrementalContext;
     
-    final LinkedBlockingQueue<Consumer<ParallelCompiler>> queue = { };
+    final DispatchScheduler scheduler;
+    
+    // Per worker busy and idle time, executed and stolen tasks of the last run of each phase.
+    final ConcurrentHashMap<String, java.util.List<DispatchScheduler.Utilization>> utilization = { };
     
     final HashSet<Symbol.ClassSymbol> symbols = { };
     
+    protected <T> Consumer<ParallelCompiler> evaluation(final Function<ParallelCompiler, T> task, final CompletableFuture<T> future) = compiler -> {
+        try {
+            final T result = task[compiler];
+            step();
+            future.complete(result);
+        } catch (final Throwable throwable) { future.completeExceptionally(throwable); }
+    };
+    
     protected <T> CompletableFuture<T> evaluate(final Function<ParallelCompiler, T> task) {
         final CompletableFuture<T> future = { };
-        queue += context -> {
-            try {
-                final T result = task[context];
-                step();
-                future.complete(result);
-            } catch (final Throwable throwable) { future.completeExceptionally(throwable); }
-        };
+        scheduler.submit(evaluation(task, future));
         return future;
     }
     
-    protected CompletableFuture<Void> dispatch(final Consumer<ParallelCompiler> task) {
-        final CompletableFuture<Void> future = { };
-        queue += context -> {
-            try {
-                task[context];
-                step();
-                future.complete(null);
-            } catch (final Throwable throwable) { future.completeExceptionally(throwable); }
-        };
-        return future;
+    protected CompletableFuture<Void> dispatch(final Consumer<ParallelCompiler> task) = evaluate(compiler -> {
+        task[compiler];
+        return null;
+    });
+    
+    // One task per source, submitted at once in batches of similar estimated cost, the futures are in the order of the sources.
+    protected <S, V> java.util.List<CompletableFuture<V>> evaluateAll(final Collection<S> sources, final BiFunction<ParallelCompiler, S, V> processor) {
+        final ArrayList<CompletableFuture<V>> futures = { sources.size() };
+        final ArrayList<Consumer<ParallelCompiler>> tasks = { sources.size() };
+        final long costs[] = new long[sources.size()];
+        for (final S source : sources) {
+            final CompletableFuture<V> future = { };
+            costs[futures.size()] = cost(source);
+            futures += future;
+            tasks += evaluation(compiler -> processor.apply(compiler, source), future);
+        }
+        scheduler.submitAll(scheduler.batch(tasks, costs));
+        return futures;
     }
     
+    // Estimated work of a dispatched item, the source extent of its class trees; anything else counts as one.
+    public static long cost(final @Nullable Object source) = switch (source) {
+        case Env<?> env                            -> cost(env.tree);
+        case Pair<?, ?> pair                       -> cost(pair.snd);
+        case JCTree.JCCompilationUnit unit         -> Math.max(1L, unit.defs.stream().mapToLong(DispatchCompiler::cost).sum());
+        case JCTree.JCClassDecl classDecl          -> Math.max(1L, endPos(classDecl) - classDecl.pos);
+        case null, default                         -> 1L;
+    };
+    
+    private static int endPos(final JCTree.JCClassDecl classDecl) = classDecl.defs.stream().mapToInt(def -> switch (def) {
+        case JCTree.JCMethodDecl methodDecl when methodDecl.body != null -> methodDecl.body.endpos;
+        case JCTree.JCClassDecl nested                                   -> endPos(nested);
+        default                                                          -> def.pos;
+    }).max().orElse(classDecl.pos);
+    
     @Getter
     private volatile @Nullable Barrier barrier;
     
@@ -181,7 +209,9 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
         this.context = context;
         context.put(dispatchCompilerKey, this);
         inputFiles = ConcurrentHashMap.newKeySet();
+        scheduler = new DispatchScheduler(context.parallelism());
         incrementalContext = context.get(IncrementalContext.incrementalContextKey);
+        context.get(DependencySymbols.dependencySymbolsKey)?.rebind(finder, modules);
     }
     
     public static DispatchCompiler instance(final DispatchContext context = switch (JavacContext.instance().context) {
@@ -221,14 +251,26 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
     
     protected void step() = progressBars.getLast()?.update(CompileTaskProgress::step);
     
+    protected void recordUtilization(final String name, final java.util.List<DispatchScheduler.Utilization> before, final long lockedLookups) {
+        final java.util.List<DispatchScheduler.Utilization> utilization = DispatchScheduler.difference(scheduler.utilization(), before);
+        this.utilization[name] = utilization;
+        if (MahoExport.debug()) {
+            utilization.forEach(it -> System.out.println(STR."  [\{name}] \{it}"));
+            System.out.println(STR."  [\{name}] \{context.lockedLookups().sum() - lockedLookups} locked context lookup(s)");
+        }
+    }
+    
     @SneakyThrows
     protected synchronized <T> T dispatchTask(final String name, final int total, final Supplier<T> task) {
         final CompileTaskProgress progress = { name, total };
+        final java.util.List<DispatchScheduler.Utilization> before = scheduler.utilization();
+        final long lockedLookups = context.lockedLookups().sum();
         try (final ProgressBar<CompileTaskProgress> progressBar = { CompileTaskProgress.renderer, progress }) {
             progressBars << progressBar;
             return DebugHelper.logTimeConsuming(name, task);
         } finally {
             progressBars--;
+            recordUtilization(name, before, lockedLookups);
             VarHandle.fullFence();
         }
     }
@@ -236,18 +278,24 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
     @SneakyThrows
     protected synchronized void dispatchTask(final String name, final int total, final Runnable task) {
         final CompileTaskProgress progress = { name, total };
+        final java.util.List<DispatchScheduler.Utilization> before = scheduler.utilization();
+        final long lockedLookups = context.lockedLookups().sum();
         try (final ProgressBar<CompileTaskProgress> progressBar = { CompileTaskProgress.renderer, progress }) {
             progressBars << progressBar;
             DebugHelper.logTimeConsuming(name, task);
         } finally {
             progressBars--;
+            recordUtilization(name, before, lockedLookups);
             VarHandle.fullFence();
         }
     }
     
     @SneakyThrows
     public <S> Stream<CompletableFuture<Void>> dispatchAsync(final Collection<S> queue, final BiConsumer<ParallelCompiler, S> processor)
-        = queue.stream().map(source -> dispatch(compiler -> processor.accept(compiler, source)));
+        = evaluateAll(queue, (compiler, source) -> {
+            processor.accept(compiler, source);
+            return (Void) null;
+        }).stream();
     
     @SneakyThrows
     public <S> void dispatch(final String name, final Collection<S> queue, final BiConsumer<ParallelCompiler, S> processor)
@@ -255,10 +303,7 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
     
     @SneakyThrows
     public <S, V, R> R dispatch(final String name, final Collection<S> queue, final BiFunction<ParallelCompiler, S, V> processor, final Collector<? super V, ?, R> collector)
-        = dispatchTask(name, queue.size(), () -> queue.stream()
-                .map(source -> evaluate(compiler -> processor.apply(compiler, source)))
-                .toList()
-                .stream()
+        = dispatchTask(name, queue.size(), () -> evaluateAll(queue, processor).stream()
                 .map(AsyncHelper::await)
                 .collect(collector));
     
@@ -269,7 +314,7 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
     public <S, V> Queue<V> dispatchToQueue(final String name, final Collection<S> envs, final Consumer3<ParallelCompiler, S, Queue<V>> processor)
         = dispatchTask(name, envs.size(), () -> {
             final ConcurrentLinkedQueue<V> queue = { };
-            await(envs.stream().map(source -> dispatch(compiler -> processor.accept(compiler, source, queue))));
+            await(dispatchAsync(envs, (compiler, source) -> processor.accept(compiler, source, queue)));
             return queue;
         });
     
@@ -344,6 +389,9 @@ public class DispatchCompiler extends JavaCompiler implements AutoCloseable {
             barrier(null);
             shutdown = true;
             context.parallelContexts().forEach(ParallelContext::interrupt);
+            // Names handed on with the symbol table stay in use, disposing them would break the identity of every retained name.
+            if (context.get(DependencySymbols.dependencySymbolsKey) != null)
+                names = null;
             super.close();
         }
     }
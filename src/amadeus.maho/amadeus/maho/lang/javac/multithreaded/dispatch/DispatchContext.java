@@ -3,6 +3,7 @@ package amadeus.maho.lang.javac.multithreaded.dispatch;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.IntStream;
 import javax.tools.JavaFileManager;
 
@@ -62,6 +63,11 @@ public class DispatchContext extends Context implements MultiThreadedContext {
     
     ConcurrentHashMap<Key<?>, Class<?>> key2Class = { };
     
+    // Components that finished construction, read without taking the monitor.
+    ConcurrentHashMap<Key<?>, Object> resolved = { };
+    
+    LongAdder lockedLookups = { };
+    
     @Override
     public <T> Key<T> key(final Class<T> clazz) = (Key<T>) class2Key.computeIfAbsent(clazz, c -> {
         final Key<?> identity = { };
@@ -69,14 +75,38 @@ public class DispatchContext extends Context implements MultiThreadedContext {
         return identity;
     });
     
+    // Components register themselves in their constructors, so they are only published once the factory has returned.
     @Override
-    public synchronized <T> void put(final Key<T> key, final T data) = super.put(key, data);
+    public synchronized <T> void put(final Key<T> key, final T data) {
+        resolved.remove(key);
+        super.put(key, data);
+    }
     
     @Override
-    public synchronized <T> void put(final Key<T> key, final Factory<T> fac) = super.put(key, fac);
+    public synchronized <T> void put(final Key<T> key, final Factory<T> fac) {
+        resolved.remove(key);
+        super.put(key, fac);
+    }
+    
+    // Swaps a component registered by the initializers, only valid before any other component has read it.
+    public synchronized <T> void replace(final Key<T> key, final T data) {
+        resolved.remove(key);
+        ht.put(key, data);
+    }
     
     @Override
-    public synchronized <T> T get(final Key<T> key) = super.get(key);
+    public <T> T get(final Key<T> key) {
+        final @Nullable Object component = resolved[key];
+        return component != null ? (T) component : resolve(key);
+    }
+    
+    protected synchronized <T> @Nullable T resolve(final Key<T> key) {
+        lockedLookups.increment();
+        final @Nullable T component = super.get(key);
+        if (component != null)
+            resolved[key] = component;
+        return component;
+    }
     
     { initSharedKeys(); }
     
@@ -0,0 +1,200 @@
+package amadeus.maho.lang.javac.multithreaded.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.javac.multithreaded.parallel.ParallelCompiler;
+import amadeus.maho.lang.javac.multithreaded.parallel.ParallelContext;
+
+/*
+ * Every worker owns a deque, it takes the oldest task of its own deque and steals the newest task of another one when it runs dry.
+ * Tasks submitted by a worker go to the front of its own deque, tasks submitted by the dispatching thread are spread over all deques.
+ * Workers with nothing to do wait on a shared condition, which is only signalled while somebody is waiting.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DispatchScheduler {
+    
+    public record Utilization(int worker, long busyNanos, long idleNanos, long executed, long stolen) {
+        
+        public Utilization minus(final Utilization other) = { worker, busyNanos - other.busyNanos, idleNanos - other.idleNanos, executed - other.executed, stolen - other.stolen };
+        
+        public double usage() = busyNanos + idleNanos == 0L ? 0D : (double) busyNanos / (busyNanos + idleNanos);
+        
+        @Override
+        public String toString() = "#%d busy %d ms, idle %d ms (%.1f%%), %d task(s), %d stolen".formatted(worker, busyNanos / 1_000_000L, idleNanos / 1_000_000L, usage() * 100, executed, stolen);
+        
+    }
+    
+    // Only written by the owning worker.
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static final class Counters {
+        
+        volatile long busyNanos, idleNanos, idleSince, executed, stolen;
+        
+    }
+    
+    // Tasks cheaper than the share of a worker divided by this are grouped, so each worker sees a few batches per phase to balance with.
+    public static final int BATCHES_PER_WORKER = 4;
+    
+    @Getter
+    int parallelism;
+    
+    ConcurrentLinkedDeque<Consumer<ParallelCompiler>> deques[];
+    
+    Counters counters[];
+    
+    AtomicInteger next = { }, idle = { };
+    
+    ReentrantLock lock = { };
+    
+    Condition available = lock.newCondition();
+    
+    public DispatchScheduler(final int parallelism) {
+        this.parallelism = parallelism;
+        deques = new ConcurrentLinkedDeque[parallelism];
+        counters = new Counters[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            deques[i] = new ConcurrentLinkedDeque<>();
+            counters[i] = new Counters();
+        }
+    }
+    
+    private static int currentWorker() = Thread.currentThread() instanceof ParallelContext.Worker worker ? worker.context().index : -1;
+    
+    public void submit(final Consumer<ParallelCompiler> task) {
+        final int worker = currentWorker();
+        if (worker != -1 && worker < parallelism)
+            deques[worker].offerFirst(task);
+        else
+            deques[Math.floorMod(next.getAndIncrement(), parallelism)].offerLast(task);
+        if (idle.get() > 0)
+            signal(false);
+    }
+    
+    public void submitAll(final List<Consumer<ParallelCompiler>> tasks) {
+        if (tasks.isEmpty())
+            return;
+        final int worker = currentWorker();
+        if (worker != -1 && worker < parallelism)
+            tasks.reversed().forEach(deques[worker]::offerFirst);
+        else {
+            final int start = next.getAndAdd(tasks.size());
+            for (int i = 0; i < tasks.size(); i++)
+                deques[Math.floorMod(start + i, parallelism)].offerLast(tasks[i]);
+        }
+        if (idle.get() > 0)
+            signal(true);
+    }
+    
+    private void signal(final boolean all) {
+        lock.lock();
+        try {
+            if (all)
+                available.signalAll();
+            else
+                available.signal();
+        } finally { lock.unlock(); }
+    }
+    
+    // Interrupting the worker aborts the wait, that is how barriers reach idle workers.
+    public Consumer<ParallelCompiler> take(final int worker) throws InterruptedException {
+        final Counters counters = this.counters[worker];
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            final @Nullable Consumer<ParallelCompiler> task = poll(worker);
+            if (task != null)
+                return task;
+            final long start = counters.idleSince = System.nanoTime();
+            lock.lock();
+            try {
+                idle.incrementAndGet();
+                try {
+                    // Submitters publish the task before reading idle, so one of both sides always sees the other.
+                    if (!hasTasks())
+                        available.await();
+                } finally { idle.decrementAndGet(); }
+            } finally {
+                lock.unlock();
+                counters.idleSince = 0L;
+                counters.idleNanos += System.nanoTime() - start;
+            }
+        }
+    }
+    
+    private @Nullable Consumer<ParallelCompiler> poll(final int worker) {
+        final @Nullable Consumer<ParallelCompiler> own = deques[worker].pollFirst();
+        if (own != null)
+            return own;
+        for (int i = 1; i < parallelism; i++) {
+            final @Nullable Consumer<ParallelCompiler> stolen = deques[(worker + i) % parallelism].pollLast();
+            if (stolen != null) {
+                counters[worker].stolen++;
+                return stolen;
+            }
+        }
+        return null;
+    }
+    
+    private boolean hasTasks() = Arrays.stream(deques).anyMatch(deque -> !deque.isEmpty());
+    
+    public void run(final int worker, final Consumer<ParallelCompiler> task, final ParallelCompiler compiler) {
+        final Counters counters = this.counters[worker];
+        final long start = System.nanoTime();
+        try {
+            task.accept(compiler);
+        } finally {
+            counters.busyNanos += System.nanoTime() - start;
+            counters.executed++;
+        }
+    }
+    
+    // Largest first, so the expensive tasks start early and the cheap batches at the end even out the workers.
+    public List<Consumer<ParallelCompiler>> batch(final List<Consumer<ParallelCompiler>> tasks, final long costs[]) {
+        if (tasks.size() <= parallelism)
+            return tasks;
+        final long total = Arrays.stream(costs).sum(), target = Math.max(1L, total / ((long) parallelism * BATCHES_PER_WORKER));
+        final Integer order[] = IntStream.range(0, tasks.size()).boxed().sorted(Comparator.comparingLong((Integer index) -> costs[index]).reversed()).toArray(Integer[]::new);
+        final ArrayList<Consumer<ParallelCompiler>> result = { };
+        ArrayList<Consumer<ParallelCompiler>> group = { };
+        long cost = 0L;
+        for (final int index : order) {
+            if (costs[index] >= target) {
+                result += tasks[index];
+                continue;
+            }
+            group += tasks[index];
+            if ((cost += costs[index]) >= target) {
+                result += batch(group);
+                group = new ArrayList<>();
+                cost = 0L;
+            }
+        }
+        if (!group.isEmpty())
+            result += batch(group);
+        return result;
+    }
+    
+    private static Consumer<ParallelCompiler> batch(final List<Consumer<ParallelCompiler>> group) = group.size() == 1 ? group.getFirst() : compiler -> group.forEach(task -> task.accept(compiler));
+    
+    public List<Utilization> utilization() = IntStream.range(0, parallelism).mapToObj(index -> {
+        final Counters counters = this.counters[index];
+        final long since = counters.idleSince;
+        return new Utilization(index, counters.busyNanos, counters.idleNanos + (since == 0L ? 0L : System.nanoTime() - since), counters.executed, counters.stolen);
+    }).toList();
+    
+    public static List<Utilization> difference(final List<Utilization> after, final List<Utilization> before) = IntStream.range(0, after.size()).mapToObj(index -> after[index].minus(before[index])).toList();
+    
+}
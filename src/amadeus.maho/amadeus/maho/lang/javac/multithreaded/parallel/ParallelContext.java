@@ -20,6 +20,7 @@ import amadeus.maho.lang.javac.multithreaded.concurrent.ConcurrentCheck;
 import amadeus.maho.lang.javac.multithreaded.concurrent.ConcurrentTransTypes;
 import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchCompiler;
 import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchContext;
+import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchScheduler;
 import amadeus.maho.util.control.Interrupt;
 import amadeus.maho.util.runtime.ObjectHelper;
 
@@ -41,8 +42,9 @@ public class ParallelContext extends Context implements MultiThreadedContext {
             final ParallelCompiler parallelCompiler = ParallelCompiler.instance(context);
             context.sharedComponentsConfiguration();
             context.initialization.complete(null);
+            final DispatchScheduler scheduler = dispatchCompiler.scheduler;
             while (!dispatchCompiler.shutdown())
-                Interrupt.doInterruptible(() -> dispatchCompiler.queue.take().accept(parallelCompiler), () -> dispatchCompiler.barrier()?.cross(parallelCompiler));
+                Interrupt.doInterruptible(() -> scheduler.run(context.index, scheduler.take(context.index), parallelCompiler), () -> dispatchCompiler.barrier()?.cross(parallelCompiler));
         }
         
     }
@@ -56,7 +58,9 @@ public class ParallelContext extends Context implements MultiThreadedContext {
     
     CompletableFuture<Void> initialization = { };
     
-    Worker worker = { STR."ParallelContextWorker\{context.workerIndex().getAndIncrement()}", this };
+    int index = context.workerIndex().getAndIncrement();
+    
+    Worker worker = { STR."ParallelContextWorker\{index}", this };
     
     protected void copySharedComponents() = context.sharedKeys().forEach((key, shared) -> {
         if (shared)
@@ -82,8 +86,11 @@ public class ParallelContext extends Context implements MultiThreadedContext {
     @Override
     public synchronized <T> void put(final Key<T> key, final Factory<T> fac) = super.put(key, fac);
     
+    // Shared components are resolved by the dispatch context without holding this monitor.
     @Override
-    public synchronized <T> T get(final Key<T> key) = context.isolated(key) ? super.get(key) : context.get(key);
+    public <T> T get(final Key<T> key) = context.isolated(key) ? isolated(key) : context.get(key);
+    
+    protected synchronized <T> T isolated(final Key<T> key) = super.get(key);
     
     public void interrupt() = worker.interrupt();
     
@@ -0,0 +1,303 @@
+package amadeus.maho.transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import amadeus.maho.core.Maho;
+import amadeus.maho.core.MahoExport;
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
+import amadeus.maho.transform.handler.base.BaseTransformer;
+import amadeus.maho.transform.mark.base.TransformMetadata;
+import amadeus.maho.util.bytecode.ClassHierarchy;
+import amadeus.maho.util.bytecode.ClassWriter;
+import amadeus.maho.util.concurrent.ConcurrentWeakIdentityHashMap;
+import amadeus.maho.util.runtime.ChecksumHelper;
+import amadeus.maho.util.runtime.MemoryHelper;
+
+import static amadeus.maho.core.MahoExport.workDirectory;
+import static java.nio.file.StandardOpenOption.*;
+
+/*
+ * Layout: MAGIC, then records of [int keyLength][key][int metaLength][meta][int dataLength][data], all big-endian, strings in UTF-8.
+ * A zero-length payload records that the transformers did not modify the class, a later record of a key supersedes the earlier ones.
+ * The key is the checksum of the original bytecode joined with the checksum of the ordered transformer fingerprints and their current switches,
+ * a fingerprint carries the checksum of the provider class, so redefined providers simply stop hitting their old entries.
+ * The meta lists the transformers that applied, they are replayed on a hit, the header of the resulting class, marked into the hierarchy on a hit without reading the class,
+ * and the origins of the supertypes that frame computation resolved, see ClassHierarchy#origin, a hit is only served while all of them still match.
+ * Results that embed runtime loader ids are never stored, see TransformContext#loaderBound.
+ * Anything else a transformer depends on must be declared with AOTTransformer.Level.RUNTIME, such results are never cached.
+ * One process at a time owns the file through a lock file, the others only read it. A file above MAX_SIZE is dropped when it is opened and appending stops there,
+ * a file made up of superseded records for more than a half is compacted when it is opened.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TransformCache implements AutoCloseable {
+    
+    public record Entry(int applied[], ClassHierarchy.Header header, Map<String, String> dependencies, byte bytecode[]) {
+        
+        public boolean unmodified() = bytecode.length == 0;
+        
+    }
+    
+    private record Location(long start, long meta, long end) { }
+    
+    public static final int MAGIC = 0x4D54_4303;
+    
+    public static final long MAX_SIZE = 1L << 28;
+    
+    public static final String ALGORITHM = "SHA-1";
+    
+    private static final byte UNMODIFIED[] = new byte[0];
+    
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    
+    @Getter
+    Path path;
+    
+    MemorySegment mapped;
+    
+    ConcurrentHashMap<String, Location> index = { };
+    
+    ConcurrentHashMap<String, Entry> appended = { };
+    
+    ConcurrentWeakIdentityHashMap<ClassTransformer, String> fingerprints = { };
+    
+    FileChannel lockChannel;
+    
+    @Nullable FileLock lock;
+    
+    @Nullable FileChannel channel;
+    
+    @Mutable
+    long end;
+    
+    @SneakyThrows
+    public TransformCache(final Path path) {
+        this.path = path;
+        ~path.getParent();
+        lockChannel = FileChannel.open(path << ".lock", CREATE, WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            Maho.debug(STR."TransformCache: \{path} is owned by another process, read only");
+            if (Files.isRegularFile(path))
+                try (final FileChannel reader = FileChannel.open(path, READ)) { scan(reader); }
+            channel = null;
+        } else {
+            long valid = open(path);
+            if (valid > MAX_SIZE) {
+                Maho.debug(STR."TransformCache: drop \{path} of \{valid} bytes");
+                index.clear();
+                valid = 0L;
+            } else if (valid - live() > valid >> 1) {
+                compact();
+                valid = open(path);
+            }
+            final FileChannel writer = FileChannel.open(path, CREATE, READ, WRITE);
+            if (valid < writer.size()) {
+                Maho.debug(STR."TransformCache: truncate \{path} from \{writer.size()} to \{valid}");
+                writer.truncate(valid);
+            }
+            if (valid == 0L) {
+                writer.write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip(), 0L);
+                valid = Integer.BYTES;
+            }
+            channel = writer;
+            end = valid;
+        }
+        mapped = index.isEmpty() ? MemorySegment.NULL : MemoryHelper.map(path);
+    }
+    
+    private long open(final Path path) throws IOException {
+        index.clear();
+        if (!Files.isRegularFile(path))
+            return 0L;
+        try (final FileChannel reader = FileChannel.open(path, READ)) { return scan(reader); }
+    }
+    
+    private long live() = Integer.BYTES + index.values().stream().mapToLong(location -> location.end() - location.start()).sum();
+    
+    // Rewrites the live records only, the lock file keeps other processes away meanwhile.
+    private void compact() throws IOException {
+        final Path temp = path << ".tmp";
+        try (final FileChannel reader = FileChannel.open(path, READ); final FileChannel writer = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writer.write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip());
+            for (final Location location : index.values())
+                for (long position = location.start(); position < location.end(); )
+                    position += reader.transferTo(position, location.end() - position, writer);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Maho.debug(STR."TransformCache: compact \{path}");
+    }
+    
+    // Reads the record headers only and returns the length of the well-formed prefix of the file.
+    private long scan(final FileChannel reader) throws IOException {
+        final long size = reader.size();
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        if (size < Integer.BYTES || reader.read(header, 0L) != Integer.BYTES || header.flip().getInt() != MAGIC)
+            return 0L;
+        long position = Integer.BYTES;
+        while (position + Integer.BYTES <= size) {
+            reader.read(header.clear(), position);
+            final int keyLength = header.flip().getInt();
+            final long meta = position + Integer.BYTES + keyLength;
+            if (keyLength <= 0 || meta + Integer.BYTES > size)
+                break;
+            final ByteBuffer key = ByteBuffer.allocate(keyLength);
+            reader.read(key, position + Integer.BYTES);
+            reader.read(header.clear(), meta);
+            final int metaLength = header.flip().getInt();
+            final long data = meta + Integer.BYTES + metaLength;
+            if (metaLength < 0 || data + Integer.BYTES > size)
+                break;
+            reader.read(header.clear(), data);
+            final int dataLength = header.flip().getInt();
+            final long next = data + Integer.BYTES + dataLength;
+            if (dataLength < 0 || next > size)
+                break;
+            index[new String(key.array(), StandardCharsets.UTF_8)] = new Location(position, meta, next);
+            position = next;
+        }
+        return position;
+    }
+    
+    public @Nullable String key(final byte bytecode[], final List<ClassTransformer> transformers) {
+        final StringBuilder builder = { };
+        for (final ClassTransformer transformer : transformers) {
+            final String fingerprint = fingerprint(transformer);
+            if (fingerprint.isEmpty())
+                return null;
+            builder.append(fingerprint).append('|').append(switches(transformer)).append('\n');
+        }
+        return STR."\{checksum(ByteBuffer.wrap(bytecode))}:\{checksum(StandardCharsets.UTF_8.encode(builder.toString()))}";
+    }
+    
+    // Transformers that only make sense at runtime may depend on state outside the bytecode, such results are never cached, which an empty fingerprint stands for.
+    protected String fingerprint(final ClassTransformer transformer) = fingerprints.computeIfAbsent(transformer, it -> {
+        if (it.aotLevel() == AOTTransformer.Level.RUNTIME)
+            return "";
+        final @Nullable String version = providerVersion(it);
+        return version == null ? "" : STR."\{it.getClass().getName()}|\{it instanceof Enum<?> e ? e.name() : it.toString()}|\{version}";
+    });
+    
+    // The switches of a transformer are read from the environment whenever it runs, their current values decide whether it applies at all.
+    protected String switches(final ClassTransformer transformer) {
+        if (!(transformer instanceof BaseTransformer<?> baseTransformer))
+            return "";
+        final StringBuilder builder = { };
+        if (baseTransformer.experimental())
+            builder.append("experimental=").append(MahoExport.experimental()).append(';');
+        final @Nullable TransformMetadata metadata = baseTransformer.metadata;
+        if (metadata != null)
+            Stream.concat(Stream.of(metadata.enable()), Stream.of(metadata.disable())).forEach(expr -> {
+                final String condition = expr.startsWith("!") ? expr.substring(1) : expr;
+                builder.append(condition).append('=').append(baseTransformer.manager.environment().lookup(condition)).append(';');
+            });
+        return builder.toString();
+    }
+    
+    @SneakyThrows
+    protected @Nullable String providerVersion(final ClassTransformer transformer) {
+        if (transformer instanceof BaseTransformer<?> baseTransformer)
+            return checksum(ByteBuffer.wrap(ClassWriter.toBytecode(baseTransformer.sourceClass::accept)));
+        final Class<?> type = transformer.getClass();
+        try (final @Nullable InputStream input = type.getResourceAsStream(STR."/\{type.getName().replace('.', '/')}.class")) {
+            return input == null ? null : checksum(ByteBuffer.wrap(input.readAllBytes()));
+        }
+    }
+    
+    @SneakyThrows
+    private static String checksum(final ByteBuffer buffer) = ChecksumHelper.checksum(buffer, ALGORITHM);
+    
+    // Returns null on a miss or when the origin of a supertype resolved by the cached transformation changed since, which is checked without reading any class.
+    public @Nullable Entry get(final String key, final ClassHierarchy hierarchy) {
+        final @Nullable Entry entry = appended[key] ?? read(key);
+        if (entry == null)
+            return null;
+        for (final Map.Entry<String, String> dependency : entry.dependencies().entrySet())
+            if (!hierarchy.origin(dependency.getKey()).equals(dependency.getValue()))
+                return null;
+        return entry;
+    }
+    
+    private @Nullable Entry read(final String key) {
+        final @Nullable Location location = index[key];
+        if (location == null)
+            return null;
+        final int metaLength = mapped.get(INT, location.meta());
+        final String meta = new String(mapped.asSlice(location.meta() + Integer.BYTES, metaLength).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+        final long data = location.meta() + Integer.BYTES + metaLength + Integer.BYTES;
+        final String lines[] = meta.split("\n");
+        final int applied[] = lines[0].isEmpty() ? new int[0] : Stream.of(lines[0].split(",")).mapToInt(Integer::parseInt).toArray();
+        final String header[] = lines[1].split("\t", -1);
+        final LinkedHashMap<String, String> dependencies = { };
+        for (int i = 2; i < lines.length; i++) {
+            final int tab = lines[i].indexOf('\t');
+            dependencies[lines[i].substring(0, tab)] = lines[i].substring(tab + 1);
+        }
+        return {
+                applied,
+                new ClassHierarchy.Header(Integer.parseInt(header[0]), header[1].isEmpty() ? null : header[1], header[2].isEmpty() ? new String[0] : header[2].split(",")),
+                dependencies,
+                mapped.asSlice(data, location.end() - data).toArray(ValueLayout.JAVA_BYTE)
+        };
+    }
+    
+    @SneakyThrows
+    public void put(final String key, final int applied[], final ClassHierarchy.Header header, final Map<String, String> dependencies, final @Nullable byte bytecode[]) {
+        final byte data[] = bytecode ?? UNMODIFIED;
+        appended[key] = new Entry(applied, header, dependencies, data);
+        if (channel == null)
+            return;
+        final StringBuilder meta = { };
+        for (int i = 0; i < applied.length; i++)
+            meta.append(i == 0 ? "" : ",").append(applied[i]);
+        meta.append('\n').append(header.access()).append('\t').append(header.superName() ?? "").append('\t').append(String.join(",", header.interfaces()));
+        dependencies.forEach((name, stamp) -> meta.append('\n').append(name).append('\t').append(stamp));
+        final byte keyBytes[] = key.getBytes(StandardCharsets.UTF_8), metaBytes[] = meta.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 3 + keyBytes.length + metaBytes.length + data.length)
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .putInt(metaBytes.length)
+                .put(metaBytes)
+                .putInt(data.length)
+                .put(data)
+                .flip();
+        synchronized (channel) {
+            if (end + buffer.remaining() > MAX_SIZE || !channel.isOpen())
+                return;
+            while (buffer.hasRemaining())
+                end += channel.write(buffer, end);
+        }
+    }
+    
+    public void invalidate(final ClassTransformer transformer) = fingerprints.remove(transformer);
+    
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            synchronized (channel) { channel.close(); }
+        lockChannel.close();
+    }
+    
+    public static Path defaultPath(final String name) = workDirectory() / "cache" / "transform" / STR."\{name}.cache";
+    
+}
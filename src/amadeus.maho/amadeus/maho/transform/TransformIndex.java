@@ -0,0 +1,275 @@
+package amadeus.maho.transform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Repeatable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import amadeus.maho.core.Maho;
+import amadeus.maho.core.MahoExport;
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.transform.mark.base.TransformMark;
+import amadeus.maho.transform.mark.base.TransformProvider;
+import amadeus.maho.transform.mark.base.Transformer;
+import amadeus.maho.util.bytecode.ASMHelper;
+import amadeus.maho.util.resource.ResourcePath;
+import amadeus.maho.util.runtime.ChecksumHelper;
+
+import static amadeus.maho.core.MahoExport.workDirectory;
+
+/*
+ * Compact index of which annotation types appear on the classes, fields and methods of a resource tree.
+ * It lets TransformerManager.Context pick the transform marks and the candidate providers of a tree without reading unrelated classes.
+ * Layout: MAGIC, VERSION, descriptor pool (int count + UTF), then per class: UTF name and three id arrays (class, field, method annotations).
+ */
+@Getter
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TransformIndex {
+    
+    public static final String RESOURCE_NAME = "transform-index";
+    
+    public static final int MAGIC = 0x4D54_4958, VERSION = 1;
+    
+    public record Entry(int classAnnotations[], int fieldAnnotations[], int methodAnnotations[]) { }
+    
+    protected static class Collector extends ClassVisitor {
+        
+        final LinkedHashMap<String, Integer> pool;
+        
+        final HashSet<Integer> classAnnotations = { }, fieldAnnotations = { }, methodAnnotations = { };
+        
+        final AnnotationVisitor skip = new AnnotationVisitor(MahoExport.asmAPIVersion()) { };
+        
+        final FieldVisitor fieldVisitor = new FieldVisitor(MahoExport.asmAPIVersion()) {
+            
+            @Override
+            public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
+                fieldAnnotations += id(descriptor);
+                return skip;
+            }
+            
+        };
+        
+        final MethodVisitor methodVisitor = new MethodVisitor(MahoExport.asmAPIVersion()) {
+            
+            @Override
+            public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
+                methodAnnotations += id(descriptor);
+                return skip;
+            }
+            
+        };
+        
+        protected Collector(final LinkedHashMap<String, Integer> pool) {
+            super(MahoExport.asmAPIVersion());
+            this.pool = pool;
+        }
+        
+        protected int id(final String descriptor) = pool.computeIfAbsent(descriptor, _ -> pool.size());
+        
+        @Override
+        public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
+            classAnnotations += id(descriptor);
+            return skip;
+        }
+        
+        @Override
+        public FieldVisitor visitField(final int access, final String name, final String descriptor, final String signature, final Object value) = fieldVisitor;
+        
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String exceptions[]) = methodVisitor;
+        
+        protected Entry entry() = { toArray(classAnnotations), toArray(fieldAnnotations), toArray(methodAnnotations) };
+        
+        private static int[] toArray(final Set<Integer> ids) = ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+        
+    }
+    
+    String descriptors[];
+    
+    Map<String, Entry> entries;
+    
+    // Source names of the classes carrying @TransformMark.
+    public Stream<String> marks() {
+        final int mark = indexOf(ASMHelper.classDesc(TransformMark.class));
+        return mark == -1 ? Stream.empty() : entries.entrySet().stream().filter(entry -> contains(entry.getValue().classAnnotations(), mark)).map(Map.Entry::getKey);
+    }
+    
+    // Superset of the classes TransformerManager.Context#scanProvider would register something for, given the transformer table of the manager.
+    public Stream<String> providers(final Collection<Class<? extends Annotation>> base, final Collection<Class<? extends Annotation>> field, final Collection<Class<? extends Annotation>> method) {
+        final int transformer = indexOf(ASMHelper.classDesc(Transformer.class)), provider = indexOf(ASMHelper.classDesc(TransformProvider.class)), exception = indexOf(ASMHelper.classDesc(TransformProvider.Exception.class));
+        final int baseIds[] = ids(base), fieldIds[] = ids(field), methodIds[] = ids(method);
+        return entries.entrySet().stream().filter(it -> {
+            final Entry entry = it.getValue();
+            if (contains(entry.classAnnotations(), transformer))
+                return true;
+            if (!contains(entry.classAnnotations(), exception) && intersects(entry.classAnnotations(), baseIds))
+                return true;
+            return contains(entry.classAnnotations(), provider) && (intersects(entry.fieldAnnotations(), fieldIds) || intersects(entry.methodAnnotations(), methodIds));
+        }).map(Map.Entry::getKey);
+    }
+    
+    protected int indexOf(final String descriptor) {
+        for (int i = 0; i < descriptors.length; i++)
+            if (descriptors[i].equals(descriptor))
+                return i;
+        return -1;
+    }
+    
+    // Repeatable annotations may only be present through their container.
+    protected int[] ids(final Collection<Class<? extends Annotation>> annotationTypes) = annotationTypes.stream()
+            .flatMap(annotationType -> Stream.concat(Stream.of(annotationType), Stream.ofNullable(annotationType.getAnnotation(Repeatable.class)).map(Repeatable::value)))
+            .map(ASMHelper::classDesc)
+            .mapToInt(this::indexOf)
+            .filter(id -> id != -1)
+            .sorted()
+            .toArray();
+    
+    protected static boolean contains(final int ids[], final int id) {
+        if (id == -1)
+            return false;
+        for (final int value : ids)
+            if (value == id)
+                return true;
+        return false;
+    }
+    
+    protected static boolean intersects(final int a[], final int b[]) {
+        int i = 0, j = 0;
+        while (i < a.length && j < b.length)
+            if (a[i] == b[j])
+                return true;
+            else if (a[i] < b[j])
+                i++;
+            else
+                j++;
+        return false;
+    }
+    
+    public void write(final OutputStream output) throws IOException {
+        final DataOutputStream data = { new BufferedOutputStream(output) };
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(descriptors.length);
+        for (final String descriptor : descriptors)
+            data.writeUTF(descriptor);
+        data.writeInt(entries.size());
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            data.writeUTF(entry.getKey());
+            writeIds(data, entry.getValue().classAnnotations());
+            writeIds(data, entry.getValue().fieldAnnotations());
+            writeIds(data, entry.getValue().methodAnnotations());
+        }
+        data.flush();
+    }
+    
+    @SneakyThrows
+    public void write(final Path path) {
+        final Path temp = ~path.getParent() / STR."\{path.getFileName()}.tmp";
+        try (final var output = Files.newOutputStream(temp)) { write(output); }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static void writeIds(final DataOutputStream data, final int ids[]) throws IOException {
+        data.writeShort(ids.length);
+        for (final int id : ids)
+            data.writeInt(id);
+    }
+    
+    private static int[] readIds(final DataInputStream data) throws IOException {
+        final int ids[] = new int[data.readUnsignedShort()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = data.readInt();
+        return ids;
+    }
+    
+    public static TransformIndex read(final InputStream input) throws IOException {
+        final DataInputStream data = { new BufferedInputStream(input) };
+        if (data.readInt() != MAGIC || data.readInt() != VERSION)
+            throw new IOException("Incompatible transform index");
+        final String descriptors[] = new String[data.readInt()];
+        for (int i = 0; i < descriptors.length; i++)
+            descriptors[i] = data.readUTF();
+        final int size = data.readInt();
+        final HashMap<String, Entry> entries = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++)
+            entries[data.readUTF()] = new Entry(readIds(data), readIds(data), readIds(data));
+        return { descriptors, entries };
+    }
+    
+    public static TransformIndex build(final Stream<ResourcePath.ClassInfo> classes) {
+        final LinkedHashMap<String, Integer> pool = { };
+        final LinkedHashMap<String, Entry> entries = { };
+        classes.forEach(info -> {
+            final Collector collector = { pool };
+            try {
+                new ClassReader(info.readAll()).accept(collector, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            } catch (final IOException | RuntimeException e) {
+                Maho.debug(STR."TransformIndex: skip \{info}: \{e}");
+                return;
+            }
+            final Entry entry = collector.entry();
+            if (entry.classAnnotations().length + entry.fieldAnnotations().length + entry.methodAnnotations().length > 0)
+                entries[info.className()] = entry;
+        });
+        return { pool.keySet().toArray(String[]::new), entries };
+    }
+    
+    // Archives are immutable once built, so an index derived at first run can be reused until the archive itself changes.
+    @SneakyThrows
+    public static @Nullable Path cachePath(final ResourcePath.ResourceTree tree) {
+        if (tree.domain() == null)
+            return null;
+        final Path source = tree.source().toAbsolutePath();
+        final String key = STR."\{source}|\{Files.size(source)}|\{Files.getLastModifiedTime(source).toMillis()}";
+        return workDirectory() / "cache" / "transform" / "index" / STR."\{ChecksumHelper.checksum(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), "SHA-1")}.index";
+    }
+    
+    // Lookup order: index shipped inside the tree, index persisted by an earlier run, freshly built index (persisted for archives).
+    @SneakyThrows
+    public static TransformIndex of(final ResourcePath.ResourceTree tree) {
+        final @Nullable ResourcePath.ResourceInfo resource = tree.findResource(RESOURCE_NAME);
+        if (resource != null)
+            try (final var input = resource.inputStream()) { return read(input); }
+        final @Nullable Path cache = cachePath(tree);
+        if (cache != null && Files.isRegularFile(cache))
+            try (final var input = Files.newInputStream(cache)) { return read(input); } catch (final IOException e) { Maho.debug(STR."TransformIndex: discard \{cache}: \{e}"); }
+        final TransformIndex index = build(tree.classes());
+        if (cache != null)
+            try { index.write(cache); } catch (final Throwable throwable) { Maho.debug(STR."TransformIndex: unable to persist \{cache}: \{throwable}"); }
+        return index;
+    }
+    
+    @SneakyThrows
+    public static void generate(final Path classesRoot, final Path output = classesRoot / RESOURCE_NAME) = ResourcePath.ResourceTree.of(classesRoot).let(tree -> build(tree.classes()).write(output));
+    
+}
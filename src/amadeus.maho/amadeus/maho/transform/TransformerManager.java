@@ -19,6 +19,7 @@ import java.nio.file.Path;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -37,6 +38,8 @@ import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import jdk.internal.loader.BootLoader;
+
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AnnotationNode;
@@ -66,6 +69,7 @@ import amadeus.maho.transform.mark.base.Transformed;
 import amadeus.maho.transform.mark.base.Transformer;
 import amadeus.maho.util.annotation.AnnotationHandler;
 import amadeus.maho.util.bytecode.ASMHelper;
+import amadeus.maho.util.bytecode.ClassHierarchy;
 import amadeus.maho.util.bytecode.ClassWriter;
 import amadeus.maho.util.bytecode.context.TransformContext;
 import amadeus.maho.util.bytecode.remap.RemapHandler;
@@ -101,6 +105,48 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
         
         private static final ConcurrentWeakIdentityHashSet<Class<?>> preLoadedClasses = { };
         
+        // Placeholder for the bootstrap loader, which is represented by null and cannot be a key of a weak set.
+        private static final Object BOOTSTRAP = new Object();
+        
+        private static final MethodHandle findLoadedClass = MethodHandleHelper.lookup().findVirtual(ClassLoader.class, "findLoadedClass", MethodType.methodType(Class.class, String.class));
+        
+        // Source name -> defining loaders, fed by the runtime manager's ClassFileTransformer hook so that limited transformers can resolve their targets without walking every loaded class.
+        private static final ConcurrentHashMap<String, ConcurrentWeakIdentityHashSet<Object>> definers = { };
+        
+        private static volatile boolean seeded;
+        
+        public static void recordDefinition(final @Nullable ClassLoader loader, final String name) = definers.computeIfAbsent(name, _ -> new ConcurrentWeakIdentityHashSet<>()) += loader ?? BOOTSTRAP;
+        
+        // Classes loaded before the runtime manager joined the instrumentation are never seen by the hook.
+        private static void seed(final Instrumentation instrumentation) {
+            if (!seeded)
+                synchronized (definers) {
+                    if (!seeded) {
+                        Stream.of(instrumentation.getAllLoadedClasses())
+                                .filter(clazz -> !clazz.isArray() && !clazz.isHidden())
+                                .forEach(clazz -> recordDefinition(clazz.getClassLoader(), clazz.getName()));
+                        seeded = true;
+                    }
+                }
+        }
+        
+        @SneakyThrows
+        public static Stream<Class<?>> loadedClasses(final String name) {
+            final @Nullable ConcurrentWeakIdentityHashSet<Object> loaders = definers[name];
+            if (loaders == null)
+                return Stream.empty();
+            if (loaders.isEmpty()) {
+                // Every defining loader has been collected, drop the entry so the index does not keep names of unloaded classes.
+                definers.remove(name, loaders);
+                return Stream.empty();
+            }
+            final ArrayList<Class<?>> result = { };
+            for (final Object loader : loaders)
+                if ((loader == BOOTSTRAP ? BootLoader.loadClassOrNull(name) : (Class<?>) findLoadedClass.invoke((ClassLoader) loader, name)) instanceof Class<?> clazz)
+                    result += clazz;
+            return result.stream();
+        }
+        
         public static void patch(final TransformRange transformer) = patch(List.of(transformer));
         
         @SneakyThrows
@@ -110,16 +156,34 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
             lock.lock();
             try {
                 final Instrumentation instrumentation = Maho.instrumentation();
-                final Stream<Class> stream = Stream.of(instrumentation.getAllLoadedClasses())
-                        .parallel()
-                        .filter(instrumentation::isModifiableClass);
-                final Class classes[] = (preLoadedClasses.isEmpty() ? stream : stream.filter(clazz -> !preLoadedClasses.contains(clazz)))
-                        .filter(clazz -> transformers.stream().anyMatch(transformer -> transformer.isTarget(clazz)))
-                        .toArray(Class[]::new);
+                final Sampler<String> sampler = runtime().sampler();
+                final Class classes[];
+                try (final var _ = sampler["PatchLookup"]) {
+                    seed(instrumentation);
+                    final Set<Class<?>> targets = ConcurrentHashMap.newKeySet();
+                    final ArrayList<TransformRange> wildcard = { };
+                    transformers.forEach(transformer -> {
+                        if (transformer instanceof ClassTransformer.Limited limited && limited.limited())
+                            limited.targets().forEach(name -> loadedClasses(name).filter(limited::isTarget).forEach(targets::add));
+                        else
+                            wildcard += transformer;
+                    });
+                    if (!wildcard.isEmpty())
+                        Stream.of(instrumentation.getAllLoadedClasses())
+                                .parallel()
+                                .filter(clazz -> wildcard.stream().anyMatch(transformer -> transformer.isTarget(clazz)))
+                                .forEach(targets::add);
+                    final Stream<Class<?>> stream = targets.stream().filter(instrumentation::isModifiableClass);
+                    classes = (preLoadedClasses.isEmpty() ? stream : stream.filter(clazz -> !preLoadedClasses.contains(clazz))).toArray(Class[]::new);
+                }
+                if (classes.length == 0)
+                    return;
                 synchronized (VerifyErrorInfoTransformer.verifyErrorsRef) {
                     final ArrayList<VerifyError> verifyErrors = { };
                     VerifyErrorInfoTransformer.verifyErrorsRef.set(verifyErrors);
-                    try {
+                    Maho.debug(STR."Retransform \{classes.length} class(es)");
+                    sampler.value("RetransformBatch", classes.length);
+                    try (final var _ = sampler["Retransform"]) {
                         instrumentation.retransformClasses(classes);
                     } catch (final LinkageError | InternalError error) {
                         verifyErrors.forEach(error::addSuppressed);
@@ -144,6 +208,11 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
     @Getter
     final Sampler<String> sampler = MahoProfile.sampler(STR."\{getClass().getCanonicalName()}#\{name()}");
     
+    // Opt-in on-disk cache of transformed bytecode, consulted before any ASM work on the initial definition of a class.
+    @Getter
+    @Setter
+    @Nullable TransformCache transformCache;
+    
     final ConcurrentLinkedQueue<RemapHandler> remapHandlers = { };
     
     public boolean addRemapHandler(final RemapHandler remapHandler) = remapHandlers.add(remapHandler);
@@ -193,13 +262,55 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
         throw new IllegalArgumentException(STR."Unknown type: \{member.getClass()}");
     }
     
-    public Stream<ClassTransformer> lookupTransformer(final @Nullable Class<?> clazz, final @Nullable ClassLoader loader, final String name) {
-        read.lock();
-        try {
-            return Stream.concat(transformerMap[name]?.stream() ?? Stream.<ClassTransformer>empty(), transformerMap[ANY]?.stream()?.filter(filter(clazz, loader, name)) ?? Stream.<ClassTransformer>empty());
-        } finally { read.unlock(); }
+    // Immutable snapshot of transformerMap, swapped under the write lock and read without any lock by transform.
+    public record DispatchIndex(Map<String, ClassTransformer[]> limited, ClassTransformer any[]) {
+        
+        public static final DispatchIndex EMPTY = { Map.of(), new ClassTransformer[0] };
+        
+        public static DispatchIndex of(final Map<String, ? extends Collection<ClassTransformer>> transformerMap) {
+            final HashMap<String, ClassTransformer[]> limited = { };
+            @Nullable ClassTransformer any[] = null;
+            for (final Map.Entry<String, ? extends Collection<ClassTransformer>> entry : transformerMap.entrySet()) {
+                final ClassTransformer array[] = entry.getValue().toArray(ClassTransformer[]::new);
+                if (array.length == 0)
+                    continue;
+                ArrayHelper.sort(array, ClassTransformer::compareTo);
+                if (entry.getKey().equals(ANY))
+                    any = array;
+                else
+                    limited[entry.getKey()] = array;
+            }
+            return limited.isEmpty() && any == null ? EMPTY : new DispatchIndex(Map.copyOf(limited), any ?? EMPTY.any);
+        }
+        
+        // Returns null when no transformer matches, the hot path of a class load does not allocate in that case.
+        public @Nullable List<ClassTransformer> lookup(final @Nullable Class<?> clazz, final @Nullable ClassLoader loader, final String name) {
+            final @Nullable ClassTransformer targeted[] = limited.get(name);
+            @Nullable ArrayList<ClassTransformer> result = null;
+            for (final ClassTransformer transformer : any)
+                if (clazz != null ? transformer.isTarget(clazz) : transformer.isTarget(loader, name)) {
+                    if (result == null) {
+                        result = new ArrayList<>(targeted == null ? any.length : targeted.length + any.length);
+                        if (targeted != null)
+                            Collections.addAll(result, targeted);
+                    }
+                    result += transformer;
+                }
+            return result != null ? result : targeted != null ? List.of(targeted) : null;
+        }
+        
     }
     
+    volatile DispatchIndex dispatchIndex = DispatchIndex.EMPTY;
+    
+    // Must be called while holding the write lock after any modification of transformerMap.
+    private void rebuildDispatchIndex() = dispatchIndex = DispatchIndex.of(transformerMap);
+    
+    public DispatchIndex dispatchIndex() = dispatchIndex;
+    
+    public Stream<ClassTransformer> lookupTransformer(final @Nullable Class<?> clazz, final @Nullable ClassLoader loader, final String name)
+            = dispatchIndex.lookup(clazz, loader, name)?.stream() ?? Stream.<ClassTransformer>empty();
+    
     public static Predicate<ClassTransformer> filter(final @Nullable Class<?> clazz, final @Nullable ClassLoader loader, final String name)
             = clazz != null ? transformer -> transformer.isTarget(clazz) : transformer -> transformer.isTarget(loader, name);
     
@@ -274,8 +385,13 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                 markers += marker;
         }
         
+        ConcurrentHashMap<ResourcePath.ResourceTree, TransformIndex> indexes = { };
+        
+        public TransformIndex index(final ResourcePath.ResourceTree tree) = indexes.computeIfAbsent(tree, TransformIndex::of);
+        
+        // Trees without a precomputed list are narrowed down through their TransformIndex instead of being read class by class.
         @SneakyThrows
-        public Stream<ResourcePath.ClassInfo> scanMayCachedList(final ResourcePath path, final String cachedPath) {
+        public Stream<ResourcePath.ClassInfo> scanMayCachedList(final ResourcePath path, final String cachedPath, final @Nullable Function<TransformIndex, Stream<String>> selector = null) {
             final ArrayList<ResourcePath.ClassInfo> classInfoFromCachedList = { };
             final ResourcePath sub = path.sub(resourceTree -> {
                 final @Nullable ResourcePath.ResourceInfo cacheInfo = resourceTree.findResource(cachedPath);
@@ -286,6 +402,13 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                             .forEach(classInfoFromCachedList::add);
                     return false;
                 }
+                if (selector != null) {
+                    selector.apply(index(resourceTree))
+                            .map(resourceTree::findClassInfo)
+                            .nonnull()
+                            .forEach(classInfoFromCachedList::add);
+                    return false;
+                }
                 return true;
             });
             return Stream.concat(classInfoFromCachedList.stream(), sub.classes());
@@ -298,7 +421,9 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
         
         @SneakyThrows
         public void scanProviders(final ResourcePath path, final Predicate<ResourcePath.ClassInfo> filter)
-                = await(scanMayCachedList(path, "transform-providers").filter(filter).map(info -> async(() -> scanProvider(info, ASMHelper.newClassNode(info.readAll())), Setup.executor())));
+                = await(scanMayCachedList(path, "transform-providers", index -> index.providers(annotationTypes(BaseTransformer.class), annotationTypes(FieldTransformer.class), annotationTypes(MethodTransformer.class))).filter(filter).map(info -> async(() -> scanProvider(info, ASMHelper.newClassNode(info.readAll())), Setup.executor())));
+        
+        private Set<Class<? extends Annotation>> annotationTypes(final Class<? extends BaseTransformer> transformerType) = manager.transformerTable[transformerType]?.keySet() ?? Set.of();
         
         public void scanProvider(final ClassLoadable classLoadable, final ClassNode node, final boolean redefine = false) {
             if (!redefine)
@@ -353,7 +478,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
         
         @SneakyThrows
         protected void scanMarks(final ResourcePath path, final Predicate<ResourcePath.ClassInfo> filter)
-                = await(scanMayCachedList(path, "transform-marks").filter(filter).map(info -> async(() -> scanMarks(info, ASMHelper.newClassNode(info.readAll(), ClassReader.SKIP_CODE)), Setup.executor())));
+                = await(scanMayCachedList(path, "transform-marks", TransformIndex::marks).filter(filter).map(info -> async(() -> scanMarks(info, ASMHelper.newClassNode(info.readAll(), ClassReader.SKIP_CODE)), Setup.executor())));
         
         protected void scanMarks(final ResourcePath.ClassInfo info, final ClassNode node) throws IOException {
             final @Nullable TransformMark mark = ASMHelper.findAnnotation(node, TransformMark.class, loader);
@@ -401,6 +526,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                     ArrayHelper.sort(array, ClassTransformer::compareTo);
                     manager.transformerMap[target] = { array };
                 });
+                manager.rebuildDispatchIndex();
             } finally { lock.unlock(); }
         }
         
@@ -426,6 +552,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                         }
                     }
                 });
+                manager.rebuildDispatchIndex();
             } finally { lock.unlock(); }
             patch();
         }
@@ -457,6 +584,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                             .cast(BaseTransformer.class)
                             .forEach(transformer -> transformer.onAOT(aotTransformerMap.computeIfAbsent(ASMHelper.sourceName(transformer.sourceClass.name), AOTTransformer::new)));
                     aotTransformerMap.forEach((target, aotTransformer) -> transformerMap.computeIfAbsent(target, _ -> new CopyOnWriteArrayList<>()) += aotTransformer);
+                    manager.rebuildDispatchIndex();
                 } finally { lock.unlock(); }
             }
             if (!aot) {
@@ -484,6 +612,9 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                 return false;
             });
             context.scan(scanPath, filter);
+            // Ahead-of-time transformation computes frames for most classes of the path, their supertypes are indexed in one pass instead of one resource lookup each.
+            if (aot)
+                ClassHierarchy.of(loader ?? ClassLoader.getPlatformClassLoader()).populate(path, Setup.executor());
             context.setup(path, level, aot);
         } catch (final Throwable t) {
             Maho.debug(STR."Setup failed: \{debugInfo}");
@@ -505,6 +636,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
             transformerMap.values().forEach(list -> list.removeIf(transformer -> {
                 if (transformer instanceof BaseTransformer<?> baseTransformer && names[baseTransformer.sourceClass.name]) {
                     rollbackTransformers += baseTransformer;
+                    transformCache?.invalidate(baseTransformer);
                     return true;
                 }
                 return false;
@@ -515,6 +647,7 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                 final ClassNode node = ASMHelper.newClassNode(definition.getDefinitionClassFile());
                 context.scanProvider(loaded, node, true);
             });
+            rebuildDispatchIndex();
         } finally { lock.unlock(); }
         context.setup(null, AOTTransformer.Level.RUNTIME, false, rollbackTransformers);
     }
@@ -558,15 +691,34 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
                 return null;
             }
             srcName = ASMHelper.sourceName(internalName);
-            transformers = lookupTransformer(clazz, loader, srcName).toList();
-            if (transformers.isEmpty())
+            if (clazz == null && this == runtime())
+                Patcher.recordDefinition(loader, srcName);
+            final @Nullable List<ClassTransformer> targeted = dispatchIndex.lookup(clazz, loader, srcName);
+            if (targeted == null)
                 return null;
+            transformers = targeted;
+            final @Nullable TransformCache cache = transformCache;
+            final @Nullable String cacheKey = cache != null && clazz == null && bytecode != null ? cache.key(bytecode, transformers) : null;
+            final ClassHierarchy hierarchy = ClassHierarchy.of(loader ?? ClassLoader.getPlatformClassLoader());
+            if (cacheKey != null && cache.get(cacheKey, hierarchy) instanceof TransformCache.Entry cached) {
+                hierarchy.mark(internalName, cached.header());
+                for (final int index : cached.applied())
+                    if (transformers[index] instanceof BaseTransformer<?> baseTransformer)
+                        baseTransformer.markTransformed();
+                return cached.unmodified() ? null : cached.bytecode();
+            }
             final ClassNode p_node[] = { reader == null ? null : ASMHelper.newClassNode(reader) };
             final ClassWriter writer = { loader };
             writer.mark(p_node[0]);
             final TransformContext context = bytecode == null ? writer.context() : writer.context(bytecode);
             transformers.forEach(transformer -> p_node[0] = transform(context, p_node[0], transformer, loader, clazz, domain));
+            if (p_node[0] != null)
+                writer.hierarchy().mark(p_node[0]);
             final @Nullable byte result[] = writeBytecodeAndMark(p_node[0], context, loader);
+            // Loader ids are assigned per process, a result embedding one can not be replayed by another.
+            if (cacheKey != null && !context.loaderBound())
+                cache.put(cacheKey, context.applied().stream().mapToInt(transformers::indexOf).toArray(),
+                        p_node[0] != null ? ClassHierarchy.Header.of(p_node[0]) : ClassHierarchy.Header.of(reader), writer.dependencies(), result);
             if (result != null && runtime() == this && DebugDumper.state()) {
                 DebugDumper.dumpBytecode(internalName, bytecode, DebugDumper.dump_transform_source);
                 DebugDumper.dumpBytecode(internalName, result, DebugDumper.dump_transform_result);
@@ -605,6 +757,8 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
             final ClassWriter writer = { loader };
             final TransformContext.WithSource context = writer.mark(p_node[0]).context(loaderIndexed, bytecode);
             transformers.forEach(transformer -> p_node[0] = transform(context, p_node[0], transformer, loader));
+            if (p_node[0] != null)
+                writer.hierarchy().mark(p_node[0]);
             return writeBytecodeAndMark(p_node[0], context, loader);
         }
         return null;
@@ -688,6 +842,17 @@ public class TransformerManager implements ClassFileTransformer, StreamRemapHand
         
     }
     
-    static { DebugDumper.state(Environment.local().lookup(MAHO_DEBUG_DUMP_BYTECODE, debug())); }
+    static {
+        DebugDumper.state(Environment.local().lookup(MAHO_DEBUG_DUMP_BYTECODE, debug()));
+        if (Environment.local().lookup(MAHO_TRANSFORM_CACHE, false)) {
+            final TransformCache cache = { TransformCache.defaultPath(runtime().name()) };
+            runtime().transformCache(cache);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cache.close();
+                } catch (final IOException e) { DebugHelper.breakpoint(e); }
+            }));
+        }
+    }
     
 }
@@ -72,10 +72,14 @@ public abstract class BaseTransformer<A extends Annotation> implements ClassTran
     
     protected void markExperimental() = experimental = true;
     
+    // Also called when TransformCache replays a cached transformation.
+    public void markTransformed() = debugTransformCount++;
+    
     @Override
     public @Nullable ClassNode transform(final TransformContext context, final @Nullable ClassNode node, final @Nullable ClassLoader loader, final @Nullable Class<?> clazz, final @Nullable ProtectionDomain domain) {
         if (nodeFilter().test(node)) {
-            debugTransformCount++;
+            markTransformed();
+            context.markApplied(this);
             // noinspection DataFlowIssue
             return doTransform(context, node, loader, clazz, domain);
         }
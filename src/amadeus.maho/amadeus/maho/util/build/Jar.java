@@ -24,6 +24,9 @@ import amadeus.maho.lang.Extension;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.ToString;
 import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.transform.TransformIndex;
+import amadeus.maho.transform.mark.base.TransformProvider;
+import amadeus.maho.util.bytecode.ASMHelper;
 
 import static amadeus.maho.util.concurrent.AsyncHelper.*;
 import static java.util.jar.Attributes.Name.*;
@@ -116,6 +119,8 @@ public interface Jar {
             modulesDir / name.replace("${type}", "") | root -> {
                 Files.walk(moduleSrcDir).filter(Files::isRegularFile).filter(path -> !Javac.javaFileMatcher().matches(path)).forEach(path -> copier.accept(path, root / (moduleSrcDir % path).toString()));
                 moduleClassesDir >> root;
+                if (Files.isRegularFile(moduleInfo) && ASMHelper.hasAnnotation(ASMHelper.newClassNode(Files.readAllBytes(moduleInfo)), TransformProvider.class))
+                    TransformIndex.generate(moduleClassesDir, root / TransformIndex.RESOURCE_NAME);
                 try (final var output = Files.newOutputStream(~(root / META_INF) / MANIFEST_NAME)) { manifest.write(output); }
             };
             final @Nullable Path sources = packSources ? ~(workspace.root() / workspace.output(SOURCES_DIR, module)) / name.replace("${type}", "-sources") : null;
@@ -77,7 +77,7 @@ public interface Javac {
             MODULE_INFO  = "module-info",
             PACKAGE_INFO = "package-info";
     
-    String CLASSES_DIR = "classes", SESSION = "javac.session";
+    String CLASSES_DIR = "classes", INCREMENTAL_DIR = "incremental", SESSION = "javac.session";
     
     class Failure extends Exception {
         
@@ -98,15 +98,22 @@ public interface Javac {
     record Request(Collection<Path> paths, List<String> options, Locale locale = Locale.getDefault(), Charset charset = StandardCharsets.UTF_8,
                    @Nullable DiagnosticListener<? super JavaFileObject> listener = null, PrintWriter writer = { new OutputStreamWriter(System.out), true }) {
         
-        public <C extends Context> C generateCompileContext(final C context) {
+        // A shared file manager keeps its opened containers across compilations and is closed by its owner, it has to be created with the charset of this request.
+        public <C extends Context> C generateCompileContext(final C context, final @Nullable JavacFileManager shared = null) {
             context.put(Locale.class, locale);
             if (listener != null)
                 context.put(DiagnosticListener.class, listener);
             context.put(Log.errKey, writer);
             if (!options.contains("nonBatchMode"))
                 CacheFSInfo.preRegister(context);
-            final JavacFileManager fileManager = { context, true, charset };
-            fileManager.autoClose = true;
+            final JavacFileManager fileManager;
+            if (shared != null) {
+                fileManager = shared;
+                fileManager.setContext(context);
+            } else {
+                fileManager = new JavacFileManager(context, true, charset);
+                fileManager.autoClose = true;
+            }
             context.put(JavaFileManager.class, fileManager);
             final Arguments args = Arguments.instance(context);
             args.init("javac", options, List.of(), fileManager.getJavaFileObjectsFromPaths(paths));
@@ -322,7 +329,19 @@ public interface Javac {
     
     @SneakyThrows
     static void compile(final Collection<Path> paths, final List<String> options, final Charset charset = StandardCharsets.UTF_8, final Locale locale = Locale.getDefault(),
-            final @Nullable DiagnosticListener<? super JavaFileObject> listener = null, final PrintWriter writer = { new OutputStreamWriter(System.out), true }) throws Failure {
+            final @Nullable DiagnosticListener<? super JavaFileObject> listener = null, final PrintWriter writer = { new OutputStreamWriter(System.out), true }, final @Nullable Path incremental = null) throws Failure {
+        if (listener == null && Boolean.getBoolean("amadeus.maho.compile.daemon"))
+            try (final @Nullable JavacDaemon.Client client = JavacDaemon.Client.connect()) {
+                if (client != null) {
+                    final JavacDaemon.Result result = client.compile(new JavacDaemon.Build(paths.stream().map(Path::toAbsolutePath).map(Path::toString).toArray(String[]::new), JavacDaemon.absoluteOptions(options).toArray(String[]::new), charset.name(),
+                            incremental == null ? null : incremental.toAbsolutePath().toString()));
+                    writer.print(result.output());
+                    writer.flush();
+                    if (!result.success())
+                        throw new Failure(LauncherProperties.Errors.CompilationFailed);
+                    return;
+                }
+            }
         final Request request = { paths, options, locale, charset, listener, writer };
         request.compile(parallelStrategy.get()?.booleanValue() ?? (paths.size() > 8));
     }
@@ -338,7 +357,7 @@ public interface Javac {
     static Path compile(final Workspace workspace, final Module module, final Predicate<Path> useModulePath = hasModuleInfo, final Consumer<List<String>> argsTransformer = FunctionHelper.abandon(),
             final @Nullable Path moduleSourcePath = workspace.root() / module.path() / "src", final Predicate<String> shouldCompile = _ -> true,
             final Charset charset = StandardCharsets.UTF_8, final Locale locale = Locale.getDefault()) throws Failure {
-        final Path classesDir = workspace.root() / workspace.output(CLASSES_DIR, module);
+        final Path classesDir = workspace.root() / workspace.output(CLASSES_DIR, module), incrementalDir = workspace.root() / workspace.output(INCREMENTAL_DIR, module);
         final ArrayList<Path> p = { }, cp = { };
         module.dependencies().stream()
                 .filter(Module.SingleDependency::compile)
@@ -371,7 +390,7 @@ public interface Javac {
                     .flatMap(Files::walk)
                     .distinct()
                     .filter(javaFileMatcher()::matches)
-                    .toList(), args, charset, locale);
+                    .toList(), args, charset, locale, null, new PrintWriter(new OutputStreamWriter(System.out), true), incrementalDir);
         } else {
             argsTransformer.accept(args);
             module.subModules().entrySet().stream()
@@ -380,7 +399,7 @@ public interface Javac {
                         fork *= args;
                         fork += "-d";
                         fork += (classesDir / entry.getKey()).toAbsolutePath().toString();
-                    }), charset, locale));
+                    }), charset, locale, null, new PrintWriter(new OutputStreamWriter(System.out), true), incrementalDir / entry.getKey()));
         }
         "" >> classesDir / SESSION;
         return classesDir;
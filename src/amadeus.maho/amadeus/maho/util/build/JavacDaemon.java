@@ -0,0 +1,397 @@
+package amadeus.maho.util.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.sun.tools.javac.file.JavacFileManager;
+import com.sun.tools.javac.util.Context;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.javac.incremental.IncrementalContext;
+import amadeus.maho.lang.javac.multithreaded.dispatch.DependencySymbols;
+import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchCompiler;
+import amadeus.maho.lang.javac.multithreaded.dispatch.DispatchContext;
+import amadeus.maho.util.concurrent.AsyncHelper;
+import amadeus.maho.util.depend.ArtifactIndex;
+import amadeus.maho.util.link.rpc.RPCChannel;
+import amadeus.maho.util.link.rpc.RPCContext;
+import amadeus.maho.util.misc.Environment;
+import amadeus.maho.util.runtime.ChecksumHelper;
+import amadeus.maho.util.runtime.DebugHelper;
+import amadeus.maho.util.serialization.Serializer;
+
+/*
+ * Long-lived compile server, clients reach it through the RPC layer on a loopback port published with an access token in the state directory.
+ * Every build gets a fresh DispatchContext, what survives between builds is the warm JIT, a file manager per dependency set with its opened jars,
+ * the symbols completed from those jars and the platform, both reused while the checksums of the jars are unchanged,
+ * and the IncrementalContext of every incremental directory, so no store has to be read again.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class JavacDaemon implements JavacDaemon.Service, AutoCloseable {
+    
+    public interface Service {
+        
+        Result compile(String token, Build build);
+        
+        String status(String token);
+        
+        void shutdown(String token);
+        
+    }
+    
+    // Paths are resolved in the working directory of the daemon, clients pass them absolute, see absoluteOptions. The incremental directory holds the IncrementalContext store, null compiles everything.
+    public record Build(String paths[], String options[], String charset, @Nullable String incremental) { }
+    
+    public record Result(boolean success, int errors, int warnings, String output) { }
+    
+    public record Client(RPCChannel channel, Service service, String token) implements AutoCloseable {
+        
+        public Result compile(final Build build) = service.compile(token, build);
+        
+        public String status() = service.status(token);
+        
+        public void shutdown() = service.shutdown(token);
+        
+        @Override
+        public void close() throws IOException {
+            channel.channel().close();
+            channel.selector().wakeup();
+        }
+        
+        // Returns null when no daemon is running, a stale port file is treated the same.
+        @SneakyThrows
+        public static @Nullable Client connect(final Path stateDir = defaultStateDir()) {
+            final Path portFile = stateDir / PORT_FILE;
+            if (!Files.isRegularFile(portFile))
+                return null;
+            final String address[] = Files.readString(portFile).trim().split(":", 2);
+            if (address.length != 2)
+                return null;
+            final SocketChannel socket;
+            try {
+                socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0])));
+            } catch (final IOException | NumberFormatException e) { return null; }
+            final RPCChannel channel = { socket, rpcContext(AsyncHelper.newVirtualThreadExecutor("javac-daemon-client")) };
+            channel.runLoop();
+            return { channel, channel.projection(Service.class), address[1] };
+        }
+        
+    }
+    
+    private record Checksum(ArtifactIndex.Stamp stamp, String value) { }
+    
+    // The locations are every file manager option of the build, a file manager keeps them once set, so it is only shared between builds agreeing on all of them.
+    private record Dependencies(Charset charset, List<String> locations, List<Path> paths) { }
+    
+    private record Warm(JavacFileManager fileManager, Map<Path, String> checksums) { }
+    
+    public static final String PORT_FILE = "javac-daemon.port";
+    
+    public static final Set<String>
+            PATH_OPTIONS         = Set.of("-cp", "-classpath", "--class-path", "-p", "--module-path", "--upgrade-module-path", "-processorpath", "--processor-path", "--processor-module-path",
+            "-sourcepath", "--source-path", "--module-source-path", "--patch-module", "--system", "-bootclasspath", "--boot-class-path", "-d", "-s", "-h"),
+            FILE_MANAGER_OPTIONS = Stream.concat(PATH_OPTIONS.stream(), Stream.of("-encoding", "--release", "--multi-release")).collect(Collectors.toUnmodifiableSet());
+    
+    @Getter
+    Path stateDir;
+    
+    String token;
+    
+    ServerSocketChannel server;
+    
+    RPCContext rpcContext = rpcContext(AsyncHelper.newVirtualThreadExecutor("javac-daemon"));
+    
+    // Builds share the warm file managers and incremental contexts, so they run one at a time.
+    ReentrantLock lock = { };
+    
+    HashMap<Dependencies, Warm> fileManagers = { };
+    
+    HashMap<Path, IncrementalContext> incrementalContexts = { };
+    
+    HashMap<Dependencies, DependencySymbols> dependencySymbols = { };
+    
+    ConcurrentHashMap<Path, Checksum> checksums = { };
+    
+    AtomicInteger builds = { }, reused = { }, adopted = { };
+    
+    CompletableFuture<Void> closed = { };
+    
+    @SneakyThrows
+    public JavacDaemon(final Path stateDir = defaultStateDir()) {
+        this.stateDir = stateDir;
+        token = HexFormat.of().formatHex(new SecureRandom().generateSeed(16));
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final Path temp = ownerOnly(stateDir) / STR."\{PORT_FILE}.tmp";
+        Files.deleteIfExists(temp);
+        // The token is the only thing keeping other local users out, so the file is never readable by them, not even before its permissions could be changed.
+        try (final SeekableByteChannel channel = posix(temp) ?
+                Files.newByteChannel(temp, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))) :
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = StandardCharsets.UTF_8.encode(STR."\{((InetSocketAddress) server.getLocalAddress()).getPort()}:\{token}");
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        Files.move(temp, stateDir / PORT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public static Path defaultStateDir() = Path.of(Environment.local().lookup("MAHO_JAVAC_DAEMON", STR."\{System.getProperty("user.home")}/Maho/javac-daemon"));
+    
+    private static boolean posix(final Path path) = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    
+    @SneakyThrows
+    private static Path ownerOnly(final Path stateDir) {
+        if (!posix(stateDir))
+            return ~stateDir;
+        if (stateDir.toAbsolutePath().getParent() != null)
+            Files.createDirectories(stateDir.toAbsolutePath().getParent());
+        if (!Files.isDirectory(stateDir))
+            try {
+                Files.createDirectory(stateDir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } catch (final FileAlreadyExistsException ignored) { }
+        Files.setPosixFilePermissions(stateDir, PosixFilePermissions.fromString("rwx------"));
+        return stateDir;
+    }
+    
+    // The daemon resolves relative paths in its own working directory, so the client resolves every path valued option in its one first.
+    public static List<String> absoluteOptions(final List<String> options) {
+        final ArrayList<String> result = { };
+        for (int i = 0; i < options.size(); i++) {
+            final String option = options[i];
+            final int equals = option.indexOf('=');
+            if (option.startsWith("--") && equals != -1 && PATH_OPTIONS.contains(option.substring(0, equals)))
+                result += STR."\{option.substring(0, equals)}=\{absolutePaths(option.substring(0, equals), option.substring(equals + 1))}";
+            else if (PATH_OPTIONS.contains(option) && i + 1 < options.size()) {
+                result += option;
+                result += absolutePaths(option, options[++i]);
+            } else
+                result += option;
+        }
+        return result;
+    }
+    
+    // Module specific values look like module=paths, the module source path may also be a pattern, java.io.File leaves its wildcards alone.
+    private static String absolutePaths(final String option, final String value) {
+        if (option.equals("--system") && value.equals("none"))
+            return value;
+        final int equals = option.equals("--patch-module") || option.equals("--module-source-path") ? value.indexOf('=') : -1;
+        final String paths = Stream.of(value.substring(equals + 1).split(File.pathSeparator, -1))
+                .map(path -> path.isEmpty() ? path : new File(path).getAbsolutePath())
+                .collect(Collectors.joining(File.pathSeparator));
+        return equals == -1 ? paths : STR."\{value.substring(0, equals)}=\{paths}";
+    }
+    
+    public static RPCContext rpcContext(final Executor executor) {
+        final Serializer.Base base = { };
+        return { executor, new Serializer.Root(base, new Serializer.Context.Base(base)), new Class<?>[]{ Service.class } };
+    }
+    
+    // Blocks until the daemon is shut down.
+    @SneakyThrows
+    public void serve() {
+        while (!closed.isDone()) {
+            final SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (final ClosedChannelException e) { break; }
+            final RPCChannel connection = { channel, rpcContext };
+            connection.localInstances()[Service.class] = this;
+            connection.runLoop();
+        }
+    }
+    
+    private void authenticate(final String token) {
+        if (!this.token.equals(token))
+            throw new SecurityException("Invalid javac daemon token");
+    }
+    
+    @Override
+    @SneakyThrows
+    public Result compile(final String token, final Build build) {
+        authenticate(token);
+        lock.lock();
+        try {
+            builds.incrementAndGet();
+            final StringWriter output = { };
+            final PrintWriter writer = { output, true };
+            final Javac.Request request = { Stream.of(build.paths()).map(Path::of).toList(), List.of(build.options()), Locale.getDefault(), Charset.forName(build.charset()), null, writer };
+            final Dependencies dependencies = { request.charset(), locations(request.options()), dependencies(request.options()) };
+            final Warm warm = warm(dependencies);
+            final DispatchContext context = { };
+            // Taken out for the duration of the build, only a successful one hands its symbols on.
+            final @Nullable DependencySymbols symbols = dependencySymbols.remove(dependencies);
+            if (symbols != null && symbols.matches(request.options(), warm.checksums())) {
+                symbols.install(context);
+                adopted.incrementAndGet();
+            }
+            request.generateCompileContext(context, warm.fileManager());
+            final @Nullable Path incrementalDir = build.incremental() == null ? null : Path.of(build.incremental());
+            final @Nullable IncrementalContext incremental = incrementalDir == null ? null : incrementalContexts.computeIfAbsent(incrementalDir, IncrementalContext.Serializer::deserialize);
+            if (incremental != null) {
+                incremental.beginCompilation();
+                context.sharedKeys()[IncrementalContext.incrementalContextKey] = true;
+                context.put(IncrementalContext.incrementalContextKey, incremental);
+            }
+            boolean success = false;
+            int errors = 0, warnings = 0;
+            try (final Javac.CompileTask.Parallel task = { request, context }) {
+                try {
+                    task.compile();
+                    success = true;
+                    final @Nullable DependencySymbols captured = DependencySymbols.capture(context, request.options(), warm.checksums());
+                    if (captured != null)
+                        dependencySymbols[dependencies] = captured;
+                } catch (final Javac.Failure failure) {
+                    writer.println(failure.getMessage());
+                    DebugHelper.breakpoint(failure);
+                }
+                final DispatchCompiler compiler = task.compiler();
+                errors = compiler.errorCount();
+                warnings = compiler.warningCount();
+            }
+            if (incremental != null)
+                if (success)
+                    IncrementalContext.Serializer.serialize(incremental, incrementalDir);
+                else // A failed build may have recorded half of its classes, the next one starts from the store again.
+                    incrementalContexts.remove(incrementalDir);
+            writer.flush();
+            return { success, errors, warnings, output.toString() };
+        } finally { lock.unlock(); }
+    }
+    
+    private static List<String> locations(final List<String> options) {
+        final ArrayList<String> result = { };
+        for (int i = 0; i < options.size(); i++) {
+            final String option = options[i];
+            final int equals = option.indexOf('=');
+            if (option.startsWith("--") && equals != -1 && FILE_MANAGER_OPTIONS.contains(option.substring(0, equals)))
+                result += option;
+            else if (FILE_MANAGER_OPTIONS.contains(option) && i + 1 < options.size())
+                result += STR."\{option}=\{options[++i]}";
+        }
+        return result;
+    }
+    
+    private static List<Path> dependencies(final List<String> options) {
+        final ArrayList<Path> result = { };
+        for (int i = 0; i < options.size() - 1; i++)
+            switch (options[i]) {
+                case "-p",
+                     "--module-path",
+                     "-cp",
+                     "-classpath",
+                     "--class-path",
+                     "--upgrade-module-path" -> Stream.of(options[++i].split(File.pathSeparator))
+                        .filterNot(String::isEmpty)
+                        .map(Path::of)
+                        .map(Path::toAbsolutePath)
+                        .filter(Files::isRegularFile)
+                        .forEach(result::add);
+            }
+        return result;
+    }
+    
+    // A file manager keeps the jars it has opened, it is only reused while every one of them still has the checksum it had then.
+    @SneakyThrows
+    private Warm warm(final Dependencies dependencies) {
+        final HashMap<Path, String> current = { };
+        dependencies.paths().forEach(dependency -> current[dependency] = checksum(dependency));
+        final @Nullable Warm warm = fileManagers[dependencies];
+        if (warm != null) {
+            if (warm.checksums().equals(current)) {
+                reused.incrementAndGet();
+                return warm;
+            }
+            fileManagers.remove(dependencies);
+            dependencySymbols.remove(dependencies);
+            warm.fileManager().close();
+        }
+        final JavacFileManager fileManager = { new Context(), false, dependencies.charset() };
+        final Warm result = { fileManager, current };
+        fileManagers[dependencies] = result;
+        return result;
+    }
+    
+    // Jars are only hashed again once their size or modification time changed.
+    @SneakyThrows
+    private String checksum(final Path jar) {
+        final ArtifactIndex.Stamp stamp = ArtifactIndex.Stamp.of(jar)!;
+        final @Nullable Checksum checksum = checksums[jar];
+        if (checksum != null && checksum.stamp().equals(stamp))
+            return checksum.value();
+        final String value = ChecksumHelper.checksum(jar, "SHA-1");
+        checksums[jar] = new Checksum(stamp, value);
+        return value;
+    }
+    
+    @Override
+    public String status(final String token) {
+        authenticate(token);
+        return STR."builds: \{builds.get()}, warm file managers: \{fileManagers.size()} (reused \{reused.get()} time(s)), dependency symbols: \{dependencySymbols.size()} (adopted \{adopted.get()} time(s)), incremental contexts: \{incrementalContexts.size()}";
+    }
+    
+    @Override
+    public void shutdown(final String token) {
+        authenticate(token);
+        close();
+    }
+    
+    @Override
+    @SneakyThrows
+    public void close() {
+        if (closed.complete(null)) {
+            server.close();
+            Files.deleteIfExists(stateDir / PORT_FILE);
+            lock.lock();
+            try {
+                for (final Warm warm : fileManagers.values())
+                    warm.fileManager().close();
+                fileManagers.clear();
+                dependencySymbols.clear();
+            } finally { lock.unlock(); }
+        }
+    }
+    
+    public static void main(final String... args) {
+        try (final JavacDaemon daemon = args.length > 0 ? new JavacDaemon(Path.of(args[0])) : new JavacDaemon()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+            daemon.serve();
+        }
+    }
+    
+}
@@ -0,0 +1,172 @@
+package amadeus.maho.util.bytecode;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.control.FunctionChain;
+import amadeus.maho.util.depend.ArtifactIndex;
+import amadeus.maho.util.dynamic.ClassLoaderLocal;
+import amadeus.maho.util.resource.ResourcePath;
+import amadeus.maho.util.tuple.Tuple;
+import amadeus.maho.util.tuple.Tuple2;
+
+import static amadeus.maho.util.concurrent.AsyncHelper.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/*
+ * Supertypes of the classes visible from a class loader, fed by the nodes of the transform pipeline, scanned resource paths and, as a last resort, class file resources.
+ * Every resolved node keeps its superclass chain indexed by depth, Object first, so a common superclass is the deepest index both chains agree on.
+ */
+@RequiredArgsConstructor(AccessLevel.PRIVATE)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ClassHierarchy {
+    
+    public record Header(int access, @Nullable String superName, String interfaces[]) {
+        
+        public static final Header unknown = { ACC_PUBLIC, ASMHelper.OBJECT_NAME, new String[0] };
+        
+        public static Header of(final ClassReader reader) = { reader.getAccess(), reader.getSuperName(), reader.getInterfaces() };
+        
+        public static Header of(final ClassNode node) = { node.access, node.superName, node.interfaces.toArray(String[]::new) };
+        
+    }
+    
+    public record Node(String name, Header header, String chain[]) {
+        
+        public int depth() = chain.length - 1;
+        
+        public boolean isInterface() = ASMHelper.anyMatch(header.access(), ACC_INTERFACE);
+        
+    }
+    
+    @Getter
+    private static final ClassLoaderLocal<ClassHierarchy> hierarchies = { ClassHierarchy::new };
+    
+    @Getter
+    @SneakyThrows
+    private static final FunctionChain<Tuple2<ClassLoader, String>, Header> headerMapper = new FunctionChain<Tuple2<ClassLoader, String>, Header>()
+            .add(target -> target.map(tuple -> {
+                try (final @Nullable InputStream resource = tuple.v1.getResourceAsStream(STR."\{tuple.v2}.class")) {
+                    return resource == null ? null : Header.of(new ClassReader(resource));
+                }
+            }));
+    
+    @Getter
+    ClassLoader loader;
+    
+    ConcurrentHashMap<String, Header> headers = { };
+    
+    ConcurrentHashMap<String, Node> nodes = { };
+    
+    // Names whose header came from the transform pipeline rather than from a class file.
+    Set<String> marked = ConcurrentHashMap.newKeySet();
+    
+    private static final ConcurrentHashMap<Path, String> fileStamps = { };
+    
+    public static ClassHierarchy of(final ClassLoader loader) = hierarchies().get(loader);
+    
+    // Array types and classes without a class file resolve to a direct subclass of Object, as the verifier sees them.
+    public Header header(final String name) {
+        final @Nullable Header header = headers[name];
+        if (header != null)
+            return header;
+        final @Nullable Header mapped = name.charAt(0) == '[' ? null : headerMapper().applyNullable(Tuple.tuple(loader, name));
+        final Header resolved = mapped ?? Header.unknown;
+        return headers.putIfAbsent(name, resolved) ?? resolved;
+    }
+    
+    public Node node(final String name) {
+        final @Nullable Node node = nodes[name];
+        if (node != null)
+            return node;
+        final Header header = name.equals(ASMHelper.OBJECT_NAME) ? new Header(ACC_PUBLIC, null, new String[0]) : header(name);
+        final String chain[];
+        if (header.superName() == null)
+            chain = new String[]{ name };
+        else {
+            final String superChain[] = node(header.superName()).chain();
+            chain = Arrays.copyOf(superChain, superChain.length + 1);
+            chain[superChain.length] = name;
+        }
+        final Node resolved = { name, header, chain };
+        return nodes.putIfAbsent(name, resolved) ?? resolved;
+    }
+    
+    // Identifies where the header of a type comes from without reading it: the header itself when the transform pipeline marked it, else the class file and the stamp of the file holding it.
+    // A header stays the same while its origin does, so results computed from a set of headers can be checked against their origins alone.
+    public String origin(final String name) {
+        if (marked.contains(name) && headers[name] instanceof Header header)
+            return STR."M\{header.access()} \{header.superName()} \{String.join(",", header.interfaces())}";
+        final @Nullable URL url = name.charAt(0) == '[' ? null : loader.getResource(STR."\{name}.class");
+        return url == null ? "-" : STR."\{url}@\{fileStamp(url)}";
+    }
+    
+    @SneakyThrows
+    private static String fileStamp(final URL url) = switch (url.getProtocol()) {
+        case "jrt"  -> Runtime.version().toString();
+        case "file" -> fileStamp(Path.of(url.toURI()));
+        case "jar"  -> {
+            final String path = url.getPath();
+            final int separator = path.indexOf("!/");
+            yield separator == -1 ? "" : fileStamp(Path.of(new URI(path.substring(0, separator))));
+        }
+        default     -> "";
+    };
+    
+    // Jars are stamped once per process, the classes of a running application are not expected to change underneath it.
+    private static String fileStamp(final Path path) = fileStamps.computeIfAbsent(path, it -> String.valueOf(ArtifactIndex.Stamp.of(it)));
+    
+    public void mark(final ClassNode node) = mark(node.name, Header.of(node));
+    
+    // A class whose supertypes changed invalidates every chain, the chains of its subclasses were built on the old ones.
+    public void mark(final String name, final Header header) {
+        final @Nullable Header previous = headers.put(name, header);
+        marked += name;
+        if (previous != null && (!Objects.equals(previous.superName(), header.superName()) || previous.access() != header.access()))
+            nodes.clear();
+    }
+    
+    @SneakyThrows
+    public void populate(final ResourcePath path, final @Nullable Executor executor = null) = await(path.classes().map(info -> async(() -> {
+        final ClassReader reader = { info.readAll() };
+        headers.putIfAbsent(reader.getClassName(), Header.of(reader));
+    }, executor)));
+    
+    public String commonSuperClass(final String type1, final String type2) = commonSuperClass(node(type1), node(type2));
+    
+    public static String commonSuperClass(final Node node1, final Node node2) {
+        if (node1.isInterface() || node2.isInterface())
+            return ASMHelper.OBJECT_NAME;
+        return commonSuperClass(node1.chain(), node2.chain());
+    }
+    
+    // Both chains agree up to some depth and differ below it, so the deepest agreeing depth can be searched for.
+    public static String commonSuperClass(final String chain1[], final String chain2[]) {
+        int low = -1, high = Math.min(chain1.length, chain2.length) - 1;
+        while (low < high) {
+            final int mid = low + high + 1 >>> 1;
+            if (chain1[mid].equals(chain2[mid]))
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low == -1 ? ASMHelper.OBJECT_NAME : chain1[low];
+    }
+    
+}
@@ -1,15 +1,16 @@
 package amadeus.maho.util.bytecode;
 
-import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.ToIntFunction;
-
-import jdk.internal.org.objectweb.asm.ClassReader;
+import java.util.stream.Stream;
 
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -19,14 +20,9 @@ import amadeus.maho.lang.AccessLevel;
 import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.Setter;
-import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.bytecode.context.TransformContext;
 import amadeus.maho.util.bytecode.traverser.MethodTraverser;
-import amadeus.maho.util.control.FunctionChain;
-import amadeus.maho.util.dynamic.ClassLoaderLocal;
-import amadeus.maho.util.tuple.Tuple;
-import amadeus.maho.util.tuple.Tuple2;
 
 import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
 
@@ -38,32 +34,40 @@ public class ClassWriter extends org.objectweb.asm.ClassWriter {
     @Getter
     private static final Optional<String> defaultSuperName = Optional.of(ASMHelper.OBJECT_NAME);
     
-    @Getter
-    private static final ClassLoaderLocal<ConcurrentHashMap<String, LinkedList<String>>> superCache = { name -> new ConcurrentHashMap<>() };
-    
-    @Getter
-    @SneakyThrows
-    private static final FunctionChain<Tuple2<ClassLoader, String>, String> inheritanceChainMapper = new FunctionChain<Tuple2<ClassLoader, String>, String>()
-            .add(target -> target.map(tuple -> {
-                final @Nullable InputStream resource = tuple.v1.getResourceAsStream(STR."\{tuple.v2}.class");
-                return resource == null ? null : new ClassReader(resource).getSuperName();
-            }))
-            .add(_ -> defaultSuperName());
-    
-    protected void lookupSuper(final ClassLoader loader, final String name, final LinkedList<String> result) {
-        result << name;
-        if (!name.equals(ASMHelper.OBJECT_NAME)) {
-            final String superName = name.equals(name()) ? superName() : inheritanceChain(loader, name);
-            lookupSuper(loader, superName, result);
+    // The class being written may not be visible from the loader yet, its own chain is derived from the marked super name.
+    protected String[] superChain(final String name) {
+        if (name.equals(name()) && superName() != null) {
+            resolved += superName();
+            final String superChain[] = hierarchy().node(superName()).chain();
+            final String chain[] = Arrays.copyOf(superChain, superChain.length + 1);
+            chain[superChain.length] = name;
+            return chain;
         }
+        resolved += name;
+        return hierarchy().node(name).chain();
+    }
+    
+    protected boolean isInterface(final String name) {
+        if (name.equals(name()))
+            return itf();
+        resolved += name;
+        return hierarchy().node(name).isInterface();
     }
     
-    protected String inheritanceChain(final ClassLoader loader, final String name) = inheritanceChainMapper().applyNullable(Tuple.tuple(loader, name));
+    // The origins of every header that frames computed by this writer depend on, the resolved types and their superclasses, keyed by name.
+    public Map<String, String> dependencies() {
+        final ClassHierarchy hierarchy = hierarchy();
+        final LinkedHashMap<String, String> result = { };
+        resolved.forEach(name -> Stream.of(hierarchy.node(name).chain()).forEach(member -> result.computeIfAbsent(member, hierarchy::origin)));
+        return result;
+    }
     
-    public LinkedList<String> lookupSuper(final ClassLoader loader, final String name) = superCache().get(loader).computeIfAbsent(name, it -> new LinkedList<String>().let(result -> lookupSuper(loader, it, result)));
+    public ClassHierarchy hierarchy() = ClassHierarchy.of(loader());
     
     final ClassLoader loader;
     
+    final Set<String> resolved = ConcurrentHashMap.newKeySet();
+    
     boolean itf;
     
     String name, superName, interfaces[];
@@ -88,16 +92,9 @@ public class ClassWriter extends org.objectweb.asm.ClassWriter {
             return type1;
         if (type1.equals(ASMHelper.OBJECT_NAME) || type2.equals(ASMHelper.OBJECT_NAME))
             return ASMHelper.OBJECT_NAME;
-        final LinkedList<String> superChain1 = lookupSuper(loader(), type1);
-        if (superChain1.contains(type2))
-            return type2;
-        final LinkedList<String> superChain2 = lookupSuper(loader(), type2);
-        if (superChain2.contains(type1))
-            return type1;
-        return superChain1.stream()
-                .filter(superChain2::contains)
-                .findFirst()
-                .orElse(ASMHelper.OBJECT_NAME);
+        if (isInterface(type1) || isInterface(type2))
+            return ASMHelper.OBJECT_NAME;
+        return ClassHierarchy.commonSuperClass(superChain(type1), superChain(type2));
     }
     
     @Override
@@ -1,7 +1,9 @@
 package amadeus.maho.util.bytecode.context;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.function.ToIntFunction;
 
@@ -15,6 +17,7 @@ import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
 import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.transform.ClassTransformer;
 import amadeus.maho.util.bytecode.ClassWriter;
 import amadeus.maho.util.bytecode.traverser.MethodTraverser;
 
@@ -42,15 +45,27 @@ public class TransformContext {
     
     boolean modified;
     
+    // Set once a runtime loader id was embedded, such ids are only valid in the process that assigned them.
+    boolean loaderBound;
+    
     final Set<MethodNode> shouldComputeMethods = new HashSet<>();
     
+    // Transformers that actually rewrote the class, in order.
+    final List<ClassTransformer> applied = new ArrayList<>();
+    
     public boolean aot() = loaderIndexed() != DynamicLookupHelper.loaderIndexed;
     
     @Extension.Operator("GET")
-    public int id(final ClassLoader loader) = loaderIndexed().applyAsInt(loader);
+    public int id(final ClassLoader loader) {
+        if (!aot())
+            loaderBound = true;
+        return loaderIndexed().applyAsInt(loader);
+    }
     
     public self markModified() = modified = true;
     
+    public self markApplied(final ClassTransformer transformer) = applied() += transformer;
+    
     public self markCompute(final ClassNode node) = shouldComputeMethods() *= node.methods;
     
     public self markCompute(final MethodNode methodNode) = shouldComputeMethods() += methodNode;
@@ -8,6 +8,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -34,6 +35,11 @@ public interface AsyncHelper {
     static Executor newThreadExecutor(final String name, final boolean daemon = false, final @Nullable ThreadGroup group = null, final boolean inheritThreadLocals = true, final long stackSize = 0L)
             = task -> new Thread(group, task, name, stackSize, inheritThreadLocals).let(it -> it.setDaemon(daemon)).start();
     
+    static Executor newVirtualThreadExecutor(final String name) {
+        final ThreadFactory factory = Thread.ofVirtual().name(STR."\{name}-", 0L).factory();
+        return task -> factory.newThread(task).start();
+    }
+    
     static Executor contextExecutor(final Thread thread) = executorContext()[thread] ?? defaultExecutor();
     
     static void contextExecutor(final Thread thread, final @Nullable Executor executor) {
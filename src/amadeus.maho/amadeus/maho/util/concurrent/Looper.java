@@ -66,12 +66,14 @@ public class Looper implements Runnable {
         
         @Override
         protected void tick() {
-            if ((bus().get() >> pre()).cancel())
+            final EventBus bus = bus().get();
+            if ((bus >> pre()).cancel())
                 pre().cancel(false);
             else {
                 super.tick();
-                bus().get() >> post();
+                bus >> post();
             }
+            bus.flush();
         }
         
     }
@@ -1,10 +1,21 @@
 package amadeus.maho.util.data;
 
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -23,7 +34,6 @@ import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.VisitorChain;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.dynamic.DynamicObject;
-import amadeus.maho.util.dynamic.FieldsMap;
 import amadeus.maho.util.language.parsing.ParseException;
 import amadeus.maho.util.runtime.TypeHelper;
 
@@ -60,116 +70,96 @@ public interface JSON {
         
         final StringBuilder builder = { 1 << 12 };
         
+        // Whether the next key or value has to be preceded by a comma, this lets the writer be driven by plain visitor callbacks as well.
+        boolean separator;
+        
+        protected StringBuilder separate() {
+            if (separator)
+                builder.append(',');
+            separator = true;
+            return builder;
+        }
+        
         @Override
-        public void beginObject() = builder.append('{');
+        public void beginObject() {
+            separate().append('{');
+            separator = false;
+        }
         
         @Override
-        public void endObject() = builder.append('}');
+        public void endObject() {
+            builder.append('}');
+            separator = true;
+        }
         
         @Override
-        public void beginArray() = builder.append('[');
+        public void beginArray() {
+            separate().append('[');
+            separator = false;
+        }
         
         @Override
-        public void endArray() = builder.append(']');
+        public void endArray() {
+            builder.append(']');
+            separator = true;
+        }
         
         @Override
-        public void visitKey(final String key) = builder.append('"').append(key).append('"').append(':');
+        public void visitKey(final String key) {
+            separate().append('"').append(key).append('"').append(':');
+            separator = false;
+        }
         
         @Override
         @SneakyThrows
         public void visitValue(final @Nullable Object value) = switch (value) {
-            case null                  -> builder.append("null");
+            case null                  -> separate().append("null");
             case DynamicObject dynamic -> {
                 switch (dynamic) {
-                    case DynamicObject.NullUnit ignored      -> builder.append("null");
-                    case DynamicObject.StringUnit stringUnit -> builder.append('"').append(stringUnit.asString()).append('"');
+                    case DynamicObject.NullUnit ignored      -> separate().append("null");
+                    case DynamicObject.StringUnit stringUnit -> separate().append('"').append(stringUnit.asString()).append('"');
                     case DynamicObject.ArrayUnit arrayUnit   -> {
                         beginArray();
-                        final List<DynamicObject> list = arrayUnit.asList();
-                        final int length = list.size();
-                        if (length > 0) {
-                            int index = 0;
-                            visitValue(list[0]);
-                            while (++index < length) {
-                                builder.append(',');
-                                visitValue(list[index]);
-                            }
-                        }
+                        arrayUnit.asList().forEach(this::visitValue);
                         endArray();
                     }
                     case DynamicObject.MapUnit mapUnit       -> {
                         beginObject();
-                        final boolean p_flag[] = { false };
                         mapUnit.asMap().forEach((name, object) -> {
-                            if (p_flag[0])
-                                builder.append(',');
-                            else
-                                p_flag[0] = true;
                             visitKey(name);
                             visitValue(object);
                         });
                         endObject();
                     }
                     case DynamicObject.ObjectUnit objectUnit -> visitValue(objectUnit.as());
-                    default                                  -> builder.append(dynamic);
+                    default                                  -> separate().append(dynamic);
                 }
             }
             default                    -> {
                 final Class<?> type = value.getClass();
                 if (TypeHelper.isSimple(type) || Number.class.isAssignableFrom(type))
-                    builder.append(value);
+                    separate().append(value);
                 else if (CharSequence.class.isAssignableFrom(type))
-                    builder.append('"').append(value).append('"');
+                    separate().append('"').append(value).append('"');
                 else if (type.isArray()) {
                     beginArray();
                     final int length = Array.getLength(value);
-                    if (length > 0) {
-                        int index = 0;
-                        visitValue(Array.get(value, 0));
-                        while (++index < length) {
-                            builder.append(',');
-                            visitValue(Array.get(value, index));
-                        }
-                    }
+                    for (int index = 0; index < length; index++)
+                        visitValue(Array.get(value, index));
                     endArray();
                 } else if (List.class.isAssignableFrom(type)) {
                     beginArray();
-                    final List<?> list = (List<?>) value;
-                    final int length = list.size();
-                    if (length > 0) {
-                        int index = 0;
-                        visitValue(list[0]);
-                        while (++index < length) {
-                            builder.append(',');
-                            visitValue(list[index]);
-                        }
-                    }
+                    ((List<?>) value).forEach(this::visitValue);
                     endArray();
                 } else if (Map.class.isAssignableFrom(type)) {
                     beginObject();
-                    final boolean p_flag[] = { false };
                     ((Map<Object, Object>) value).forEach((name, object) -> {
-                        if (p_flag[0])
-                            builder.append(',');
-                        else
-                            p_flag[0] = true;
                         visitKey(name.toString());
                         visitValue(object);
                     });
                     endObject();
-                } else {
-                    beginObject();
-                    final boolean p_flag[] = { false };
-                    FieldsMap.fieldsMapLocal()[type].forEach((name, info) -> {
-                        if (p_flag[0])
-                            builder.append(',');
-                        else
-                            p_flag[0] = true;
-                        visitKey(name);
-                        visitValue(info.getter().invoke(value));
-                    });
-                    endObject();
-                }
+                } else
+                    JSONCodec.of((Class<Object>) type).write(this, value);
             }
         };
         
@@ -205,6 +195,399 @@ public interface JSON {
         
     }
     
+    // Hands the text over to the channel whenever the buffer grows past the threshold, so only the pending tail of the document stays in memory.
+    @FieldDefaults(level = AccessLevel.PROTECTED, makeFinal = true)
+    class StreamWriter extends Writer implements Flushable, Closeable {
+        
+        WritableByteChannel channel;
+        
+        @Nullable OutputStream output;
+        
+        CharsetEncoder encoder;
+        
+        ByteBuffer bytes = ByteBuffer.allocate(1 << 13);
+        
+        int threshold;
+        
+        protected StreamWriter(final WritableByteChannel channel, final @Nullable OutputStream output, final Charset charset, final int threshold) {
+            this.channel = channel;
+            this.output = output;
+            this.threshold = threshold;
+            encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        
+        public StreamWriter(final WritableByteChannel channel, final Charset charset = StandardCharsets.UTF_8, final int threshold = 1 << 16) = this(channel, null, charset, threshold);
+        
+        public StreamWriter(final OutputStream output, final Charset charset = StandardCharsets.UTF_8, final int threshold = 1 << 16) = this(Channels.newChannel(output), output, charset, threshold);
+        
+        @Override
+        @SneakyThrows
+        public void visitValue(final @Nullable Object value) {
+            super.visitValue(value);
+            if (builder.length() >= threshold)
+                drain(false);
+        }
+        
+        // A trailing high surrogate stays in the builder until its pair arrives.
+        protected void drain(final boolean endOfInput) throws IOException {
+            final CharBuffer chars = CharBuffer.wrap(builder);
+            while (encoder.encode(chars, bytes, endOfInput).isOverflow())
+                spill();
+            builder.delete(0, chars.position());
+            if (endOfInput)
+                while (encoder.flush(bytes).isOverflow())
+                    spill();
+            spill();
+        }
+        
+        protected void spill() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            bytes.clear();
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            drain(false);
+            if (output != null)
+                output.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                drain(true);
+            } finally { channel.close(); }
+        }
+        
+    }
+    
+    /*
+     * Pull parser over a character source, only one chunk of the input is held at a time.
+     * Containers are tracked with an explicit state stack, so the nesting depth is not bounded by the call stack.
+     */
+    @FieldDefaults(level = AccessLevel.PROTECTED)
+    class Reader implements AutoCloseable {
+        
+        public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, KEY, VALUE, END }
+        
+        @FunctionalInterface
+        public interface Source {
+            
+            // Appends decoded characters to the buffer, returns -1 once the input is exhausted.
+            int read(CharBuffer buffer) throws IOException;
+            
+        }
+        
+        protected static final byte OBJECT_FIRST = 0, OBJECT_COLON = 1, OBJECT_NEXT = 2, ARRAY_FIRST = 3, ARRAY_NEXT = 4;
+        
+        final Source source;
+        
+        final @Nullable AutoCloseable resource;
+        
+        final @Nullable String debugInfo;
+        
+        final CharBuffer buffer;
+        
+        final StringBuilder text = { 1 << 6 };
+        
+        byte stack[] = new byte[1 << 5];
+        
+        int depth;
+        
+        boolean started, eof;
+        
+        // Characters discarded with previous chunks, only used to report positions.
+        long consumed;
+        
+        @Nullable String key;
+        
+        @Nullable Object value;
+        
+        // Numbers are narrowed to Long / Double where that is exact, unless every number has to stay a BigDecimal as it does for the visitor based JSON.read.
+        boolean exactNumbers;
+        
+        public Reader(final Source source, final @Nullable AutoCloseable resource = null, final @Nullable String debugInfo = null, final int chunkSize = 1 << 13) {
+            this.source = source;
+            this.resource = resource;
+            this.debugInfo = debugInfo;
+            buffer = CharBuffer.allocate(chunkSize).flip();
+        }
+        
+        public @Nullable String key() = key;
+        
+        public @Nullable Object value() = value;
+        
+        public int depth() = depth;
+        
+        public Reader exactNumbers() {
+            exactNumbers = true;
+            return this;
+        }
+        
+        public Token next() {
+            final int c = skipWhitespace();
+            if (depth == 0) {
+                if (started) {
+                    if (c != -1)
+                        throw invalid(c);
+                    return Token.END;
+                }
+                started = true;
+                return scanValue(c);
+            }
+            return switch (stack[depth - 1]) {
+                case OBJECT_FIRST -> {
+                    if (c == '}')
+                        yield pop(Token.END_OBJECT);
+                    if (c != '"')
+                        throw invalid(c);
+                    skip();
+                    key = scanString();
+                    stack[depth - 1] = OBJECT_COLON;
+                    yield Token.KEY;
+                }
+                case OBJECT_COLON -> {
+                    if (c != ':')
+                        throw invalid(c);
+                    skip();
+                    stack[depth - 1] = OBJECT_NEXT;
+                    yield scanValue(skipWhitespace());
+                }
+                case ARRAY_FIRST  -> {
+                    if (c == ']')
+                        yield pop(Token.END_ARRAY);
+                    stack[depth - 1] = ARRAY_NEXT;
+                    yield scanValue(c);
+                }
+                case OBJECT_NEXT,
+                     ARRAY_NEXT   -> {
+                    final boolean object = stack[depth - 1] == OBJECT_NEXT;
+                    if (c == (object ? '}' : ']'))
+                        yield pop(object ? Token.END_OBJECT : Token.END_ARRAY);
+                    if (c != ',')
+                        throw invalid(c);
+                    skip();
+                    // A trailing comma is tolerated, the same as the string based parser does.
+                    stack[depth - 1] = object ? OBJECT_FIRST : ARRAY_FIRST;
+                    yield next();
+                }
+                default           -> throw new IllegalStateException(STR."Unexpected state: \{stack[depth - 1]}");
+            };
+        }
+        
+        public void accept(final Visitor visitor) {
+            for (Token token; (token = next()) != Token.END; )
+                visit(visitor, token);
+        }
+        
+        // Feeds the single value starting with the given token, nested containers included.
+        public void accept(final Visitor visitor, final Token token) {
+            final int base = token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY ? depth - 1 : depth;
+            visit(visitor, token);
+            while (depth > base)
+                visit(visitor, next());
+        }
+        
+        public void skipValue(final Token token) {
+            if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY) {
+                final int base = depth - 1;
+                while (depth > base)
+                    next();
+            }
+        }
+        
+        protected void visit(final Visitor visitor, final Token token) {
+            switch (token) {
+                case BEGIN_OBJECT -> visitor.beginObject();
+                case END_OBJECT   -> visitor.endObject();
+                case BEGIN_ARRAY  -> visitor.beginArray();
+                case END_ARRAY    -> visitor.endArray();
+                case KEY          -> visitor.visitKey(key);
+                case VALUE        -> visitor.visitValue(value);
+                case END          -> throw invalid(-1);
+            }
+        }
+        
+        protected Token scanValue(final int c) {
+            switch (c) {
+                case '"' -> {
+                    skip();
+                    value = scanString();
+                }
+                case '{' -> {
+                    skip();
+                    push(OBJECT_FIRST);
+                    return Token.BEGIN_OBJECT;
+                }
+                case '[' -> {
+                    skip();
+                    push(ARRAY_FIRST);
+                    return Token.BEGIN_ARRAY;
+                }
+                case 't' -> {
+                    expect("true");
+                    value = Boolean.TRUE;
+                }
+                case 'f' -> {
+                    expect("false");
+                    value = Boolean.FALSE;
+                }
+                case 'n' -> {
+                    expect("null");
+                    value = null;
+                }
+                case '-',
+                     '+',
+                     '0',
+                     '1',
+                     '2',
+                     '3',
+                     '4',
+                     '5',
+                     '6',
+                     '7',
+                     '8',
+                     '9' -> value = scanNumber();
+                default  -> throw invalid(c);
+            }
+            return Token.VALUE;
+        }
+        
+        // Strings that end within the current chunk and contain no escapes are copied straight out of the buffer.
+        protected String scanString() {
+            text.setLength(0);
+            while (true) {
+                if (!buffer.hasRemaining() && !fill())
+                    throw invalid(-1);
+                final char array[] = buffer.array();
+                final int start = buffer.position(), limit = buffer.limit();
+                int index = start;
+                while (index < limit && array[index] != '"' && array[index] != '\\')
+                    index++;
+                buffer.position(Math.min(index + 1, limit));
+                if (index == limit)
+                    text.append(array, start, index - start);
+                else if (array[index] == '"')
+                    return text.isEmpty() ? new String(array, start, index - start) : text.append(array, start, index - start).toString();
+                else
+                    text.append(array, start, index - start).append(scanEscape());
+            }
+        }
+        
+        protected char scanEscape() {
+            final int c = read();
+            return switch (c) {
+                case '\\',
+                     '/',
+                     '"' -> (char) c;
+                case 'b' -> '\b';
+                case 'f' -> '\f';
+                case 'n' -> '\n';
+                case 'r' -> '\r';
+                case 't' -> '\t';
+                case 'u' -> {
+                    // Surrogate pairs are two consecutive escapes, appending both halves restores the code point.
+                    char result = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int hex = read();
+                        final int digit = hex > -1 && hex < hexTable.length ? hexTable[hex] : -1;
+                        if (digit == -1)
+                            throw invalid(hex);
+                        result = (char) (result << 4 | digit);
+                    }
+                    yield result;
+                }
+                default  -> throw invalid(c);
+            };
+        }
+        
+        protected Number scanNumber() {
+            text.setLength(0);
+            for (int c; (c = peek()) != -1 && !token.test(c); skip())
+                text.append((char) c);
+            return exactNumbers ? new BigDecimal(text.toString()) : number(text);
+        }
+        
+        protected void expect(final String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                final int c = read();
+                if (c != literal.charAt(i))
+                    throw invalid(c);
+            }
+        }
+        
+        protected int skipWhitespace() {
+            for (int c; (c = peek()) != -1; skip())
+                if (!ws.test(c))
+                    return c;
+            return -1;
+        }
+        
+        protected void push(final byte state) {
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth << 1);
+            stack[depth++] = state;
+        }
+        
+        protected Token pop(final Token token) {
+            depth--;
+            skip();
+            return token;
+        }
+        
+        protected int peek() = buffer.hasRemaining() || fill() ? buffer.get(buffer.position()) : -1;
+        
+        protected int read() = buffer.hasRemaining() || fill() ? buffer.get() : -1;
+        
+        protected void skip() = buffer.position(buffer.position() + 1);
+        
+        @SneakyThrows
+        protected boolean fill() {
+            if (eof)
+                return false;
+            consumed += buffer.limit();
+            buffer.clear();
+            int count;
+            do
+                count = source.read(buffer);
+            while (count == 0);
+            buffer.flip();
+            return !(eof = count == -1);
+        }
+        
+        protected ParseException invalid(final int c) {
+            final int position = (int) Math.min(consumed + buffer.position(), Integer.MAX_VALUE);
+            return c == -1 ? new ParseException("Unexpected end of file.", debugInfo, position) : new ParseException(STR."Invalid character: '\{(char) c}'", debugInfo, position);
+        }
+        
+        @Override
+        @SneakyThrows
+        public void close() {
+            if (resource != null)
+                resource.close();
+        }
+        
+        public static Reader of(final java.io.Reader reader, final @Nullable String debugInfo = null) = new Reader(reader::read, reader, debugInfo);
+        
+        public static Reader of(final InputStream input, final Charset charset = StandardCharsets.UTF_8, final @Nullable String debugInfo = null) = of(new InputStreamReader(input, charset), debugInfo);
+        
+        // Decodes lazily, a mapped file can be parsed without copying it onto the heap first.
+        public static Reader of(final ByteBuffer input, final Charset charset = StandardCharsets.UTF_8, final @Nullable String debugInfo = null) {
+            final CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            return new Reader(target -> {
+                final int start = target.position();
+                if (input.hasRemaining())
+                    decoder.decode(input, target, true);
+                else if (decoder.flush(target).isUnderflow() && target.position() == start)
+                    return -1;
+                return target.position() - start;
+            }, null, debugInfo);
+        }
+        
+    }
+    
     @RequiredArgsConstructor
     @FieldDefaults(level = AccessLevel.PROTECTED)
     class Dynamic extends Visitor {
@@ -340,12 +723,14 @@ public interface JSON {
     static void read(final String source, final Visitor visitor, final @Nullable String debugInfo = source) = scanJsonBody(visitor, tokenization(source, debugInfo).root());
     
     static void read(final Path path, final Charset charset = StandardCharsets.UTF_8, final Visitor visitor, final @Nullable String debugInfo = path.toString()) throws IOException {
-        try (final var input = Files.newInputStream(path)) { read(input, charset, visitor, debugInfo); }
+        try (final Reader reader = Reader.of(Files.newInputStream(path), charset, debugInfo).exactNumbers()) { reader.accept(visitor); }
     }
     
-    @SneakyThrows
-    static void read(final InputStream input, final Charset charset = StandardCharsets.UTF_8, final Visitor visitor, final @Nullable String debugInfo)
-        = scanJsonBody(visitor, tokenization(input.readString(charset), debugInfo).root());
+    static void read(final InputStream input, final Charset charset = StandardCharsets.UTF_8, final Visitor visitor, final @Nullable String debugInfo) = Reader.of(input, charset, debugInfo).exactNumbers().accept(visitor);
+    
+    static void read(final java.io.Reader reader, final Visitor visitor, final @Nullable String debugInfo = null) = Reader.of(reader, debugInfo).exactNumbers().accept(visitor);
+    
+    static void read(final ByteBuffer input, final Charset charset = StandardCharsets.UTF_8, final Visitor visitor, final @Nullable String debugInfo = null) = Reader.of(input, charset, debugInfo).exactNumbers().accept(visitor);
     
     static void scanJsonBody(final Visitor visitor, final Context context) {
         scanValue(visitor, context);
@@ -426,6 +811,35 @@ public interface JSON {
     
     private static BigDecimal scanNumber(final Context context) = { context.scanString(token.negate()) };
     
+    // Used by the pull reader, integers that fit into a long and decimals of at most 15 significant digits are exact as long / double, anything else stays a BigDecimal.
+    private static Number number(final CharSequence text) {
+        final int length = text.length();
+        boolean decimal = false, exponent = false, nonZero = false;
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!exponent) {
+                    digits++;
+                    nonZero |= c != '0';
+                }
+            } else if (c == '.')
+                decimal = true;
+            else if (c == 'e' || c == 'E')
+                decimal = exponent = true;
+            else if (c != '-' && c != '+')
+                return new BigDecimal(text.toString());
+        }
+        if (!decimal && digits < 20)
+            try { return Long.parseLong(text, 0, length, 10); } catch (final NumberFormatException ignored) { }
+        if (decimal && digits <= 15) {
+            final double value = Double.parseDouble(text.toString());
+            if (value == 0D ? !nonZero : Double.isFinite(value) && Math.abs(value) >= Double.MIN_NORMAL)
+                return value;
+        }
+        return new BigDecimal(text.toString());
+    }
+    
     static String stringify(final @Nullable Object value) = Writer.write(value);
     
     static DynamicObject parse(final String source) = Dynamic.read(source);
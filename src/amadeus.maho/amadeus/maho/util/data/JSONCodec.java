@@ -0,0 +1,442 @@
+package amadeus.maho.util.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Member;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.commons.TableSwitchGenerator;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.bytecode.ASMHelper;
+import amadeus.maho.util.bytecode.generator.MethodGenerator;
+import amadeus.maho.util.dynamic.ClassLocal;
+import amadeus.maho.util.dynamic.DynamicObject;
+import amadeus.maho.util.dynamic.FieldsMap;
+import amadeus.maho.util.dynamic.Wrapper;
+import amadeus.maho.util.runtime.MethodHandleHelper;
+import amadeus.maho.util.runtime.TypeHelper;
+
+import static amadeus.maho.util.runtime.UnsafeHelper.unsafe;
+
+/*
+ * Per-type JSON binding, generated into a hidden nestmate of the bound type on first use.
+ * Keys are emitted as precomputed constants and primitives are appended / parsed without boxing.
+ * Fields are read and written with getfield / putfield where the JVM allows it, final or otherwise inaccessible fields go through Unsafe at a constant offset.
+ * Types the generated class could not link against (e.g. the JDK's own classes) fall back to the reflective FieldsMap walk.
+ */
+@FieldDefaults(level = AccessLevel.PROTECTED, makeFinal = true)
+public abstract class JSONCodec<T> {
+    
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    protected static class Reflective<T> extends JSONCodec<T> {
+        
+        FieldsMap.Info infos[];
+        
+        protected Reflective(final Class<T> type, final Field fields[]) {
+            super(type, fields);
+            final Map<String, FieldsMap.Info> map = FieldsMap.fieldsMapLocal()[type];
+            infos = Stream.of(fields).map(field -> map[field.getName()]).toArray(FieldsMap.Info[]::new);
+        }
+        
+        @Override
+        @SneakyThrows
+        protected void writeFields(final JSON.Writer writer, final T value) {
+            for (final FieldsMap.Info info : infos) {
+                writer.visitKey(info.field().getName());
+                writer.visitValue(info.getter().invoke(value));
+            }
+        }
+        
+        @Override
+        @SneakyThrows
+        protected void readField(final T instance, final int index, final JSON.Reader reader) = infos[index].setter().invoke(instance, readSlot(reader, index));
+        
+    }
+    
+    private static final ClassLocal<JSONCodec<?>> codecs = { JSONCodec::make, true };
+    
+    private static final Type CODEC_TYPE = Type.getType(JSONCodec.class), WRITER_TYPE = Type.getType(JSON.Writer.class), STRING_BUILDER_TYPE = Type.getType(StringBuilder.class);
+    
+    Class<T> type;
+    
+    java.lang.reflect.Type types[];
+    
+    HashMap<String, Integer> slots = { };
+    
+    protected JSONCodec(final Class<T> type, final Field fields[]) {
+        this.type = type;
+        types = new java.lang.reflect.Type[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = fields[i].getGenericType();
+            slots[fields[i].getName()] = i;
+        }
+    }
+    
+    public void write(final JSON.Writer writer, final T value) {
+        writer.beginObject();
+        writeFields(writer, value);
+        writer.endObject();
+    }
+    
+    public @Nullable T read(final JSON.Reader reader, final JSON.Reader.Token token = reader.next()) {
+        if (token == JSON.Reader.Token.VALUE && reader.value() == null)
+            return null;
+        if (token != JSON.Reader.Token.BEGIN_OBJECT)
+            throw new IllegalArgumentException(STR."Expected an object of \{type.getName()}, got: \{token}");
+        final T instance = newInstance();
+        while (reader.next() == JSON.Reader.Token.KEY) {
+            final @Nullable Integer index = slots[reader.key()];
+            if (index == null)
+                reader.skipValue(reader.next());
+            else
+                readField(instance, index, reader);
+        }
+        return instance;
+    }
+    
+    protected T newInstance() = type.tryInstantiationOrAllocate();
+    
+    protected abstract void writeFields(JSON.Writer writer, T value);
+    
+    // Consumes the value of the field at the given index, the key has already been consumed.
+    protected abstract void readField(T instance, int index, JSON.Reader reader);
+    
+    protected @Nullable Object readSlot(final JSON.Reader reader, final int index) = readValue(reader, types[index]);
+    
+    public static <T> JSONCodec<T> of(final Class<T> type) = (JSONCodec<T>) codecs[type];
+    
+    public static @Nullable Object readValue(final JSON.Reader reader, final java.lang.reflect.Type type, final JSON.Reader.Token token = reader.next()) {
+        final Class<?> erased = TypeHelper.erase(type);
+        if (DynamicObject.class.isAssignableFrom(erased) || erased == Object.class && token != JSON.Reader.Token.VALUE) {
+            final JSON.Dynamic dynamic = { };
+            reader.accept(dynamic, token);
+            return dynamic.root();
+        }
+        return switch (token) {
+            case VALUE        -> convert(reader.value(), erased);
+            case BEGIN_ARRAY  -> readArray(reader, type, erased);
+            case BEGIN_OBJECT -> Map.class.isAssignableFrom(erased) ? readMap(reader, type, erased) : of(erased).read(reader, token);
+            default           -> throw new IllegalArgumentException(STR."Unexpected token: \{token}");
+        };
+    }
+    
+    @SneakyThrows
+    protected static Object readArray(final JSON.Reader reader, final java.lang.reflect.Type type, final Class<?> erased) {
+        final java.lang.reflect.Type elementType = switch (type) {
+            case GenericArrayType arrayType          -> arrayType.getGenericComponentType();
+            case Class<?> clazz when clazz.isArray() -> clazz.getComponentType();
+            case ParameterizedType parameterizedType -> parameterizedType.getActualTypeArguments()[0];
+            default                                  -> Object.class;
+        };
+        final ArrayList<Object> list = { };
+        for (JSON.Reader.Token token; (token = reader.next()) != JSON.Reader.Token.END_ARRAY; )
+            list += readValue(reader, elementType, token);
+        if (erased.isArray()) {
+            final Object array = Array.newInstance(erased.getComponentType(), list.size());
+            for (int i = 0; i < list.size(); i++)
+                Array.set(array, i, list[i]);
+            return array;
+        }
+        if (erased.isInstance(list))
+            return list;
+        return (Converter.ArrayAgent.defaultSupplier[erased]?.get() ?? (Collection<Object>) erased.tryInstantiation()).let(it -> it.addAll(list));
+    }
+    
+    protected static Map<String, Object> readMap(final JSON.Reader reader, final java.lang.reflect.Type type, final Class<?> erased) {
+        final java.lang.reflect.Type valueType = type instanceof ParameterizedType parameterizedType ? parameterizedType.getActualTypeArguments()[1] : Object.class;
+        final Map<String, Object> map = erased.isAssignableFrom(LinkedHashMap.class) ? new LinkedHashMap<>() : (Map<String, Object>) erased.tryInstantiation();
+        while (reader.next() == JSON.Reader.Token.KEY) {
+            final String key = reader.key();
+            map[key] = readValue(reader, valueType);
+        }
+        return map;
+    }
+    
+    protected static @Nullable Object convert(final @Nullable Object value, final Class<?> type) {
+        final Class<?> boxed = TypeHelper.boxClass(type);
+        if (value == null || boxed.isInstance(value))
+            return value;
+        return switch (value) {
+            case Number number when boxed == Integer.class                           -> number.intValue();
+            case Number number when boxed == Long.class                              -> number.longValue();
+            case Number number when boxed == Double.class                            -> number.doubleValue();
+            case Number number when boxed == Float.class                             -> number.floatValue();
+            case Number number when boxed == Short.class                             -> number.shortValue();
+            case Number number when boxed == Byte.class                              -> number.byteValue();
+            case Number number when boxed == BigDecimal.class                        -> new BigDecimal(number.toString());
+            case Number number when boxed == BigInteger.class                        -> new BigDecimal(number.toString()).toBigIntegerExact();
+            case String string when boxed == Character.class && string.length() == 1 -> string.charAt(0);
+            case String string when type.isEnum()                                    -> Enum.valueOf((Class) type, string);
+            default                                                                  -> {
+                if (type == String.class)
+                    yield value.toString();
+                throw new IllegalArgumentException(STR."Cannot convert \{value} to \{type.getName()}");
+            }
+        };
+    }
+    
+    // Helpers called by the generated codecs.
+    
+    protected static @Nullable Object scalar(final JSON.Reader reader) {
+        final JSON.Reader.Token token = reader.next();
+        if (token != JSON.Reader.Token.VALUE)
+            throw new IllegalArgumentException(STR."Expected a value, got: \{token}");
+        return reader.value();
+    }
+    
+    protected static boolean readBoolean(final JSON.Reader reader) = (boolean) convert(scalar(reader) ?? false, boolean.class);
+    
+    protected static byte readByte(final JSON.Reader reader) = (byte) convert(scalar(reader) ?? 0, byte.class);
+    
+    protected static char readChar(final JSON.Reader reader) = (char) convert(scalar(reader) ?? '\0', char.class);
+    
+    protected static short readShort(final JSON.Reader reader) = (short) convert(scalar(reader) ?? 0, short.class);
+    
+    protected static int readInt(final JSON.Reader reader) = (int) convert(scalar(reader) ?? 0, int.class);
+    
+    protected static long readLong(final JSON.Reader reader) = (long) convert(scalar(reader) ?? 0, long.class);
+    
+    protected static float readFloat(final JSON.Reader reader) = (float) convert(scalar(reader) ?? 0, float.class);
+    
+    protected static double readDouble(final JSON.Reader reader) = (double) convert(scalar(reader) ?? 0, double.class);
+    
+    protected static @Nullable String readString(final JSON.Reader reader) = (String) convert(scalar(reader), String.class);
+    
+    // A key / value pair that is written in one go, the separator state stays as separate() left it.
+    protected static StringBuilder field(final JSON.Writer writer, final String prefix) = writer.separate().append(prefix);
+    
+    protected static void key(final JSON.Writer writer, final String prefix) {
+        field(writer, prefix);
+        writer.separator = false;
+    }
+    
+    protected static void string(final JSON.Writer writer, final String prefix, final @Nullable String value) {
+        if (value == null)
+            field(writer, prefix).append("null");
+        else
+            field(writer, prefix).append('"').append(value).append('"');
+    }
+    
+    protected static boolean getBoolean(final Object instance, final long offset) = unsafe().getBoolean(instance, offset);
+    
+    protected static byte getByte(final Object instance, final long offset) = unsafe().getByte(instance, offset);
+    
+    protected static char getChar(final Object instance, final long offset) = unsafe().getChar(instance, offset);
+    
+    protected static short getShort(final Object instance, final long offset) = unsafe().getShort(instance, offset);
+    
+    protected static int getInt(final Object instance, final long offset) = unsafe().getInt(instance, offset);
+    
+    protected static long getLong(final Object instance, final long offset) = unsafe().getLong(instance, offset);
+    
+    protected static float getFloat(final Object instance, final long offset) = unsafe().getFloat(instance, offset);
+    
+    protected static double getDouble(final Object instance, final long offset) = unsafe().getDouble(instance, offset);
+    
+    protected static @Nullable Object getReference(final Object instance, final long offset) = unsafe().getReference(instance, offset);
+    
+    protected static void putBoolean(final Object instance, final long offset, final boolean value) = unsafe().putBoolean(instance, offset, value);
+    
+    protected static void putByte(final Object instance, final long offset, final byte value) = unsafe().putByte(instance, offset, value);
+    
+    protected static void putChar(final Object instance, final long offset, final char value) = unsafe().putChar(instance, offset, value);
+    
+    protected static void putShort(final Object instance, final long offset, final short value) = unsafe().putShort(instance, offset, value);
+    
+    protected static void putInt(final Object instance, final long offset, final int value) = unsafe().putInt(instance, offset, value);
+    
+    protected static void putLong(final Object instance, final long offset, final long value) = unsafe().putLong(instance, offset, value);
+    
+    protected static void putFloat(final Object instance, final long offset, final float value) = unsafe().putFloat(instance, offset, value);
+    
+    protected static void putDouble(final Object instance, final long offset, final double value) = unsafe().putDouble(instance, offset, value);
+    
+    protected static void putReference(final Object instance, final long offset, final @Nullable Object value) = unsafe().putReference(instance, offset, value);
+    
+    @SneakyThrows
+    private static JSONCodec<?> make(final Class<?> type) {
+        final Field fields[] = FieldsMap.fieldsMapLocal()[type].values().stream().map(FieldsMap.Info::field).toArray(Field[]::new);
+        if (!generable(type))
+            return new Reflective<>(type, fields);
+        final Wrapper<JSONCodec> wrapper = { type.getClassLoader(), JSONCodec.class, type, type.getName(), "JSONCodec" };
+        wrapper.copyAllConstructors();
+        generateWrite(wrapper, type, fields);
+        generateRead(wrapper, type, fields);
+        generateNewInstance(wrapper, type);
+        wrapper.context().markCompute(wrapper.node());
+        final Class<?> codecClass = wrapper.defineHiddenWrapperClass(type, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+        return (JSONCodec<?>) MethodHandleHelper.lookup().findConstructor(codecClass, MethodType.methodType(void.class, Class.class, Field[].class)).invoke(type, fields);
+    }
+    
+    // The generated class lives in the package of the bound type and has to see this class through the loader of that type.
+    private static boolean generable(final Class<?> type) {
+        if (type.isInterface() || type.isArray() || type.isPrimitive() || type.isEnum() || type.isHidden() || type.getClassLoader() == null)
+            return false;
+        try {
+            return Class.forName(JSONCodec.class.getName(), false, type.getClassLoader()) == JSONCodec.class;
+        } catch (final ClassNotFoundException e) { return false; }
+    }
+    
+    private static boolean accessible(final Class<?> owner, final Class<?> declaring, final int modifiers) = Modifier.isPrivate(modifiers) ? declaring.getNestHost() == owner.getNestHost() :
+            Modifier.isPublic(modifiers) && Modifier.isPublic(declaring.getModifiers()) || declaring.getPackageName().equals(owner.getPackageName()) && declaring.getClassLoader() == owner.getClassLoader();
+    
+    private static boolean accessible(final Class<?> owner, final Member member) = accessible(owner, member.getDeclaringClass(), member.getModifiers());
+    
+    private static boolean visible(final Class<?> owner, final Class<?> type) {
+        Class<?> component = type;
+        while (component.isArray())
+            component = component.getComponentType();
+        return component.isPrimitive() || Modifier.isPublic(component.getModifiers()) || component.getPackageName().equals(owner.getPackageName()) && component.getClassLoader() == owner.getClassLoader();
+    }
+    
+    private static String suffix(final Class<?> type) = type.isPrimitive() ? Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1) : "Reference";
+    
+    private static String prefix(final String name) {
+        final StringBuilder builder = { name.length() + 3 };
+        builder.append('"');
+        name.chars().forEach(c -> {
+            if (c == '"' || c == '\\')
+                builder.append('\\').append((char) c);
+            else if (c < 0x20)
+                builder.append("\\u%04x".formatted(c));
+            else
+                builder.append((char) c);
+        });
+        return builder.append('"').append(':').toString();
+    }
+    
+    @SneakyThrows
+    private static void generateWrite(final Wrapper<JSONCodec> wrapper, final Class<?> type, final Field fields[]) {
+        final Type owner = Type.getType(type);
+        final Method
+                field  = Method.getMethod(JSONCodec.class.getDeclaredMethod("field", JSON.Writer.class, String.class)),
+                key    = Method.getMethod(JSONCodec.class.getDeclaredMethod("key", JSON.Writer.class, String.class)),
+                string = Method.getMethod(JSONCodec.class.getDeclaredMethod("string", JSON.Writer.class, String.class, String.class)),
+                visit  = Method.getMethod(JSON.Writer.class.getMethod("visitValue", Object.class));
+        final MethodGenerator generator = wrapper.wrap(JSONCodec.class.getDeclaredMethod("writeFields", JSON.Writer.class, Object.class));
+        for (final Field target : fields) {
+            final Class<?> fieldType = target.getType();
+            generator.loadArg(0);
+            generator.push(prefix(target.getName()));
+            if (fieldType.isPrimitive() && fieldType != char.class) {
+                generator.invokeStatic(CODEC_TYPE, field);
+                loadField(generator, type, owner, target);
+                final Class<?> appendType = fieldType == byte.class || fieldType == short.class ? int.class : fieldType;
+                generator.invokeVirtual(STRING_BUILDER_TYPE, Method.getMethod(StringBuilder.class.getMethod("append", appendType)));
+                generator.pop();
+            } else if (fieldType == String.class || fieldType == char.class) {
+                loadField(generator, type, owner, target);
+                if (fieldType == char.class)
+                    generator.invokeStatic(ASMHelper.TYPE_STRING, Method.getMethod(String.class.getMethod("valueOf", char.class)));
+                generator.invokeStatic(CODEC_TYPE, string);
+            } else {
+                generator.invokeStatic(CODEC_TYPE, key);
+                generator.loadArg(0);
+                loadField(generator, type, owner, target);
+                generator.invokeVirtual(WRITER_TYPE, visit);
+            }
+        }
+        generator.returnValue();
+        generator.endMethod();
+    }
+    
+    @SneakyThrows
+    private static void loadField(final MethodGenerator generator, final Class<?> type, final Type owner, final Field target) {
+        generator.loadArg(1);
+        generator.checkCast(owner);
+        if (accessible(type, target))
+            generator.getField(Type.getType(target.getDeclaringClass()), target.getName(), Type.getType(target.getType()));
+        else {
+            final Class<?> erased = target.getType().isPrimitive() ? target.getType() : Object.class;
+            generator.push(unsafe().objectFieldOffset(target));
+            generator.invokeStatic(CODEC_TYPE, Method.getMethod(JSONCodec.class.getDeclaredMethod(STR."get\{suffix(erased)}", Object.class, long.class)));
+        }
+    }
+    
+    @SneakyThrows
+    private static void generateRead(final Wrapper<JSONCodec> wrapper, final Class<?> type, final Field fields[]) {
+        final Type owner = Type.getType(type);
+        final Method
+                readString = Method.getMethod(JSONCodec.class.getDeclaredMethod("readString", JSON.Reader.class)),
+                readSlot   = Method.getMethod(JSONCodec.class.getDeclaredMethod("readSlot", JSON.Reader.class, int.class));
+        final MethodGenerator generator = wrapper.wrap(JSONCodec.class.getDeclaredMethod("readField", Object.class, int.class, JSON.Reader.class));
+        generator.loadArg(1);
+        generator.tableSwitch(IntStream.range(0, fields.length).toArray(), new TableSwitchGenerator() {
+            
+            @Override
+            @SneakyThrows
+            public void generateCase(final int index, final Label end) {
+                final Field target = fields[index];
+                final Class<?> fieldType = target.getType();
+                final boolean direct = accessible(type, target) && !Modifier.isFinal(target.getModifiers()) && visible(type, fieldType);
+                generator.loadArg(0);
+                generator.checkCast(owner);
+                if (!direct)
+                    generator.push(unsafe().objectFieldOffset(target));
+                if (fieldType.isPrimitive()) {
+                    generator.loadArg(2);
+                    generator.invokeStatic(CODEC_TYPE, Method.getMethod(JSONCodec.class.getDeclaredMethod(STR."read\{suffix(fieldType)}", JSON.Reader.class)));
+                } else if (fieldType == String.class) {
+                    generator.loadArg(2);
+                    generator.invokeStatic(CODEC_TYPE, readString);
+                } else {
+                    generator.loadThis();
+                    generator.loadArg(2);
+                    generator.push(index);
+                    generator.invokeVirtual(CODEC_TYPE, readSlot);
+                    if (direct)
+                        generator.checkCast(Type.getType(fieldType));
+                }
+                if (direct)
+                    generator.putField(Type.getType(target.getDeclaringClass()), target.getName(), Type.getType(fieldType));
+                else {
+                    final Class<?> erased = fieldType.isPrimitive() ? fieldType : Object.class;
+                    generator.invokeStatic(CODEC_TYPE, Method.getMethod(JSONCodec.class.getDeclaredMethod(STR."put\{suffix(erased)}", Object.class, long.class, erased)));
+                }
+                generator.goTo(end);
+            }
+            
+            @Override
+            public void generateDefault() = generator.throwException(Type.getType(IllegalArgumentException.class), "Invalid field index");
+            
+        });
+        generator.returnValue();
+        generator.endMethod();
+    }
+    
+    @SneakyThrows
+    private static void generateNewInstance(final Wrapper<JSONCodec> wrapper, final Class<?> type) {
+        final @Nullable Constructor<?> constructor = Stream.of(type.getDeclaredConstructors()).filter(it -> it.getParameterCount() == 0).findFirst().orElse(null);
+        if (constructor == null || Modifier.isAbstract(type.getModifiers()) || !accessible(type, constructor))
+            return;
+        final Type owner = Type.getType(type);
+        final MethodGenerator generator = wrapper.wrap(JSONCodec.class.getDeclaredMethod("newInstance"));
+        generator.newInstance(owner);
+        generator.dup();
+        generator.invokeEmptyConstructor(owner);
+        generator.returnValue();
+        generator.endMethod();
+    }
+    
+}
@@ -2,16 +2,25 @@ package amadeus.maho.util.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 
 import amadeus.maho.lang.AccessLevel;
@@ -21,7 +30,7 @@ import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.VisitorChain;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.function.FunctionHelper;
-import amadeus.maho.util.language.parsing.Tokenizer;
+import amadeus.maho.util.language.parsing.ParseException;
 
 import static amadeus.maho.util.language.parsing.Tokenizer.*;
 
@@ -53,19 +62,19 @@ public interface XML {
     @VisitorChain
     @AllArgsConstructor
     class Visitor {
-    
+        
         public void visitDeclaration(String version, @Nullable String encoding, @Nullable String standalone);
-    
+        
         public void visitProcessingInstructions(String target, String instructions);
-    
+        
         public void visitComment(String comment);
-    
+        
         public void visitEmptyTag(String tag, Map<String, String> attr);
-    
+        
         public void visitTagBegin(String tag, Map<String, String> attr);
-    
+        
         public void visitTagEnd(String tag);
-    
+        
         public void visitCharData(String data);
         
     }
@@ -158,6 +167,389 @@ public interface XML {
         
     }
     
+    // Tracks the path of the open tags, prefixes compiled up front are matched incrementally on push / pop, so queries neither iterate nor allocate.
+    @FieldDefaults(level = AccessLevel.PROTECTED)
+    class TagPath {
+        
+        @FieldDefaults(level = AccessLevel.PRIVATE)
+        public final class Matcher {
+            
+            final String prefix[];
+            
+            // Length of the longest prefix of `prefix` equal to the open tags.
+            int matched;
+            
+            private Matcher(final String prefix[]) {
+                this.prefix = prefix;
+            }
+            
+            public boolean startsWith() = matched == prefix.length;
+            
+            // The innermost open tag is `extra` levels below the prefix.
+            public boolean matches(final int extra = 0) = matched == prefix.length && depth == prefix.length + extra;
+            
+        }
+        
+        final ArrayList<Matcher> matchers = { };
+        
+        String tags[] = new String[1 << 4];
+        
+        int depth;
+        
+        public Matcher compile(final String... prefix) = new Matcher(prefix).let(matchers::add);
+        
+        public int depth() = depth;
+        
+        public String tag(final int index) = tags[index];
+        
+        public void push(final String tag) {
+            if (depth == tags.length)
+                tags = Arrays.copyOf(tags, depth << 1);
+            for (final Matcher matcher : matchers)
+                if (matcher.matched == depth && depth < matcher.prefix.length && matcher.prefix[depth].equals(tag))
+                    matcher.matched++;
+            tags[depth++] = tag;
+        }
+        
+        public void pop() {
+            tags[--depth] = null;
+            for (final Matcher matcher : matchers)
+                if (matcher.matched > depth)
+                    matcher.matched = depth;
+        }
+        
+        public String join(final int from, final String delimiter) = String.join(delimiter, Arrays.asList(tags).subList(Math.min(from, depth), depth));
+        
+    }
+    
+    /*
+     * Incremental tokenizer over a byte channel, only one chunk of the document is held at a time.
+     * The charset is sniffed from the byte order mark or the encoding of the declaration before anything is decoded, a document given as characters is read as is.
+     * The character data of an element is reported right before its end tag.
+     */
+    @FieldDefaults(level = AccessLevel.PROTECTED)
+    class Reader {
+        
+        final @Nullable ReadableByteChannel channel;
+        
+        final @Nullable String debugInfo;
+        
+        final @Nullable ByteBuffer bytes;
+        
+        final CharBuffer chars;
+        
+        final @Nullable CharsetDecoder decoder;
+        
+        final StringBuilder text = { 1 << 6 }, outerData = { };
+        
+        String tags[] = new String[1 << 4];
+        
+        StringBuilder buffers[] = new StringBuilder[1 << 4];
+        
+        int depth;
+        
+        boolean drained, eof;
+        
+        // Characters discarded with previous chunks, only used to report positions.
+        long consumed;
+        
+        @SneakyThrows
+        public Reader(final ReadableByteChannel channel, final @Nullable String debugInfo = null, final int chunkSize = 1 << 13) {
+            this.channel = channel;
+            this.debugInfo = debugInfo;
+            bytes = ByteBuffer.allocate(chunkSize);
+            while (bytes.hasRemaining() && !drained)
+                drained = channel.read(bytes) == -1;
+            bytes.flip();
+            decoder = sniff(bytes).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars = CharBuffer.allocate(chunkSize).flip();
+        }
+        
+        public Reader(final CharSequence source, final @Nullable String debugInfo = null) {
+            channel = null;
+            this.debugInfo = debugInfo;
+            bytes = null;
+            decoder = null;
+            chars = CharBuffer.wrap(source);
+            drained = eof = true;
+        }
+        
+        // Consumes the byte order mark if there is one.
+        protected Charset sniff(final ByteBuffer bytes) {
+            final int b0 = byteAt(bytes, 0), b1 = byteAt(bytes, 1), b2 = byteAt(bytes, 2), b3 = byteAt(bytes, 3);
+            if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+                bytes.position(3);
+                return StandardCharsets.UTF_8;
+            }
+            if (b0 == 0xFE && b1 == 0xFF) {
+                bytes.position(2);
+                return StandardCharsets.UTF_16BE;
+            }
+            if (b0 == 0xFF && b1 == 0xFE) {
+                bytes.position(2);
+                return StandardCharsets.UTF_16LE;
+            }
+            if (b0 == 0x00 && b1 == '<' && b2 == 0x00 && b3 == '?')
+                return StandardCharsets.UTF_16BE;
+            if (b0 == '<' && b1 == 0x00 && b2 == '?' && b3 == 0x00)
+                return StandardCharsets.UTF_16LE;
+            // ASCII compatible, the declaration can be read byte by byte.
+            final String head = StandardCharsets.ISO_8859_1.decode(bytes.duplicate().limit(Math.min(bytes.limit(), 1 << 8))).toString();
+            final int end = head.indexOf("?>");
+            if (!head.startsWith("<?xml") || end == -1)
+                return StandardCharsets.UTF_8;
+            final Matcher matcher = encodingPattern.matcher(head.substring(0, end));
+            if (!matcher.find())
+                return StandardCharsets.UTF_8;
+            try {
+                return Charset.forName(matcher.group(2));
+            } catch (final IllegalCharsetNameException | UnsupportedCharsetException e) { throw invalid(STR."encoding='\{matcher.group(2)}'"); }
+        }
+        
+        private static int byteAt(final ByteBuffer bytes, final int index) = index < bytes.limit() ? bytes.get(index) & 0xFF : -1;
+        
+        public void accept(final Visitor visitor) {
+            if (match("<?xml") && ensure(6) && S.test(chars.get(chars.position() + 5))) {
+                skip(5);
+                scanDeclaration(visitor);
+            }
+            skipS();
+            for (int c; (c = read()) != -1; )
+                if (c == '<') {
+                    switch (peek()) {
+                        case '?' -> {
+                            skip(1);
+                            final String target = scanName();
+                            if (target.equalsIgnoreCase("xml"))
+                                throw invalid(STR."target: \{target}");
+                            visitor.visitProcessingInstructions(target, scanUntil("?>"));
+                        }
+                        case '!' -> {
+                            skip(1);
+                            if (match("--")) {
+                                skip(2);
+                                visitor.visitComment(scanUntil("-->"));
+                            } else if (match("[CDATA[")) {
+                                skip(7);
+                                data().append(scanUntil("]]>"));
+                            } else
+                                throw new UnsupportedOperationException(STR."<!\{(char) peek()}");
+                        }
+                        case '/' -> {
+                            skip(1);
+                            if (depth == 0)
+                                throw invalid();
+                            final String tag = tags[depth - 1];
+                            expect(tag);
+                            skipS();
+                            expect(">");
+                            final StringBuilder data = buffers[--depth];
+                            tags[depth] = null;
+                            visitor.visitCharData(data.toString());
+                            visitor.visitTagEnd(tag);
+                        }
+                        default  -> scanTag(visitor);
+                    }
+                    skipS();
+                } else if (c == '&')
+                    data().appendCodePoint(scanEntity());
+                else
+                    data().append((char) c);
+            if (depth != 0)
+                throw invalid();
+            visitor.visitCharData(outerData.toString());
+        }
+        
+        protected void scanDeclaration(final Visitor visitor) {
+            @Nullable String version = null, encoding = null, standalone = null;
+            while (skipS() > 0 && !match("?>")) {
+                final String name = scanName();
+                skipS();
+                expect("=");
+                skipS();
+                final String value = scanAttributeValue();
+                switch (name) {
+                    case "version"    -> version = value;
+                    case "encoding"   -> encoding = value;
+                    case "standalone" -> {
+                        if (!value.equals("yes") && !value.equals("no"))
+                            throw invalid(STR."standalone='\{value}'");
+                        standalone = value;
+                    }
+                    default           -> throw invalid(STR."\{name}='\{value}'");
+                }
+            }
+            expect("?>");
+            if (!"1.0".equals(version))
+                throw new UnsupportedOperationException(STR."version: \{version}");
+            visitor.visitDeclaration(version, encoding, standalone);
+        }
+        
+        protected void scanTag(final Visitor visitor) {
+            final String tag = scanName();
+            Map<String, String> attr = Map.of();
+            while (skipS() > 0 && peek() != '/' && peek() != '>') {
+                final String name = scanName();
+                skipS();
+                expect("=");
+                skipS();
+                final String value = scanAttributeValue();
+                if (attr.isEmpty())
+                    attr = new LinkedHashMap<>();
+                if (attr.put(name, value) != null)
+                    throw invalid(STR."Repeated attr: \{name}='\{value}'");
+            }
+            if (match("/>")) {
+                skip(2);
+                visitor.visitEmptyTag(tag, attr);
+            } else {
+                expect(">");
+                if (depth == tags.length) {
+                    tags = Arrays.copyOf(tags, depth << 1);
+                    buffers = Arrays.copyOf(buffers, depth << 1);
+                }
+                tags[depth] = tag;
+                (buffers[depth] ?? (buffers[depth] = new StringBuilder())).setLength(0);
+                depth++;
+                visitor.visitTagBegin(tag, attr);
+            }
+        }
+        
+        protected StringBuilder data() = depth == 0 ? outerData : buffers[depth - 1];
+        
+        protected String scanName() {
+            text.setLength(0);
+            // Supplementary characters arrive as surrogate pairs, they are all in the [#x10000-#xEFFFF] range of the name productions.
+            for (int c; (c = peek()) != -1 && ((text.isEmpty() ? NameStartChar : NameChar).test(c) || Character.isSurrogate((char) c)); skip(1))
+                text.append((char) c);
+            if (text.isEmpty())
+                throw invalid();
+            return text.toString();
+        }
+        
+        protected String scanAttributeValue() {
+            final int quote = read();
+            if (quote != '"' && quote != '\'')
+                throw invalid();
+            text.setLength(0);
+            for (int c; (c = read()) != quote; )
+                switch (c) {
+                    case -1, '<' -> throw invalid();
+                    case '&'     -> text.appendCodePoint(scanEntity());
+                    default      -> text.append((char) c);
+                }
+            return text.toString();
+        }
+        
+        // Predefined entities and character references, the leading '&' has been consumed.
+        protected int scanEntity() {
+            final StringBuilder entity = { 8 };
+            for (int c; (c = read()) != ';'; ) {
+                if (c == -1 || entity.length() > 8)
+                    throw invalid(STR."Entity: '\{entity}'");
+                entity.append((char) c);
+            }
+            if (entity.length() > 1 && entity.charAt(0) == '#')
+                try {
+                    return entity.charAt(1) == 'x' ? Integer.parseInt(entity, 2, entity.length(), 16) : Integer.parseInt(entity, 1, entity.length(), 10);
+                } catch (final NumberFormatException e) { throw invalid(STR."Entity: '\{entity}'"); }
+            final @Nullable Integer represented = predefined[entity.toString()];
+            if (represented == null)
+                throw invalid(STR."Entity: '\{entity}'");
+            return represented;
+        }
+        
+        protected String scanUntil(final String terminator) {
+            text.setLength(0);
+            final int length = terminator.length();
+            while (true) {
+                final int c = read();
+                if (c == -1)
+                    throw invalid();
+                text.append((char) c);
+                if (endsWith(text, terminator)) {
+                    text.setLength(text.length() - length);
+                    return text.toString();
+                }
+            }
+        }
+        
+        private static boolean endsWith(final StringBuilder builder, final String suffix) {
+            final int offset = builder.length() - suffix.length();
+            if (offset < 0)
+                return false;
+            for (int i = suffix.length() - 1; i > -1; i--)
+                if (builder.charAt(offset + i) != suffix.charAt(i))
+                    return false;
+            return true;
+        }
+        
+        protected int skipS() {
+            int count = 0;
+            for (int c; (c = peek()) != -1 && S.test(c); skip(1))
+                count++;
+            return count;
+        }
+        
+        protected boolean match(final String literal) {
+            if (!ensure(literal.length()))
+                return false;
+            final int position = chars.position();
+            for (int i = 0; i < literal.length(); i++)
+                if (chars.get(position + i) != literal.charAt(i))
+                    return false;
+            return true;
+        }
+        
+        protected void expect(final String literal) {
+            if (!match(literal))
+                throw invalid();
+            skip(literal.length());
+        }
+        
+        protected boolean ensure(final int count) {
+            while (chars.remaining() < count)
+                if (!fill())
+                    return false;
+            return true;
+        }
+        
+        protected int peek() = chars.hasRemaining() || fill() ? chars.get(chars.position()) : -1;
+        
+        protected int read() = chars.hasRemaining() || fill() ? chars.get() : -1;
+        
+        protected void skip(final int count) = chars.position(chars.position() + count);
+        
+        // Keeps the unread characters and decodes more behind them, returns whether anything new became available.
+        @SneakyThrows
+        protected boolean fill() {
+            if (eof)
+                return false;
+            consumed += chars.position();
+            chars.compact();
+            final int start = chars.position();
+            while (chars.hasRemaining()) {
+                decoder.decode(bytes, chars, drained);
+                if (chars.position() != start)
+                    break;
+                if (drained) {
+                    decoder.flush(chars);
+                    eof = true;
+                    break;
+                }
+                bytes.compact();
+                drained = channel.read(bytes) == -1;
+                bytes.flip();
+            }
+            final boolean progress = chars.position() != start;
+            chars.flip();
+            return progress;
+        }
+        
+        protected ParseException invalid(final String message = STR."Invalid character: '\{(char) peek()}'") = { message, debugInfo, (int) Math.min(consumed + chars.position(), Integer.MAX_VALUE) };
+        
+    }
+    
     String SUFFIX = ".xml";
     
     // @formatter:off
@@ -170,6 +562,8 @@ public interface XML {
             "quot", 0x22  // "
     );
     
+    Pattern encodingPattern = Pattern.compile("encoding\\s*=\\s*(['\"])([A-Za-z][A-Za-z0-9._-]*)\\1");
+    
     IntPredicate
     // S (white space) consists of one or more space (#x20) characters, carriage returns, line feeds, or tabs.
     // [3] S ::= (#x20 | #x9 | #xD | #xA)+
@@ -204,165 +598,12 @@ public interface XML {
     });
     // @formatter:on
     
-    private static IntPredicate nameChecker() = firstThen(NameStartChar, NameChar);
-    
-    static void read(final String source, final Visitor visitor, final String debugInfo) throws IOException {
-        final Context context = tokenization(source, debugInfo).root();
-        if (context.match("<?xml "))
-            scanXMLDeclaration(visitor, context);
-        scanXMLBody(visitor, context);
-    }
+    static void read(final String source, final Visitor visitor, final String debugInfo) throws IOException = new Reader(source, debugInfo).accept(visitor);
     
-    static void read(final Path path, final Visitor visitor, final String debugInfo = path.toString()) throws IOException { try (final var input = Files.newInputStream(path)) { read(input, visitor, debugInfo); } }
+    static void read(final Path path, final Visitor visitor, final String debugInfo = path.toString()) throws IOException { try (final var channel = FileChannel.open(path)) { read(channel, visitor, debugInfo); } }
     
-    @SneakyThrows
-    static void read(final InputStream input, final Visitor visitor, final String debugInfo) throws IOException {
-        final Charset charset;
-        int c;
-        String rollback = "";
-        {
-            final StringBuilder builder = { 1 << 6 };
-            while ((c = input.read()) != '\n' && c != -1)
-                builder.append((char) c);
-            final Context context = tokenization(builder.toString(), debugInfo).root();
-            if (context.match("<?xml "))
-                charset = scanXMLDeclaration(visitor, context);
-            else {
-                charset = StandardCharsets.UTF_8;
-                rollback = builder + (c == -1 ? "" : "\n");
-            }
-        }
-        scanXMLBody(visitor, tokenization(rollback + input.readString(charset), debugInfo).root());
-    }
-    
-    private static Charset scanXMLDeclaration(final Visitor visitor, final Context context) {
-        Charset charset = StandardCharsets.UTF_8;
-        final String version = scanKeyValue(context.skip("<?xml "), "version", Tokenizer::isNumberOrDot);
-        @Nullable String encoding = null;
-        @Nullable String standalone = null;
-        switch (version) {
-            case "1.0" -> {
-                if (context.skip(S) > 0) {
-                    if (context.match("encoding="))
-                        try {
-                            context.offset("encoding=".length());
-                            charset = Charset.forName(encoding = scanValue(context, encodingChecker()));
-                        } catch (final IllegalCharsetNameException | UnsupportedCharsetException e) { throw context.invalid(STR."encoding='\{encoding}'"); }
-                    if (context.skip(S) > 0) {
-                        if (context.match("standalone=")) {
-                            context.offset("standalone=".length());
-                            standalone = scanValue(context, Tokenizer::isLowerLetter);
-                            if (!standalone.equals("yes") && !standalone.equals("no"))
-                                throw context.invalid(STR."standalone='\{standalone}'");
-                            context.skip(S);
-                        }
-                    }
-                }
-                context.skip("?>");
-            }
-            default    -> throw new UnsupportedOperationException(STR."version: \{version}");
-        }
-        visitor.visitDeclaration(version, encoding, standalone);
-        return charset;
-    }
-    
-    @SneakyThrows
-    private static void scanXMLBody(final Visitor visitor, final Context context) {
-        record TagWithBuffer(String tag, StringBuilder buffer) { }
-        final LinkedList<TagWithBuffer> stack = { };
-        final StringBuilder outerData = { };
-        int c;
-        context.skip(S);
-        while (context.hasNext()) {
-            if ((c = context.nextChar()) == '<') {
-                switch (context.nextChar()) {
-                    case '?' -> {
-                        final String target = context.scanString(nameChecker(), 1);
-                        if (target.equalsIgnoreCase("xml"))
-                            throw context.invalid(STR."target: \{target}");
-                        visitor.visitProcessingInstructions(target, context.scanString(it -> it != '?'));
-                        context.skip("?>");
-                    }
-                    case '!' -> {
-                        if (context.match("--")) {
-                            context.offset(2);
-                            visitor.visitComment(context.scanString(_ -> true, 0, "--"));
-                            context.skip(">");
-                        } else if (context.match("<![CDATA["))
-                            (!stack.isEmpty() ? stack.getFirst().buffer : outerData).append(context.scanString(_ -> true, 0, "]]>"));
-                        else
-                            throw new UnsupportedOperationException();
-                    }
-                    case '/' -> {
-                        if (stack.isEmpty())
-                            throw context.invalid();
-                        final TagWithBuffer tagWithBuffer = stack.pop();
-                        context.skip(tagWithBuffer.tag);
-                        context.skip(">");
-                        visitor.visitCharData(tagWithBuffer.buffer.toString());
-                        visitor.visitTagEnd(tagWithBuffer.tag);
-                    }
-                    default  -> {
-                        final String tag = context.rollback().scanString(nameChecker(), 1);
-                        final LinkedHashMap<String, String> attr = { };
-                        final StringBuilder charData = { };
-                        stack.push(new TagWithBuffer(tag, charData));
-                        while (context.skip(S) > 0) {
-                            final String attrName = context.scanString(nameChecker());
-                            if (!attrName.isEmpty()) {
-                                context.skip("=");
-                                final String attrValue = scanValue(context);
-                                if (attr.put(attrName, attrValue) != null)
-                                    throw context.invalid(STR."Repeated attr: \{attrName}='\{attrValue}'");
-                            }
-                        }
-                        if (context.match("/>")) {
-                            stack.pop();
-                            context.offset(2);
-                            visitor.visitEmptyTag(tag, attr);
-                        } else {
-                            context.skip(">");
-                            visitor.visitTagBegin(tag, attr);
-                        }
-                    }
-                }
-                context.skip(S);
-            } else if (!stack.isEmpty())
-                stack.getFirst().buffer.appendCodePoint(c);
-            else
-                outerData.appendCodePoint(c);
-        }
-        visitor.visitCharData(outerData.toString());
-    }
-    
-    private static String scanKeyValue(final Context context, final String key, final IntPredicate checker) = scanValue(context.skip(key).skip("="), checker);
-    
-    private static String scanValue(final Context context, final IntPredicate checker) = switch (context.checkEOF().nextChar()) {
-        case '"'  -> { try { yield context.scanString(checker); } finally { context.skip("\""); } }
-        case '\'' -> { try { yield context.scanString(checker); } finally { context.skip("'"); } }
-        default   -> throw context.invalid();
-    };
-    
-    private static int nextChar(final Context context) {
-        final int nextChar = context.nextChar();
-        return switch (nextChar) {
-            case '&' -> {
-                final String entity = context.scanString(it -> it != ';');
-                final @Nullable Integer represented = predefined[entity];
-                if (represented == null)
-                    throw context.invalid(STR."Entity: '\{entity}'");
-                context.skip(";");
-                yield represented;
-            }
-            case '<' -> throw context.invalid();
-            default  -> nextChar;
-        };
-    }
+    static void read(final InputStream input, final Visitor visitor, final String debugInfo) throws IOException = read(Channels.newChannel(input), visitor, debugInfo);
     
-    private static String scanValue(final Context context) = switch (context.checkEOF().nextChar()) {
-        case '"'  -> { try { yield context.scanString(it -> it != '"' && it != '<', 0, null, () -> nextChar(context)); } finally { context.skip("\""); } }
-        case '\'' -> { try { yield context.scanString(it -> it != '\'' && it != '<', 0, null, () -> nextChar(context)); } finally { context.skip("'"); } }
-        default   -> throw context.invalid();
-    };
+    static void read(final ReadableByteChannel channel, final Visitor visitor, final String debugInfo) throws IOException = new Reader(channel, debugInfo).accept(visitor);
     
 }
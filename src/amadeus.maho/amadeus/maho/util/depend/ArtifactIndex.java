@@ -0,0 +1,189 @@
+package amadeus.maho.util.depend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import amadeus.maho.core.Maho;
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.runtime.MemoryHelper;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/*
+ * Persistent index of a repository cache directory, shared by every repository instance using that directory.
+ * Layout: MAGIC, then records of [int keyLength][key (UTF-8)][int dataLength][long size][long lastModified][payload], all big-endian.
+ * A record is only trusted while the cached file still has the recorded size and modification time, later records of the same key replace earlier ones.
+ * Keys are relative paths of the cache, parsed forms of a file are stored under `relative#kind`.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ArtifactIndex implements AutoCloseable {
+    
+    public interface Codec<T> {
+        
+        void write(DataOutputStream output, T value) throws IOException;
+        
+        T read(DataInputStream input) throws IOException;
+        
+    }
+    
+    public record Stamp(long size, long lastModified) {
+        
+        public static @Nullable Stamp of(final Path path) throws IOException {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.isRegularFile() ? new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+            } catch (final NoSuchFileException e) { return null; }
+        }
+        
+    }
+    
+    public static final int MAGIC = 0x4D41_4901;
+    
+    public static final String FILE_NAME = ".maho-index";
+    
+    private static final int STAMP_BYTES = Long.BYTES * 2;
+    
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    
+    private static final ConcurrentHashMap<Path, ArtifactIndex> indexes = { };
+    
+    @Getter
+    Path path;
+    
+    MemorySegment mapped;
+    
+    // key -> (offset << 32 | length) in the mapped segment
+    ConcurrentHashMap<String, Long> index = { };
+    
+    ConcurrentHashMap<String, byte[]> appended = { };
+    
+    FileChannel channel;
+    
+    @SneakyThrows
+    public ArtifactIndex(final Path path) {
+        this.path = path;
+        ~path.getParent();
+        try (final FileChannel reader = FileChannel.open(path, CREATE, READ, WRITE)) {
+            final long valid = scan(reader);
+            if (valid < reader.size()) {
+                Maho.debug(STR."ArtifactIndex: truncate \{path} from \{reader.size()} to \{valid}");
+                reader.truncate(valid);
+            }
+            if (valid == 0L)
+                reader.write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip(), 0L);
+        }
+        mapped = index.isEmpty() ? MemorySegment.NULL : MemoryHelper.map(path);
+        channel = FileChannel.open(path, WRITE, APPEND);
+    }
+    
+    // Reads the record headers only and returns the length of the well-formed prefix of the file.
+    private long scan(final FileChannel reader) throws IOException {
+        final long size = reader.size();
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        if (size < Integer.BYTES || reader.read(header, 0L) != Integer.BYTES || header.flip().getInt() != MAGIC)
+            return 0L;
+        long position = Integer.BYTES;
+        while (position + Integer.BYTES <= size) {
+            reader.read(header.clear(), position);
+            final int keyLength = header.flip().getInt();
+            if (keyLength <= 0 || position + Integer.BYTES + keyLength + Integer.BYTES > size)
+                break;
+            final ByteBuffer key = ByteBuffer.allocate(keyLength);
+            reader.read(key, position + Integer.BYTES);
+            reader.read(header.clear(), position + Integer.BYTES + keyLength);
+            final int dataLength = header.flip().getInt();
+            final long dataOffset = position + Integer.BYTES + keyLength + Integer.BYTES;
+            if (dataLength < STAMP_BYTES || dataOffset + dataLength > size || dataOffset > Integer.MAX_VALUE)
+                break;
+            index[new String(key.array(), StandardCharsets.UTF_8)] = dataOffset << 32 | dataLength;
+            position = dataOffset + dataLength;
+        }
+        return position;
+    }
+    
+    // Returns the payload recorded for the key if it was recorded against the same stamp.
+    public @Nullable byte[] get(final String key, final @Nullable Stamp stamp) {
+        if (stamp == null)
+            return null;
+        final @Nullable byte fresh[] = appended[key];
+        if (fresh != null) {
+            final ByteBuffer buffer = ByteBuffer.wrap(fresh);
+            return buffer.getLong() == stamp.size() && buffer.getLong() == stamp.lastModified() ? Arrays.copyOfRange(fresh, STAMP_BYTES, fresh.length) : null;
+        }
+        final @Nullable Long location = index[key];
+        if (location == null)
+            return null;
+        final long offset = location >>> 32, length = location & 0xFFFFFFFFL;
+        if (mapped.get(LONG, offset) != stamp.size() || mapped.get(LONG, offset + Long.BYTES) != stamp.lastModified())
+            return null;
+        return mapped.asSlice(offset + STAMP_BYTES, length - STAMP_BYTES).toArray(ValueLayout.JAVA_BYTE);
+    }
+    
+    @SneakyThrows
+    public void put(final String key, final Stamp stamp, final byte payload[] = new byte[0]) {
+        final byte keyBytes[] = key.getBytes(StandardCharsets.UTF_8), data[] = ByteBuffer.allocate(STAMP_BYTES + payload.length)
+                .putLong(stamp.size())
+                .putLong(stamp.lastModified())
+                .put(payload)
+                .array();
+        appended[key] = data;
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + keyBytes.length + Integer.BYTES + data.length)
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .putInt(data.length)
+                .put(data)
+                .flip();
+        synchronized (channel) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+    
+    public boolean verified(final String key, final @Nullable Stamp stamp) = get(key, stamp) != null;
+    
+    // Decodes the recorded form of the source file, or computes and records it when the source changed since.
+    @SneakyThrows
+    public <T> T computeIfAbsent(final String key, final Path source, final Codec<T> codec, final Supplier<T> compute) {
+        final @Nullable Stamp stamp = Stamp.of(source);
+        final @Nullable byte payload[] = get(key, stamp);
+        if (payload != null)
+            try {
+                return codec.read(new DataInputStream(new ByteArrayInputStream(payload)));
+            } catch (final IOException e) { Maho.debug(STR."ArtifactIndex: discard \{key}: \{e}"); }
+        final T value = compute.get();
+        if (stamp != null) {
+            final ByteArrayOutputStream output = { };
+            final DataOutputStream data = { output };
+            codec.write(data, value);
+            data.flush();
+            put(key, stamp, output.toByteArray());
+        }
+        return value;
+    }
+    
+    @Override
+    public void close() throws IOException = channel.close();
+    
+    public static ArtifactIndex of(final Path cacheDir) = indexes.computeIfAbsent(cacheDir.toAbsolutePath().normalize(), dir -> new ArtifactIndex(dir / FILE_NAME));
+    
+}
@@ -2,11 +2,14 @@ package amadeus.maho.util.depend;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -29,6 +32,7 @@ import amadeus.maho.lang.RequiredArgsConstructor;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.control.Interrupt;
+import amadeus.maho.util.link.http.HttpHelper;
 import amadeus.maho.util.link.http.HttpSetting;
 import amadeus.maho.util.logging.progress.BaseIOTaskProgress;
 import amadeus.maho.util.logging.progress.ProgressBar;
@@ -101,6 +105,8 @@ public abstract class CacheableHttpRepository implements Repository {
         
     }
     
+    public static final String PART_SUFFIX = ".part", VALIDATOR_SUFFIX = ".validator";
+    
     Path cacheDir;
     
     String rootUrl;
@@ -122,10 +128,26 @@ public abstract class CacheableHttpRepository implements Repository {
     
     public Path relative(final Project project, final String extension) throws IOException = Path.of(STR."\{uri(project, extension)}.\{extension}");
     
+    public ArtifactIndex index() = ArtifactIndex.of(cacheDir());
+    
+    public static String indexKey(final Path relative) = relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+    
+    public void markVerified(final Path relative, final Path cache) throws IOException {
+        final @Nullable ArtifactIndex.Stamp stamp = ArtifactIndex.Stamp.of(cache);
+        if (stamp != null)
+            index().put(indexKey(relative), stamp);
+    }
+    
+    // Files verified once are trusted until their size or modification time changes, so warm lookups cost a single stat.
     public Path cache(final Path relative, final Path cache = cacheDir() / relative) throws IOException {
-        if (Files.exists(cache))
-            if (checkCacheCompleteness(cache)) {
+        final @Nullable ArtifactIndex.Stamp stamp = ArtifactIndex.Stamp.of(cache);
+        if (stamp != null)
+            if (index().verified(indexKey(relative), stamp)) {
+                logger().accept(DEBUG, STR."The local cache of \{relative} was verified before, use it.");
+                return cache;
+            } else if (checkCacheCompleteness(cache)) {
                 logger().accept(DEBUG, STR."The local cache of \{relative} detected, use it.");
+                index().put(indexKey(relative), stamp);
                 return cache;
             } else
                 logger().accept(WARNING, STR."The local cache of \{relative} was detected, but it has been corrupted and will be downloaded again.");
@@ -149,26 +171,71 @@ public abstract class CacheableHttpRepository implements Repository {
     public HttpRequest.Builder request(final Path relative) = HttpRequest.newBuilder().GET().let(builder -> setting().headers().forEach(builder::header))
             .uri(URI.create(rootUrl() + relative.toString().replace(relative.getFileSystem().getSeparator(), "/")));
     
+    public DownloadScheduler scheduler() = DownloadScheduler.defaultInstance();
+    
+    // Only a strong entity tag or a modification date may guard a resumed range, a weak tag does not promise byte-identical content.
+    protected static void saveValidator(final Path validator, final HttpHeaders headers) throws IOException {
+        final @Nullable String value = headers.firstValue(HttpHelper.Header.ETag).filter(tag -> !tag.startsWith("W/")).or(() -> headers.firstValue(HttpHelper.Header.Last_Modified)).orElse(null);
+        if (value != null)
+            Files.writeString(validator, value);
+        else
+            validator--;
+    }
+    
+    // An interrupted artifact transfer is resumed from its partial file under If-Range, so a changed remote file is sent whole instead of being spliced onto stale bytes; metadata is always fetched whole.
     @SneakyThrows
     public Path downloadDataFormRemote(final Path relative, final Path cache = cacheDir() / relative, final boolean completenessMetadata = false) throws IOException {
         int retries = maxRetries();
-        final HttpRequest request = request(relative).build();
-        logger().accept(DEBUG, STR."Downloading \{request.uri()} => \{cache}");
+        final DownloadScheduler.Priority priority = DownloadScheduler.priority(relative);
+        final Path part = cache << PART_SUFFIX, validator = part << VALIDATOR_SUFFIX;
+        final URI uri = request(relative).build().uri();
+        logger().accept(DEBUG, STR."Downloading \{uri} => \{cache}");
         final ArrayList<Throwable> throwables = { };
         do {
             try {
-                ++cache;
-                return Interrupt.getUninterruptible(() -> client().sendMayThrow(request, info -> {
+                ++part;
+                final boolean resumable = priority == DownloadScheduler.Priority.ARTIFACT;
+                final @Nullable String resumeValidator = resumable && Files.isRegularFile(part) && Files.isRegularFile(validator) ? Files.readString(validator) : null;
+                final long offset = resumeValidator != null ? Files.size(part) : 0L;
+                final HttpRequest request = (offset > 0L ? request(relative).header(HttpHelper.Header.Range, STR."bytes=\{offset}-").header(HttpHelper.Header.If_Range, resumeValidator) : request(relative)).build();
+                scheduler().run(uri.getHost(), priority, () -> Interrupt.getUninterruptible(() -> client().sendMayThrow(request, info -> {
                     final long contentLength = info.headers().firstValueAsLong("Content-Length").orElse(-1L);
                     return switch (info.statusCode()) {
-                        case OK        -> {
-                            final HttpResponse.BodySubscriber<Path> subscriber = HttpResponse.BodyHandlers.ofFile(cache--).apply(info);
-                            yield contentLength > 0 ? DownloadingTask.ofProgressBar(subscriber, request.uri().toASCIIString(), contentLength) : subscriber;
+                        case OK                    -> {
+                            // Also the answer to an If-Range whose validator no longer matches, the transfer restarts from the first byte.
+                            if (resumable)
+                                saveValidator(validator, info.headers());
+                            yield scheduler().track(HttpResponse.BodyHandlers.ofFile(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).apply(info), contentLength);
                         }
-                        case NOT_FOUND -> throw new RepositoryFileNotFoundException(request.uri().toString(), this);
-                        default        -> throw new IOException("Response status code: %d (%s)".formatted(info.statusCode(), request.uri()));
+                        case PARTIAL_CONTENT       -> {
+                            if (offset == 0L || !info.headers().firstValue(HttpHelper.Header.Content_Range).orElse("").startsWith(STR."bytes \{offset}-")) {
+                                part--;
+                                validator--;
+                                throw new IOException(STR."Unexpected range: \{info.headers().firstValue(HttpHelper.Header.Content_Range).orElse(null)} (\{uri})");
+                            }
+                            yield scheduler().track(HttpResponse.BodyHandlers.ofFile(part, StandardOpenOption.WRITE, StandardOpenOption.APPEND).apply(info), contentLength);
+                        }
+                        case RANGE_NOT_SATISFIABLE -> {
+                            part--;
+                            validator--;
+                            throw new IOException(STR."Range not satisfiable: bytes=\{offset}- (\{uri})");
+                        }
+                        case NOT_FOUND             -> throw new RepositoryFileNotFoundException(uri.toString(), this);
+                        default                    -> throw new IOException("Response status code: %d (%s)".formatted(info.statusCode(), uri));
                     };
-                }).body()).let(it -> onDownloadCompleted(relative, it, completenessMetadata));
+                }).body()));
+                Files.move(part, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                validator--;
+                try {
+                    onDownloadCompleted(relative, cache, completenessMetadata);
+                } catch (final IllegalStateException e) {
+                    // A file that fails verification is discarded whole and fetched again from the first byte.
+                    cache--;
+                    throw new IOException(STR."Verification failed: \{cache} (\{uri})", e);
+                }
+                if (!completenessMetadata)
+                    markVerified(relative, cache);
+                return cache;
             } catch (final IOException e) {
                 if (e instanceof RepositoryFileNotFoundException notFoundEx)
                     throw notFoundEx;
@@ -176,7 +243,7 @@ public abstract class CacheableHttpRepository implements Repository {
                     throwables += e;
             }
         } while (--retries > 0);
-        throw new RepositoryFileNotFoundException(request.uri().toString(), this).let(it -> it.addSuppressed(new RetryException(throwables)));
+        throw new RepositoryFileNotFoundException(uri.toString(), this).let(it -> it.addSuppressed(new RetryException(throwables)));
     }
     
     @SneakyThrows
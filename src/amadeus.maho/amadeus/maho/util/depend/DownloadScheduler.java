@@ -0,0 +1,193 @@
+package amadeus.maho.util.depend;
+
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
+import amadeus.maho.util.logging.progress.BaseIOTaskProgress;
+import amadeus.maho.util.logging.progress.ProgressBar;
+import amadeus.maho.util.misc.Environment;
+
+/*
+ * Caps the requests in flight per host, waiting requests are granted by priority and then in arrival order.
+ * Metadata is granted before artifacts, so the dependency graph keeps expanding while jars are queued.
+ * All transfers share one progress bar, which lives as long as something is downloading.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DownloadScheduler {
+    
+    public enum Priority { METADATA, ARTIFACT }
+    
+    @RequiredArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private static final class Waiter implements Comparable<Waiter> {
+        
+        Priority priority;
+        
+        long sequence;
+        
+        @Mutable
+        boolean granted;
+        
+        @Override
+        public int compareTo(final Waiter other) {
+            final int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+        
+    }
+    
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static final class Host {
+        
+        int inFlight;
+        
+        final PriorityQueue<Waiter> waiters = { };
+        
+    }
+    
+    @Getter
+    private static final DownloadScheduler defaultInstance = { Environment.local().lookup("amadeus.maho.depend.download.parallelism", 6) };
+    
+    @Getter
+    int maxPerHost;
+    
+    ReentrantLock lock = { };
+    
+    Condition condition = lock.newCondition();
+    
+    HashMap<String, Host> hosts = { };
+    
+    @Mutable
+    long sequence, total, received;
+    
+    @Mutable
+    int active;
+    
+    @Mutable
+    @Nullable BaseIOTaskProgress progress;
+    
+    @Mutable
+    @Nullable ProgressBar<BaseIOTaskProgress> progressBar;
+    
+    public DownloadScheduler(final int maxPerHost) {
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException(STR."maxPerHost: \{maxPerHost}");
+        this.maxPerHost = maxPerHost;
+    }
+    
+    // Descriptors and checksums are metadata, anything else is a packaged artifact, whatever its extension (jar, aar, klib, ...).
+    public static final Set<String> METADATA_EXTENSIONS = Set.of("pom", "xml", "module", "md5", "sha1", "sha256", "sha512", "asc");
+    
+    public static Priority priority(final Path relative) {
+        final String name = relative.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot != -1 && !METADATA_EXTENSIONS.contains(name.substring(dot + 1)) ? Priority.ARTIFACT : Priority.METADATA;
+    }
+    
+    public <T> T run(final String host, final Priority priority, final Supplier<T> task) {
+        acquire(host, priority);
+        try {
+            return task.get();
+        } finally { release(host); }
+    }
+    
+    protected void acquire(final String host, final Priority priority) {
+        lock.lock();
+        try {
+            final Host state = hosts.computeIfAbsent(host, _ -> new Host());
+            if (state.inFlight < maxPerHost && state.waiters.isEmpty()) {
+                state.inFlight++;
+                return;
+            }
+            final Waiter waiter = { priority, sequence++ };
+            state.waiters += waiter;
+            while (!waiter.granted)
+                condition.awaitUninterruptibly();
+        } finally { lock.unlock(); }
+    }
+    
+    // The permit is handed over directly, so a request arriving in between can not overtake the queue.
+    protected void release(final String host) {
+        lock.lock();
+        try {
+            final Host state = hosts[host];
+            final @Nullable Waiter next = state.waiters.poll();
+            if (next != null) {
+                next.granted = true;
+                condition.signalAll();
+            } else if (--state.inFlight == 0)
+                hosts.remove(host);
+        } finally { lock.unlock(); }
+    }
+    
+    // Reports the transfer of the subscriber to the shared progress bar.
+    @SneakyThrows
+    public <T> HttpResponse.BodySubscriber<T> track(final HttpResponse.BodySubscriber<T> subscriber, final long contentLength) {
+        if (!ProgressBar.supported())
+            return subscriber;
+        begin(contentLength);
+        final long p_reported[] = { 0L };
+        return new CacheableHttpRepository.DownloadingTask<>(subscriber, bytes -> {
+            advance(bytes - p_reported[0]);
+            p_reported[0] = bytes;
+        }, () -> end(contentLength - p_reported[0]));
+    }
+    
+    protected void begin(final long contentLength) {
+        lock.lock();
+        try {
+            active++;
+            total += Math.max(contentLength, 0L);
+            if (progressBar == null) {
+                progress = new BaseIOTaskProgress("Downloading", 1L);
+                progressBar = new ProgressBar<>(BaseIOTaskProgress.renderer, progress);
+            }
+            updateProgress();
+        } finally { lock.unlock(); }
+    }
+    
+    protected void advance(final long bytes) {
+        lock.lock();
+        try {
+            received += bytes;
+            updateProgress();
+        } finally { lock.unlock(); }
+    }
+    
+    @SneakyThrows
+    protected void end(final long remaining) {
+        lock.lock();
+        try {
+            received += Math.max(remaining, 0L);
+            if (--active == 0) {
+                progressBar!.close();
+                progressBar = null;
+                progress = null;
+                total = received = 0L;
+            } else
+                updateProgress();
+        } finally { lock.unlock(); }
+    }
+    
+    private void updateProgress() {
+        final BaseIOTaskProgress progress = this.progress!;
+        progress.name = STR."Downloading: \{active} file(s)";
+        progress.total = Math.max(total, 1L);
+        progress.update(received);
+        progressBar!.update();
+    }
+    
+}
@@ -1,13 +1,15 @@
 package amadeus.maho.util.depend.maven;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -17,7 +19,6 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import amadeus.maho.lang.AccessLevel;
@@ -29,9 +30,11 @@ import amadeus.maho.lang.NoArgsConstructor;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.ToString;
 import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
 import amadeus.maho.util.build.Module;
 import amadeus.maho.util.container.MapTable;
 import amadeus.maho.util.data.XML;
+import amadeus.maho.util.depend.ArtifactIndex;
 import amadeus.maho.util.depend.CacheableHttpRepository;
 import amadeus.maho.util.depend.JarRequirements;
 import amadeus.maho.util.depend.Project;
@@ -55,22 +58,23 @@ public class MavenRepository extends CacheableHttpRepository {
     @FieldDefaults(level = AccessLevel.PROTECTED, makeFinal = true)
     public static abstract class PomVisitor extends XML.Visitor {
         
-        private static final List<String>
-                projectPrefix    = List.of("project"),
-                parentPrefix     = List.of("project", "parent"),
-                propertiesPrefix = List.of("project", "properties");
+        XML.TagPath path = { };
         
-        LinkedList<String>        tags      = { };
-        LinkedList<StringBuilder> dataStack = { };
+        XML.TagPath.Matcher
+                projectPath    = path.compile("project"),
+                parentPath     = path.compile("project", "parent"),
+                propertiesPath = path.compile("project", "properties");
+        
+        // Indexed by depth, the builders are reused by sibling elements.
+        @Mutable
+        StringBuilder dataStack[] = { new StringBuilder() };
         
         HashMap<String, String>
                 projectProperties = { },
                 properties        = { };
         
-        { dataStack << new StringBuilder(); }
-        
         protected String data() {
-            final String data = dataStack.getLast().toString();
+            final String data = dataStack[path.depth()].toString();
             final StringBuilder builder = { }, var = { };
             final boolean p_flag[] = { false, false };
             data.codePoints().forEach(c -> {
@@ -131,39 +135,32 @@ public class MavenRepository extends CacheableHttpRepository {
             return builder.toString();
         }
         
-        protected boolean startsWish(final List<String> prefix) {
-            if (tags.size() < prefix.size())
-                return false;
-            final Iterator<String> prefixIterator = prefix.iterator(), tagsIterator = tags.iterator();
-            while (prefixIterator.hasNext())
-                if (!prefixIterator.next().equals(tagsIterator.next()))
-                    return false;
-            return true;
-        }
-        
-        protected boolean inProperties() = startsWish(propertiesPrefix);
+        protected boolean inProperties() = propertiesPath.startsWith();
         
         @Override
         public void visitCharData(final String data) {
-            dataStack.getLast().append(data);
+            dataStack[path.depth()].append(data);
             super.visitCharData(data);
         }
         
         @Override
         public void visitTagBegin(final String tag, final Map<String, String> attr) {
-            tags << tag;
-            dataStack << new StringBuilder();
+            path.push(tag);
+            final int depth = path.depth();
+            if (depth == dataStack.length)
+                dataStack = Arrays.copyOf(dataStack, depth << 1);
+            (dataStack[depth] ?? (dataStack[depth] = new StringBuilder())).setLength(0);
             super.visitTagBegin(tag, attr);
         }
         
         @Override
         public void visitTagEnd(final String tag) {
             if (inProperties())
-                properties[tags.stream().skip(2L).collect(Collectors.joining("."))] = data();
-            tags--;
-            if (projectPrefix.equals(tags) || parentPrefix.equals(tags) && !properties.containsKey(tag))
+                properties[path.join(2, ".")] = data();
+            // The element itself is the extra level below the prefix.
+            if (projectPath.matches(1) || parentPath.matches(1) && !properties.containsKey(tag))
                 projectProperties[STR."project.\{tag}"] = data();
-            dataStack--;
+            path.pop();
             super.visitTagEnd(tag);
         }
         
@@ -173,11 +170,33 @@ public class MavenRepository extends CacheableHttpRepository {
     @EqualsAndHashCode
     public record SnapshotVersion(String classifier, String extension, String value) {
         
+        public static final ArtifactIndex.Codec<List<SnapshotVersion>> codec = new ArtifactIndex.Codec<>() {
+            
+            @Override
+            public void write(final DataOutputStream output, final List<SnapshotVersion> value) throws IOException {
+                output.writeInt(value.size());
+                for (final SnapshotVersion version : value) {
+                    output.writeUTF(version.classifier());
+                    output.writeUTF(version.extension());
+                    output.writeUTF(version.value());
+                }
+            }
+            
+            @Override
+            public List<SnapshotVersion> read(final DataInputStream input) throws IOException {
+                final SnapshotVersion versions[] = new SnapshotVersion[input.readInt()];
+                for (int i = 0; i < versions.length; i++)
+                    versions[i] = new SnapshotVersion(input.readUTF(), input.readUTF(), input.readUTF());
+                return List.of(versions);
+            }
+            
+        };
+        
         @NoArgsConstructor
         @FieldDefaults(level = AccessLevel.PRIVATE)
         public static final class Visitor extends PomVisitor {
             
-            private static final List<String> snapshotVersionPrefix = List.of("metadata", "versioning", "snapshotVersions", "snapshotVersion");
+            final XML.TagPath.Matcher snapshotVersionPath = path.compile("metadata", "versioning", "snapshotVersions", "snapshotVersion");
             
             @Nullable String classifier, extension, value;
             
@@ -186,7 +205,7 @@ public class MavenRepository extends CacheableHttpRepository {
             
             @Override
             public void visitTagEnd(final String tag) {
-                if (startsWish(snapshotVersionPrefix))
+                if (snapshotVersionPath.startsWith())
                     switch (tag) {
                         // @formatter:off
                         case "classifier"      -> classifier = data();
@@ -212,18 +231,33 @@ public class MavenRepository extends CacheableHttpRepository {
     @EqualsAndHashCode
     public record VersionInfo(String latest, String release, String lastUpdated, String... versions) {
         
+        public static final ArtifactIndex.Codec<VersionInfo> codec = new ArtifactIndex.Codec<>() {
+            
+            @Override
+            public void write(final DataOutputStream output, final VersionInfo value) throws IOException {
+                output.writeUTF(value.latest());
+                output.writeUTF(value.release());
+                output.writeUTF(value.lastUpdated());
+                writeStrings(output, value.versions());
+            }
+            
+            @Override
+            public VersionInfo read(final DataInputStream input) throws IOException = { input.readUTF(), input.readUTF(), input.readUTF(), readStrings(input) };
+            
+        };
+        
         @NoArgsConstructor
         @FieldDefaults(level = AccessLevel.PRIVATE)
         public static final class Visitor extends PomVisitor {
             
-            private static final List<String> versioningPrefix = List.of("metadata", "versioning");
+            final XML.TagPath.Matcher versioningPath = path.compile("metadata", "versioning");
             
             @Nullable String latest, release, lastUpdated;
             LinkedList<String> versions = { };
             
             @Override
             public void visitTagEnd(final String tag) {
-                if (startsWish(versioningPrefix))
+                if (versioningPath.startsWith())
                     switch (tag) {
                         // @formatter:off
                         case "latest"      -> latest      = data();
@@ -245,7 +279,33 @@ public class MavenRepository extends CacheableHttpRepository {
     @FieldDefaults(level = AccessLevel.PRIVATE)
     public static final class PomDependenciesVisitor extends PomVisitor {
         
-        private static final List<String> dependencyPrefix = List.of("project", "dependencies", "dependency");
+        public static final ArtifactIndex.Codec<Collection<Project.Dependency>> codec = new ArtifactIndex.Codec<>() {
+            
+            @Override
+            public void write(final DataOutputStream output, final Collection<Project.Dependency> value) throws IOException {
+                output.writeInt(value.size());
+                for (final Project.Dependency dependency : value) {
+                    final Project project = dependency.project();
+                    output.writeUTF(project.group());
+                    output.writeUTF(project.artifact());
+                    output.writeUTF(project.version());
+                    writeStrings(output, project.classifiers());
+                    output.writeBoolean(dependency.compile());
+                    output.writeBoolean(dependency.runtime());
+                }
+            }
+            
+            @Override
+            public Collection<Project.Dependency> read(final DataInputStream input) throws IOException {
+                final Project.Dependency dependencies[] = new Project.Dependency[input.readInt()];
+                for (int i = 0; i < dependencies.length; i++)
+                    dependencies[i] = new Project.Dependency(new Project(input.readUTF(), input.readUTF(), input.readUTF(), readStrings(input)), input.readBoolean(), input.readBoolean());
+                return Set.of(dependencies);
+            }
+            
+        };
+        
+        final XML.TagPath.Matcher dependencyPath = path.compile("project", "dependencies", "dependency");
         
         final HashSet<Project.Dependency> dependencies = { };
         
@@ -253,7 +313,7 @@ public class MavenRepository extends CacheableHttpRepository {
         
         @Override
         public void visitTagEnd(final String tag) {
-            if (startsWish(dependencyPrefix) && tags.size() == dependencyPrefix.size() + (tag.equals("dependency") ? 0 : 1))
+            if (dependencyPath.matches(tag.equals("dependency") ? 0 : 1))
                 switch (tag) {
                     // @formatter:off
                     case "groupId"    -> group    = data();
@@ -312,9 +372,11 @@ public class MavenRepository extends CacheableHttpRepository {
             return snapshotVersionsCache.computeIfAbsent(project.dropClassifier(), _ -> {
                         try {
                             final Path path = tryUpdateCache(relative);
-                            final SnapshotVersion.Visitor visitor = { };
-                            XML.read(path, visitor, relative | "/");
-                            return visitor.result();
+                            return index().computeIfAbsent(STR."\{indexKey(relative)}#snapshotVersions", path, SnapshotVersion.codec, () -> {
+                                final SnapshotVersion.Visitor visitor = { };
+                                XML.read(path, visitor, relative | "/");
+                                return visitor.result();
+                            });
                         } catch (final RepositoryFileNotFoundException e) { return List.of(); }
                     })
                     .stream()
@@ -333,6 +395,19 @@ public class MavenRepository extends CacheableHttpRepository {
     
     public static String readMD5(final Path path) throws IOException = Files.readString(path).split(" ")[0];
     
+    private static void writeStrings(final DataOutputStream output, final String values[]) throws IOException {
+        output.writeShort(values.length);
+        for (final String value : values)
+            output.writeUTF(value);
+    }
+    
+    private static String[] readStrings(final DataInputStream input) throws IOException {
+        final String values[] = new String[input.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = input.readUTF();
+        return values;
+    }
+    
     @Override
     @SneakyThrows
     public boolean checkCacheCompleteness(final Path cache) {
@@ -359,8 +434,8 @@ public class MavenRepository extends CacheableHttpRepository {
     
     @SneakyThrows
     public VersionInfo resolveVersionInfo(final String group, final String artifact) throws IOException = versionInfoCache.row(group).computeIfAbsent(artifact, it -> {
-        final Path relative = Path.of(STR."\{group.replace('.', '/')}/\{it}/maven-metadata.xml");
-        return new VersionInfo.Visitor().let(visitor -> XML.read(tryUpdateCache(relative), visitor, relative | "/")).result();
+        final Path relative = Path.of(STR."\{group.replace('.', '/')}/\{it}/maven-metadata.xml"), path = tryUpdateCache(relative);
+        return index().computeIfAbsent(STR."\{indexKey(relative)}#versionInfo", path, VersionInfo.codec, () -> new VersionInfo.Visitor().let(visitor -> XML.read(path, visitor, relative | "/")).result());
     });
     
     @SneakyThrows
@@ -386,8 +461,9 @@ public class MavenRepository extends CacheableHttpRepository {
     public Tuple2<Project.Dependency, Collection<Project.Dependency>> resolveDependency(final Project.Dependency dependency) throws IOException = await(resolveCache.computeIfAbsent(dependency, it -> async(() -> {
         final Project project = resolveWildcards(dependency.project());
         try {
-            final Path pom = relative(project, POM);
-            return Tuple.tuple(new Project.Dependency(project, dependency.compile(), dependency.runtime(), this), new PomDependenciesVisitor().let(visitor -> XML.read(cache(pom), visitor, pom | "/")).result());
+            final Path pom = relative(project, POM), cache = cache(pom);
+            return Tuple.tuple(new Project.Dependency(project, dependency.compile(), dependency.runtime(), this),
+                    index().computeIfAbsent(STR."\{indexKey(pom)}#dependencies", cache, PomDependenciesVisitor.codec, () -> new PomDependenciesVisitor().let(visitor -> XML.read(cache, visitor, pom | "/")).result()));
         } catch (final RepositoryFileNotFoundException notFoundEx) {
             final Path jar = relative(project, JAR);
             if (exists(jar))
@@ -26,7 +26,8 @@ public abstract class Event {
     @FieldDefaults(level = AccessLevel.PRIVATE)
     public static abstract class Cancellable extends Event {
         
-        boolean cancel = false;
+        // Phased dispatch sets and checks it from different threads.
+        volatile boolean cancel = false;
         
         public boolean confirm() = !cancel();
     
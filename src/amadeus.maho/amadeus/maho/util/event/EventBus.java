@@ -6,8 +6,11 @@ import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -19,6 +22,7 @@ import amadeus.maho.lang.NoArgsConstructor;
 import amadeus.maho.lang.Setter;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.concurrent.AsyncHelper;
 import amadeus.maho.util.concurrent.ConcurrentWeakIdentityHashMap;
 import amadeus.maho.util.dynamic.LambdaHelper;
 import amadeus.maho.util.function.FunctionHelper;
@@ -32,14 +36,46 @@ import amadeus.maho.util.type.TypeToken;
 @FieldDefaults(level = AccessLevel.PROTECTED)
 public class EventBus {
     
+    public enum Mode {
+        
+        SEQUENTIAL, // the whole call chain runs on the pushing thread
+        PHASED // listeners of the same ordinal run concurrently on the executor, ordinals are still executed in order, cancellable events run on the pushing thread like the sequential chain
+        
+    }
+    
+    // Collects the events reaching its position in the call chain, the listener receives them as a list when the bus is flushed.
+    public record Batch<E extends Event>(ConcurrentLinkedQueue<E> pending, MethodHandle listener, boolean async) {
+        
+        public void offer(final E event) = pending += event;
+        
+        public List<E> drain() {
+            final ArrayList<E> events = { };
+            for (@Nullable E event; (event = pending.poll()) != null; )
+                events += event;
+            return events;
+        }
+        
+    }
+    
     final ConcurrentWeakIdentityHashMap<Class<? extends Event>, EventDispatcher> dispatcherLocal = { };
     
     final ConcurrentHashMap<Object, List<MethodHandle>> registeredMapping = { };
     
+    final ConcurrentHashMap<MethodHandle, Batch<?>> batches = { };
+    
     @Setter
     @Getter
     private Consumer<Throwable> throwableHandler = FunctionHelper::rethrow;
     
+    @Setter
+    @Getter
+    private Mode mode = Mode.SEQUENTIAL;
+    
+    // Used by async listeners and phased dispatch, e.g. Executors.newVirtualThreadPerTaskExecutor().
+    @Setter
+    @Getter
+    private Executor executor = AsyncHelper.defaultExecutor();
+    
     protected <E extends Event> EventDispatcher lookupEventDispatcher(final Class<E> eventType) = dispatcherLocal.computeIfAbsent(eventType, it -> {
         final Class<? extends Event> parentType = (Class<? extends Event>) eventType.getSuperclass();
         final @Nullable EventDispatcher parent = isBaseEventType(parentType) ? null : lookupEventDispatcher(parentType);
@@ -52,7 +88,10 @@ public class EventBus {
         do {
             final @Nullable EventDispatcher dispatcher = dispatcherLocal[eventType];
             if (dispatcher != null) {
-                dispatcher.dispatch(event);
+                if (mode() == Mode.PHASED)
+                    dispatcher.dispatch(event, executor());
+                else
+                    dispatcher.dispatch(event);
                 break;
             }
             eventType = (Class<? extends Event>) eventType.getSuperclass();
@@ -77,11 +116,32 @@ public class EventBus {
         final @Nullable List<MethodHandle> listeners = registeredMapping.remove(target);
         if (listeners == null)
             return false;
-        listeners.forEach(listener -> dispatcherLocal.get(listener.type().parameterType(0))?.removeListener(listener));
+        listeners.forEach(listener -> {
+            dispatcherLocal.get(listener.type().parameterType(0))?.removeListener(listener);
+            batches.remove(listener);
+        });
         return true;
     }
     
-    public <T extends Event> boolean addListener(final Consumer<T> listener, final Listener.Ordinal ordinal = Listener.Ordinal.NORMAL, final boolean ignoreCanceled = false) = new boolean[]{ false }
+    // Delivers the events collected by every batch listener since the last flush, Looper.WithBus flushes once per tick.
+    public void flush() = batches.values().forEach(batch -> {
+        final List<? extends Event> events = batch.drain();
+        if (!events.isEmpty())
+            if (batch.async())
+                executor().execute(() -> deliver(batch.listener(), events));
+            else
+                deliver(batch.listener(), events);
+    });
+    
+    protected void deliver(final MethodHandle listener, final List<? extends Event> events) {
+        try { listener.invokeExact((List<?>) events); } catch (final Throwable throwable) { throwableHandler().accept(throwable); }
+    }
+    
+    protected void execute(final MethodHandle listener, final Event event) {
+        try { listener.invokeExact(event); } catch (final Throwable throwable) { throwableHandler().accept(throwable); }
+    }
+    
+    public <T extends Event> boolean addListener(final Consumer<T> listener, final Listener.Ordinal ordinal = Listener.Ordinal.NORMAL, final boolean ignoreCanceled = false, final boolean async = false) = new boolean[]{ false }
             .let(p_result -> registeredMapping.computeIfAbsent(listener, it -> {
                 p_result[0] = true;
                 final Class<? extends Event> eventType = TypeInferer.infer(TypeToken.<T, Consumer<T>>locate(), listener.getClass()).erasedType();
@@ -91,12 +151,23 @@ public class EventBus {
                         \{eventType}""");
                 MethodHandle handle = LambdaHelper.lookupFunctionalMethodHandleAndBind(it);
                 handle = MethodHandles.explicitCastArguments(handle, MethodType.methodType(void.class, eventType));
+                if (async)
+                    handle = async(handle);
                 if (ignoreCanceled)
                     handle = checkCanceled(handle);
                 addListenerHandle(new EventDispatcher.OrdinalWrapper(ordinal, handle));
                 return List.of(handle);
             }))[0];
     
+    public <T extends Event> boolean addBatchListener(final Class<T> eventType, final Consumer<List<T>> listener, final Listener.Ordinal ordinal = Listener.Ordinal.NORMAL, final boolean ignoreCanceled = false,
+            final boolean async = false) = new boolean[]{ false }
+            .let(p_result -> registeredMapping.computeIfAbsent(listener, it -> {
+                p_result[0] = true;
+                final MethodHandle handle = batch(eventType, LambdaHelper.lookupFunctionalMethodHandleAndBind(it), ignoreCanceled, async);
+                addListenerHandle(new EventDispatcher.OrdinalWrapper(ordinal, handle));
+                return List.of(handle);
+            }))[0];
+    
     protected <E extends Event> void addListenerHandle(final EventDispatcher.OrdinalWrapper wrapper) = lookupEventDispatcher((Class<E>) wrapper.handle.type().parameterType(0)).addListener(wrapper);
     
     protected List<EventDispatcher.OrdinalWrapper> analyzeStatic(final Class<?> clazz) = Stream.of(clazz.getDeclaredMethods())
@@ -116,7 +187,8 @@ public class EventBus {
         final Listener listener = method.getAnnotation(Listener.class);
         if (listener == null)
             return null;
-        if (method.getParameterCount() != 1 || !Event.class.isAssignableFrom(method.getParameterTypes()[0]))
+        final @Nullable Class<? extends Event> batchType = batchEventType(method);
+        if (method.getParameterCount() != 1 || batchType == null && !Event.class.isAssignableFrom(method.getParameterTypes()[0]))
             throw new IllegalArgumentException(STR."""
                 The listener method can only and must have an argument of target Event.
                 \{method.getDeclaringClass()}\{method}""");
@@ -127,11 +199,36 @@ public class EventBus {
         MethodHandle handle = MethodHandleHelper.lookup().unreflect(method);
         if (ReflectionHelper.noneMatch(method, ReflectionHelper.STATIC))
             handle = handle.bindTo(instance);
+        if (batchType != null)
+            return { listener.value(), batch(batchType, handle, listener.ignoreCanceled(), listener.async()) };
+        handle = processMethodHandle(handle, method);
+        if (listener.async())
+            handle = async(handle);
         if (!listener.ignoreCanceled())
             handle = checkCanceled(handle);
-        return { listener.value(), processMethodHandle(handle, method) };
+        return { listener.value(), handle };
+    }
+    
+    // A listener declared as `void on(List<E> events)` is a batch listener of E.
+    protected static @Nullable Class<? extends Event> batchEventType(final Method method)
+            = method.getParameterCount() == 1 && method.getParameterTypes()[0] == List.class && method.getGenericParameterTypes()[0] instanceof ParameterizedType parameterizedType &&
+              parameterizedType.getActualTypeArguments()[0] instanceof Class<?> clazz && Event.class.isAssignableFrom(clazz) ? (Class<? extends Event>) clazz : null;
+    
+    protected MethodHandle batch(final Class<? extends Event> eventType, final MethodHandle listener, final boolean ignoreCanceled, final boolean async) {
+        final Batch<?> batch = new Batch<>(new ConcurrentLinkedQueue<>(), listener.asType(MethodType.methodType(void.class, List.class)), async);
+        MethodHandle handle = MethodHandles.explicitCastArguments(OFFER.bindTo(batch), MethodType.methodType(void.class, eventType));
+        if (!ignoreCanceled)
+            handle = checkCanceled(handle);
+        batches[handle] = batch;
+        return handle;
     }
     
+    // The cancellation state is checked on the pushing thread, the listener itself only runs later on the executor.
+    protected MethodHandle async(final MethodHandle handle)
+            = MethodHandles.explicitCastArguments(MethodHandles.insertArguments(EXECUTE_ASYNC, 0, this, MethodHandles.explicitCastArguments(handle, MethodType.methodType(void.class, Event.class))), handle.type());
+    
+    protected void executeAsync(final MethodHandle listener, final Event event) = executor().execute(() -> execute(listener, event));
+    
     protected MethodHandle processMethodHandle(final MethodHandle handle, final Method method) {
         final Class<? extends Event> eventType = (Class<? extends Event>) handle.type().parameterType(0);
         if (eventType.getTypeParameters().length > 0) {
@@ -159,6 +256,8 @@ public class EventBus {
             GET_THROWABLE_HANDLER = MethodHandleHelper.lookup().findGetter(EventBus.class, "throwableHandler", Consumer.class),
             HANDLE_THROWABLE      = MethodHandles.explicitCastArguments(MethodHandleHelper.lookup().findVirtual(Consumer.class, "accept", MethodType.methodType(void.class, Object.class)),
                     MethodType.methodType(void.class, Consumer.class, Throwable.class)),
-            CHECK_CANCELED        = MethodHandleHelper.lookup().findStatic(EventBus.class, "checkCanceled", MethodType.methodType(boolean.class, Event.class));
+            CHECK_CANCELED        = MethodHandleHelper.lookup().findStatic(EventBus.class, "checkCanceled", MethodType.methodType(boolean.class, Event.class)),
+            EXECUTE_ASYNC         = MethodHandleHelper.lookup().findVirtual(EventBus.class, "executeAsync", MethodType.methodType(void.class, MethodHandle.class, Event.class)),
+            OFFER                 = MethodHandleHelper.lookup().findVirtual(Batch.class, "offer", MethodType.methodType(void.class, Event.class));
     
 }
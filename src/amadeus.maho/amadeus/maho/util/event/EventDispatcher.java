@@ -4,7 +4,13 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.MutableCallSite;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import amadeus.maho.lang.AccessLevel;
@@ -14,6 +20,7 @@ import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.ToString;
 import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
 
 @FieldDefaults(level = AccessLevel.PROTECTED, makeFinal = true)
 public class EventDispatcher {
@@ -44,6 +51,10 @@ public class EventDispatcher {
     
     ConcurrentLinkedQueue<OrdinalWrapper> listeners = { };
     
+    // Listeners grouped by ordinal, in execution order.
+    @Mutable
+    volatile List<List<MethodHandle>> phases = List.of();
+    
     public EventDispatcher(final @Nullable EventDispatcher parent, final Class<? extends Event> eventType, final MethodHandle throwableHandler) {
         this.parent = parent;
         this.throwableHandler = throwableHandler;
@@ -75,6 +86,8 @@ public class EventDispatcher {
         final MethodHandle p_result[] = { null };
         listeners().forEach(wrapper -> p_result[0] = p_result[0] == null ? catchThrowable(wrapper.handle) : MethodHandles.foldArguments(catchThrowable(wrapper.handle), p_result[0]));
         updateCallChainTarget(p_result[0]);
+        phases = listeners().collect(Collectors.groupingBy(wrapper -> wrapper.ordinal, () -> new EnumMap<>(Listener.Ordinal.class),
+                Collectors.mapping(wrapper -> MethodHandles.explicitCastArguments(catchThrowable(wrapper.handle), MethodType.methodType(void.class, Event.class)), Collectors.toList()))).values().stream().toList();
     }
     
     protected void updateCallChainTarget(final MethodHandle handle) = callChain.setTarget(handle);
@@ -84,4 +97,31 @@ public class EventDispatcher {
     @SneakyThrows
     public void dispatch(final Event event) = methodHandle.invokeExact(event);
     
+    // Listeners of one ordinal run concurrently, the next ordinal starts only after the whole phase has completed.
+    // A cancellable event runs its phases on the calling thread in chain order instead, so a cancellation skips the same listeners as in the sequential chain.
+    @SneakyThrows
+    public void dispatch(final Event event, final Executor executor) {
+        if (parent != null)
+            parent.dispatch(event, executor);
+        if (event instanceof Event.Cancellable) {
+            for (final List<MethodHandle> phase : phases)
+                for (final MethodHandle handle : phase)
+                    invoke(handle, event);
+            return;
+        }
+        for (final List<MethodHandle> phase : phases) {
+            final int last = phase.size() - 1;
+            final CompletableFuture<?> futures[] = new CompletableFuture<?>[last];
+            for (int i = 0; i < last; i++) {
+                final MethodHandle handle = phase[i];
+                futures[i] = CompletableFuture.runAsync(() -> invoke(handle, event), executor);
+            }
+            invoke(phase[last], event);
+            try { CompletableFuture.allOf(futures).join(); } catch (final CompletionException e) { throw e.getCause(); }
+        }
+    }
+    
+    @SneakyThrows
+    protected static void invoke(final MethodHandle handle, final Event event) = handle.invokeExact(event);
+    
 }
@@ -26,4 +26,7 @@ public @interface Listener {
     
     boolean ignoreCanceled() default false;
     
+    // Runs the listener on the executor of the bus, the listener observes the event without being able to cancel it for the rest of the chain.
+    boolean async() default false;
+    
 }
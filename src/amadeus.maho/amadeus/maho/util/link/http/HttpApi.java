@@ -18,6 +18,7 @@ import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
@@ -48,7 +49,9 @@ import amadeus.maho.util.annotation.mark.IndirectCaller;
 import amadeus.maho.util.bytecode.ASMHelper;
 import amadeus.maho.util.bytecode.generator.MethodGenerator;
 import amadeus.maho.util.data.JSON;
+import amadeus.maho.util.data.JSONCodec;
 import amadeus.maho.util.dynamic.CallerContext;
+import amadeus.maho.util.dynamic.DynamicObject;
 import amadeus.maho.util.dynamic.LookupHelper;
 import amadeus.maho.util.dynamic.Wrapper;
 import amadeus.maho.util.misc.Environment;
@@ -56,6 +59,7 @@ import amadeus.maho.util.runtime.ArrayHelper;
 import amadeus.maho.util.runtime.DebugHelper;
 import amadeus.maho.util.runtime.MethodHandleHelper;
 import amadeus.maho.util.runtime.ObjectHelper;
+import amadeus.maho.util.runtime.TypeHelper;
 import amadeus.maho.util.type.TypeInferer;
 import amadeus.maho.util.type.TypeToken;
 
@@ -132,7 +136,13 @@ public interface HttpApi {
             
             @Override
             public @Nullable HttpResponse.BodyHandler handler(final Callable callable) = responseInfo -> MediaType.charsetBySubType(responseInfo, "json") instanceof Charset charset ?
-                    new ResponseSubscribers.ByteArraySubscriber<>(bytes -> JSON.Dynamic.read(new String(bytes, charset))) : null;
+                    new ResponseSubscribers.ByteArraySubscriber<>(bytes -> JSONCodec.readValue(reader(ByteBuffer.wrap(bytes), charset, callable.returnType), callable.returnType)) : null;
+            
+            // DynamicObject results keep numbers as written, like the ones built by JSON.read.
+            private static JSON.Reader reader(final ByteBuffer buffer, final Charset charset, final Type type) {
+                final JSON.Reader reader = JSON.Reader.of(buffer, charset);
+                return DynamicObject.class.isAssignableFrom(TypeHelper.erase(type)) ? reader.exactNumbers() : reader;
+            }
             
         }
         
@@ -312,7 +322,7 @@ public interface HttpApi {
         }
         
     }
-
+    
     @NoArgsConstructor
     class MissingTokenException extends RuntimeException { }
     
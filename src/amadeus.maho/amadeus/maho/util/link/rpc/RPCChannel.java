@@ -0,0 +1,146 @@
+package amadeus.maho.util.link.rpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
+import amadeus.maho.util.concurrent.AsyncHelper;
+import amadeus.maho.util.serialization.Deserializable;
+import amadeus.maho.util.serialization.Serializable;
+
+import static amadeus.maho.util.link.rpc.RPCPacket.*;
+import static amadeus.maho.util.runtime.MemoryHelper.LE_INT;
+
+/*
+ * Non-blocking transport, a single selector thread owns both directions of the channel.
+ * Packets are framed as [int length (LE)][packet], so both peers have to use RPCChannel.
+ * Everything queued while the selector thread was busy is serialized into one outbound buffer and written at once.
+ */
+@Getter
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class RPCChannel extends RPCSocket {
+    
+    SocketChannel channel;
+    
+    Selector selector;
+    
+    ConcurrentLinkedQueue<RPCPacket> outboundQueue = { };
+    
+    AtomicBoolean wakeup = { };
+    
+    Serializable.Output.OfBuffer outbound;
+    
+    @Mutable
+    @Nullable ByteBuffer writing;
+    
+    @Mutable
+    ByteBuffer inbound;
+    
+    @SneakyThrows
+    public RPCChannel(final SocketChannel channel, final RPCContext context, final Executor localExecutor = AsyncHelper.newVirtualThreadExecutor("rpc-worker")) {
+        super(channel.socket(), context, localExecutor);
+        this.channel = channel;
+        selector = Selector.open();
+        outbound = Serializable.Output.OfBuffer.ofHeap(context.chunkLimit());
+        inbound = ByteBuffer.allocate(context.chunkLimit()).order(ByteOrder.LITTLE_ENDIAN);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+    
+    @Override
+    public void runLoop() = context().executor().execute(this::selectLoop);
+    
+    @Override
+    public void send(final RPCPacket packet) {
+        outboundQueue += packet;
+        if (!wakeup.getAndSet(true))
+            selector.wakeup();
+    }
+    
+    @SneakyThrows
+    protected void selectLoop() {
+        final SelectionKey key = channel.keyFor(selector);
+        send(context().sync());
+        try {
+            while (!running().isDone()) {
+                wakeup.set(false);
+                // A full socket waits for OP_WRITE, only packets queued behind a completed write are picked up without blocking.
+                if (flush() || !blocked()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    if (outboundQueue.isEmpty())
+                        selector.select();
+                    else
+                        selector.selectNow();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.select();
+                }
+                if (selector.selectedKeys().remove(key) && key.isReadable())
+                    read();
+            }
+        } catch (final IOException e) {
+            running().completeExceptionally(e);
+        } finally {
+            running().complete("closed");
+            failPending();
+            selector.close();
+            channel.close();
+        }
+    }
+    
+    // Returns true once every queued packet has been handed to the channel.
+    protected boolean flush() throws IOException {
+        if (writing == null || !writing.hasRemaining()) {
+            outbound.reset();
+            for (@Nullable RPCPacket packet; (packet = outboundQueue.poll()) != null; ) {
+                final long start = outbound.offset();
+                outbound.writeIntLittleEndian(0);
+                writePacket(outbound, packet);
+                packet.release();
+                outbound.segment().set(LE_INT, start, (int) (outbound.offset() - start - Integer.BYTES));
+            }
+            if (outbound.offset() == 0L)
+                return true;
+            writing = outbound.written().asByteBuffer();
+        }
+        channel.write(writing);
+        return !writing.hasRemaining() && outboundQueue.isEmpty();
+    }
+    
+    protected boolean blocked() = writing != null && writing.hasRemaining();
+    
+    protected void read() throws IOException {
+        if (channel.read(inbound) == -1)
+            throw new EOFException();
+        inbound.flip();
+        while (inbound.remaining() >= Integer.BYTES) {
+            final int position = inbound.position(), length = inbound.getInt(position);
+            // Checked before anything is allocated for the frame, payloads beyond the limit are refused by the reassembly as well.
+            if (length < 0 || length > context().maxPayload())
+                throw new IOException(STR."Invalid frame length: \{length}");
+            if (inbound.remaining() - Integer.BYTES < length) {
+                if (Integer.BYTES + length > inbound.capacity())
+                    inbound = ByteBuffer.allocate(Integer.BYTES + length).order(ByteOrder.LITTLE_ENDIAN).put(inbound).flip();
+                break;
+            }
+            // Packets copy what they keep, so the frame can be parsed in place.
+            handle(readPacket(Deserializable.Input.OfBuffer.of(inbound.slice(position + Integer.BYTES, length))));
+            inbound.position(position + Integer.BYTES + length);
+        }
+        inbound.compact();
+    }
+    
+}
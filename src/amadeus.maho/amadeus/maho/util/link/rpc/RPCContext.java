@@ -1,6 +1,10 @@
 package amadeus.maho.util.link.rpc;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.stream.Stream;
@@ -12,7 +16,6 @@ import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
 import amadeus.maho.util.concurrent.ConcurrentWeakIdentityHashMap;
 import amadeus.maho.util.runtime.ObjectHelper;
-import amadeus.maho.util.runtime.ReflectionHelper;
 import amadeus.maho.util.serialization.Serializer;
 import amadeus.maho.util.serialization.base.LengthFirstString;
 
@@ -30,6 +33,10 @@ public class RPCContext {
     @Default
     int maxPending = 64, chunkLimit = 8192;
     
+    // Bounds of the payloads split into continuation frames that are being reassembled, a peer opening more of them at once than it may have requests in flight is dropped.
+    @Default
+    int maxPayload = 64 << 20, maxPartialPayloads = 128;
+    
     RPCPacket.Sync sync = sync(interfaces);
     
     private static final ConcurrentWeakIdentityHashMap<Method, String> methodNameAndSignatures = { };
@@ -38,7 +45,38 @@ public class RPCContext {
     
     private static final ConcurrentWeakIdentityHashMap<Class<?>, List<Method>> allMethods = { };
     
-    public static List<Method> allMethods(final Class<?> itf) = allMethods.computeIfAbsent(itf, it -> ReflectionHelper.allMethods(it).stream().filterNot(ObjectHelper.objectBaseMethods::contains).toList());
+    // The methods a remote call can target: public instance methods of the interface and all of its superinterfaces, a method redeclared by a subinterface counts once.
+    // Both peers derive the indexes from this list, the stub maps them through the identities exchanged in the sync packet.
+    public static List<Method> allMethods(final Class<?> itf) = allMethods.computeIfAbsent(itf, it -> {
+        final LinkedHashMap<String, Method> result = { };
+        final ArrayDeque<Class<?>> queue = { };
+        final HashSet<Class<?>> visited = { };
+        queue += it;
+        while (!queue.isEmpty()) {
+            final Class<?> next = queue.poll();
+            if (!visited.add(next))
+                continue;
+            Stream.of(next.getDeclaredMethods())
+                    .filter(method -> Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers()) && !method.isSynthetic() && !method.isBridge())
+                    .filterNot(ObjectHelper.objectBaseMethods::contains)
+                    .forEach(method -> result.putIfAbsent(methodIdentity(method), method));
+            queue *= List.of(next.getInterfaces());
+        }
+        return List.copyOf(result.values());
+    });
+    
+    // Encoding of primitive arguments shared by RPCStub and RPCSkeleton, the suffix of the matching Output#write* / Input#read* methods.
+    public static String primitiveSuffix(final Class<?> type) = switch (type.getName()) {
+        case "boolean" -> "Boolean";
+        case "byte"    -> "Byte";
+        case "short"   -> "ShortLittleEndian";
+        case "char"    -> "CharLittleEndian";
+        case "int"     -> "VarInt";
+        case "long"    -> "VarLong";
+        case "float"   -> "FloatLittleEndian";
+        case "double"  -> "DoubleLittleEndian";
+        default        -> throw new IllegalArgumentException(type.getName());
+    };
     
     public static RPCPacket.Sync sync(final Class<?> interfaces[]) {
         final RPCPacket.Sync sync = { };
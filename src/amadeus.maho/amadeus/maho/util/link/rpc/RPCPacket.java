@@ -46,6 +46,12 @@ public sealed interface RPCPacket extends BinaryMapper {
         
         ByteArray data = { };
         
+        @Override
+        public void release() {
+            if (data instanceof RPCPayload payload)
+                payload.release();
+        }
+        
     }
     
     @BinaryMapping(value = BinaryMapping.Endian.LITTLE)
@@ -55,6 +61,24 @@ public sealed interface RPCPacket extends BinaryMapper {
         
         ByteArray data = { };
         
+        @Override
+        public void release() {
+            if (data instanceof RPCPayload payload)
+                payload.release();
+        }
+        
+    }
+    
+    // A leading part of the payload of the request or response with the same kind and id, sent ahead of it when the payload exceeds RPCContext.chunkLimit.
+    @BinaryMapping(value = BinaryMapping.Endian.LITTLE)
+    @FieldDefaults(level = AccessLevel.PUBLIC) final class Continuation implements RPCPacket {
+        
+        byte kind;
+        
+        int id;
+        
+        ByteArray data = { };
+        
     }
     
     @BinaryMapping(value = BinaryMapping.Endian.LITTLE)
@@ -69,7 +93,8 @@ public sealed interface RPCPacket extends BinaryMapper {
             REQUEST  = 1,
             RESPONSE = 2,
             ERROR    = 3,
-            CLOSE    = 4;
+            CLOSE    = 4,
+            CONTINUE = 5;
     
     byte
             ERROR_INVALID_INTERFACE    = 0,
@@ -77,7 +102,11 @@ public sealed interface RPCPacket extends BinaryMapper {
             ERROR_INVALID_METHOD       = 2,
             ERROR_INVALID_DATA         = 3,
             ERROR_INVOKE_EXCEPTION     = 4,
-            ERROR_SERIALIZATION_RESULT = 5;
+            ERROR_SERIALIZATION_RESULT = 5,
+            ERROR_CHANNEL_CLOSED       = 6;
+    
+    // Returns pooled payload buffers once the packet has been written out.
+    default void release() { }
     
     static RPCPacket readPacket(final Deserializable.Input input) throws IOException {
         final int type = input.read();
@@ -86,6 +115,7 @@ public sealed interface RPCPacket extends BinaryMapper {
             case REQUEST  -> new Request();
             case RESPONSE -> new Response();
             case CLOSE    -> new Close();
+            case CONTINUE -> new Continuation();
             default       -> throw new IllegalArgumentException(STR."Invalid packet type: \{type}");
         }).deserialization(input);
     }
@@ -94,10 +124,11 @@ public sealed interface RPCPacket extends BinaryMapper {
     
     static void writePacket(final Serializable.Output output, final RPCPacket packet) throws IOException {
         output.write(switch (packet) {
-            case Sync _     -> SYNC;
-            case Request _  -> REQUEST;
-            case Response _ -> RESPONSE;
-            case Close _    -> CLOSE;
+            case Sync _         -> SYNC;
+            case Request _      -> REQUEST;
+            case Response _     -> RESPONSE;
+            case Close _        -> CLOSE;
+            case Continuation _ -> CONTINUE;
         });
         packet.serialization(output);
     }
@@ -0,0 +1,83 @@
+package amadeus.maho.util.link.rpc;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.serialization.Serializable;
+import amadeus.maho.util.serialization.base.ByteArray;
+
+/*
+ * Request and response payloads are serialized into heap buffers borrowed from a small striped pool.
+ * The packet refers to the backing array of the buffer directly, the transport returns the buffer through RPCPacket#release once the frame has been written.
+ * A payload may also be a window of a larger one, which is how continuation frames avoid copying.
+ */
+@Getter
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class RPCPayload extends ByteArray {
+    
+    private static final int STRIPES = Integer.highestOneBit(Math.max(2, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+    
+    // Buffers that grew past this are left to the GC instead of pinning their memory in the pool.
+    public static final int MAX_RETAINED_CAPACITY = 1 << 20;
+    
+    private static final AtomicReferenceArray<Serializable.Output.OfBuffer> pool = { STRIPES };
+    
+    final int offset;
+    
+    @Nullable Serializable.Output.OfBuffer buffer;
+    
+    public RPCPayload(final byte value[] = EMPTY, final int offset = 0, final int length = value.length - offset, final @Nullable Serializable.Output.OfBuffer buffer = null) {
+        super(length, value);
+        this.offset = offset;
+        this.buffer = buffer;
+    }
+    
+    @Override
+    public void write(final Output output) throws IOException {
+        output.writeVarInt(length);
+        output.write(value, offset, length);
+    }
+    
+    public synchronized void release() {
+        if (buffer != null) {
+            release(buffer);
+            buffer = null;
+        }
+    }
+    
+    public static RPCPayload of(final Serializable.Output.OfBuffer buffer) = { (byte[]) buffer.segment().heapBase().orElseThrow(), 0, Math.toIntExact(buffer.offset()), buffer };
+    
+    public static RPCPayload slice(final ByteArray data, final int offset, final int length) = { data.value, offset(data) + offset, length, null };
+    
+    // The tail keeps the pooled buffer, it is the last frame to be written.
+    public static RPCPayload tail(final ByteArray data, final int offset) = { data.value, offset(data) + offset, data.length - offset, data instanceof RPCPayload payload ? payload.buffer : null };
+    
+    private static int offset(final ByteArray data) = data instanceof RPCPayload payload ? payload.offset : 0;
+    
+    private static int stripe() = (int) Thread.currentThread().threadId() & STRIPES - 1;
+    
+    public static Serializable.Output.OfBuffer acquire(final int initialCapacity) {
+        final int stripe = stripe();
+        for (int i = 0; i < STRIPES; i++) {
+            final @Nullable Serializable.Output.OfBuffer buffer = pool.getAndSet(stripe + i & STRIPES - 1, null);
+            if (buffer != null)
+                return buffer;
+        }
+        return Serializable.Output.OfBuffer.ofHeap(initialCapacity);
+    }
+    
+    public static void release(final Serializable.Output.OfBuffer buffer) {
+        if (buffer.segment().byteSize() > MAX_RETAINED_CAPACITY)
+            return;
+        buffer.reset();
+        final int stripe = stripe();
+        for (int i = 0; i < STRIPES; i++)
+            if (pool.compareAndSet(stripe + i & STRIPES - 1, null, buffer))
+                return;
+    }
+    
+}
@@ -0,0 +1,87 @@
+package amadeus.maho.util.link.rpc;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.TableSwitchGenerator;
+
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.util.bytecode.generator.MethodGenerator;
+import amadeus.maho.util.dynamic.ClassLocal;
+import amadeus.maho.util.dynamic.DynamicMethod;
+import amadeus.maho.util.serialization.Deserializable;
+import amadeus.maho.util.serialization.Serializer;
+
+// Server side counterpart of RPCStub: reads the arguments in declaration order and invokes the local instance directly, the method index selects the branch of a tableswitch.
+@FunctionalInterface
+public interface RPCSkeleton {
+    
+    // Thrown in place of any failure while reading the arguments, so it can be told apart from an exception thrown by the invoked method.
+    class InvalidData extends RuntimeException {
+        
+        public InvalidData(final Throwable cause) = super(cause);
+        
+    }
+    
+    ClassLocal<RPCSkeleton> skeletons = { RPCSkeleton::generate };
+    
+    @Nullable Object invoke(Object instance, int methodIndex, Deserializable.Input input, Serializer.Root serializer) throws Throwable;
+    
+    static RPCSkeleton of(final Class<?> itf) = skeletons[itf];
+    
+    @SneakyThrows
+    private static RPCSkeleton generate(final Class<?> itf) {
+        final List<Method> methods = RPCContext.allMethods(itf);
+        final DynamicMethod.Lambda<RPCSkeleton> lambda = { itf.getClassLoader(), STR."RPCSkeleton$\{itf.asDebugName()}", RPCSkeleton.class };
+        final MethodGenerator generator = lambda.generator();
+        final Type owner = Type.getType(itf), inputType = Type.getType(Deserializable.Input.class), rootType = Type.getType(Serializer.Root.class), invalidDataType = Type.getType(InvalidData.class);
+        final org.objectweb.asm.commons.Method deserialization = org.objectweb.asm.commons.Method.getMethod(Serializer.Root.class.getMethod("deserialization", Deserializable.Input.class));
+        generator.loadArg(1);
+        generator.tableSwitch(IntStream.range(0, methods.size()).toArray(), new TableSwitchGenerator() {
+            
+            @Override
+            @SneakyThrows
+            public void generateCase(final int key, final Label end) {
+                final Method method = methods[key];
+                generator.loadArg(0);
+                generator.checkCast(owner);
+                final Class<?> parameterTypes[] = method.getParameterTypes();
+                final Label start = generator.mark();
+                for (final Class<?> parameterType : parameterTypes)
+                    if (parameterType.isPrimitive()) {
+                        generator.loadArg(2);
+                        generator.invokeVirtual(inputType, org.objectweb.asm.commons.Method.getMethod(Deserializable.Input.class.getMethod(STR."read\{RPCContext.primitiveSuffix(parameterType)}")));
+                    } else {
+                        generator.loadArg(3);
+                        generator.loadArg(2);
+                        generator.invokeVirtual(rootType, deserialization);
+                        generator.checkCast(Type.getType(parameterType));
+                    }
+                final Label read = generator.mark();
+                generator.invokeInterface(owner, org.objectweb.asm.commons.Method.getMethod(method));
+                generator.box(Type.getType(method.getReturnType()));
+                generator.goTo(end);
+                if (parameterTypes.length > 0) {
+                    generator.catchException(start, read, Type.getType(Throwable.class));
+                    generator.newInstance(invalidDataType);
+                    generator.dupX1();
+                    generator.swap();
+                    generator.invokeConstructor(invalidDataType, org.objectweb.asm.commons.Method.getMethod("void <init> (Throwable)"));
+                    generator.throwException();
+                }
+            }
+            
+            @Override
+            public void generateDefault() = generator.throwException(Type.getType(IllegalArgumentException.class), "Invalid method index");
+            
+        });
+        generator.returnValue();
+        generator.endMethod();
+        return lambda.allocateInstance();
+    }
+    
+}
@@ -1,16 +1,20 @@
 package amadeus.maho.util.link.rpc;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.lang.foreign.MemorySegment;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import amadeus.maho.lang.AccessLevel;
@@ -40,7 +44,7 @@ public class RPCSocket {
     
     Executor localExecutor;
     
-    AtomicInteger missing = { };
+    AtomicInteger missing = { }, ids = { };
     
     ConcurrentWeakIdentityHashMap<Class<?>, Object> localInstances = { }, remoteInstances = { };
     
@@ -52,50 +56,172 @@ public class RPCSocket {
     
     ConcurrentHashMap<Integer, CompletableFuture<Object>> pendingFutures = { };
     
+    // (kind << 32 | id) -> leading parts of a payload split into continuation frames, only touched by the reading thread.
+    HashMap<Long, TrustedByteArrayOutputStream> partialPayloads = { };
+    
+    // Stands in for a payload that outgrew RPCContext.maxPayload, its remaining frames are dropped and the packet completing it fails with ERROR_INVALID_DATA.
+    private static final TrustedByteArrayOutputStream OVERSIZED = { 0 };
+    
+    // Bounds the requests awaiting a response to RPCContext.maxPending, callers block until a slot is released.
+    Semaphore pendingPermits = { context.maxPending() };
+    
     @SneakyThrows
     public void runLoop() throws IOException {
         final Executor executor = context().executor();
-        executor.execute(() -> runLoop(socket().getInputStream()));
+        executor.execute(() -> runLoop(new BufferedInputStream(socket().getInputStream(), context().chunkLimit())));
         executor.execute(() -> runLoop(socket().getOutputStream()));
     }
     
+    public int nextId() = ids().incrementAndGet();
+    
+    public void send(final RPCPacket packet) = pendingFlush() += packet;
+    
+    // Fails at once when the connection is closed, nothing would ever complete the future, see failPending.
     @SneakyThrows
-    public void runLoop(final InputStream input) throws IOException {
-        while (!running.isDone()) {
-            final RPCPacket packet = readPacket(context(), input);
-            switch (packet) {
-                case Sync sync         -> syncFuture.complete(sync);
-                case Request request   -> {
-                    final ByteArray data = request.data;
-                    final int[] p_code = { ERROR_INVALID_INTERFACE };
-                    try {
-                        final Class<?> itf = context().interfaces()[request.interfaceIndex];
-                        p_code[0] = ERROR_MISSING_INSTANCE;
-                        final Object instance = requireNonNull(localInstances()[itf]);
-                        p_code[0] = ERROR_INVALID_METHOD;
-                        final Method method = RPCContext.allMethods(itf)[request.methodIndex];
-                        localExecutor().execute(() -> {
-                            try {
-                                p_code[0] = ERROR_INVALID_DATA;
-                                final @Nullable Object args[] = (Object[]) context().serializer().deserialization(new Deserializable.Input.Limited(new ByteArrayInputStream(data.value), data.length));
-                                p_code[0] = ERROR_INVOKE_EXCEPTION;
-                                final Object result = method.invoke(instance, args);
-                                response(request.id, 0, result);
-                            } catch (final Throwable e) {
-                                response(request.id, p_code[0], e.getMessage());
-                            }
-                        });
-                    } catch (final Throwable e) { response(request.id, p_code[0], e); }
+    public CompletableFuture<Object> request(final Request request) {
+        if (running().isDone()) {
+            request.release();
+            return CompletableFuture.failedFuture(closed());
+        }
+        pendingPermits().acquire();
+        if (running().isDone()) {
+            pendingPermits().release();
+            request.release();
+            return CompletableFuture.failedFuture(closed());
+        }
+        final CompletableFuture<Object> future = { };
+        pendingFutures()[request.id] = future;
+        // The closing thread completes running before failing the pending futures, whichever of both removes the future fails it.
+        if (running().isDone()) {
+            if (pendingFutures().remove(request.id) != null) {
+                pendingPermits().release();
+                future.completeExceptionally(closed());
+            }
+            request.release();
+            return future;
+        }
+        request.data = split(REQUEST, request.id, request.data);
+        send(request);
+        return future;
+    }
+    
+    protected static RPCException closed() = { "Channel closed", ERROR_CHANNEL_CLOSED };
+    
+    // Called once running is done, every waiting caller is failed and its permit handed back, so callers blocked in request wake up and fail as well.
+    protected void failPending() {
+        for (final Integer id : pendingFutures().keySet())
+            if (pendingFutures().remove(id) instanceof CompletableFuture<Object> future) {
+                pendingPermits().release();
+                future.completeExceptionally(closed());
+            }
+    }
+    
+    // Payloads above RPCContext.chunkLimit go out as continuation frames ahead of the packet carrying the rest.
+    protected ByteArray split(final byte kind, final int id, final ByteArray data) {
+        final int limit = context().chunkLimit();
+        if (data.length <= limit)
+            return data;
+        int offset = 0;
+        for (; data.length - offset > limit; offset += limit) {
+            final Continuation continuation = { };
+            continuation.kind = kind;
+            continuation.id = id;
+            continuation.data = RPCPayload.slice(data, offset, limit);
+            send(continuation);
+        }
+        return RPCPayload.tail(data, offset);
+    }
+    
+    protected static long partialKey(final byte kind, final int id) = (long) kind << 32 | id & 0xFFFFFFFFL;
+    
+    protected void accumulate(final Continuation continuation) throws IOException {
+        final long key = partialKey(continuation.kind, continuation.id);
+        final ByteArray data = continuation.data;
+        final @Nullable TrustedByteArrayOutputStream partial = partialPayloads[key];
+        if (partial == OVERSIZED)
+            return;
+        if (partial == null && partialPayloads.size() >= context().maxPartialPayloads())
+            throw new IOException(STR."More than \{context().maxPartialPayloads()} partial payloads");
+        if ((partial == null ? 0L : partial.size()) + data.length > context().maxPayload())
+            partialPayloads[key] = OVERSIZED;
+        else if (partial == null) {
+            final TrustedByteArrayOutputStream stream = { data.length << 1 };
+            stream.write(data.value, 0, data.length);
+            partialPayloads[key] = stream;
+        } else
+            partial.write(data.value, 0, data.length);
+    }
+    
+    // Returns null when the payload exceeds RPCContext.maxPayload.
+    protected @Nullable ByteArray assemble(final byte kind, final int id, final ByteArray data) {
+        final @Nullable TrustedByteArrayOutputStream partial = partialPayloads.isEmpty() ? null : partialPayloads.remove(partialKey(kind, id));
+        if (partial == OVERSIZED || (partial == null ? 0L : partial.size()) + data.length > context().maxPayload())
+            return null;
+        if (partial == null)
+            return data;
+        partial.write(data.value, 0, data.length);
+        return { partial.size(), partial.array() };
+    }
+    
+    protected String oversized() = STR."Payload exceeds \{context().maxPayload()} bytes";
+    
+    protected static Deserializable.Input input(final ByteArray data) = new Deserializable.Input.OfBuffer(MemorySegment.ofArray(data.value).asSlice(0L, data.length));
+    
+    public void runLoop(final InputStream input) {
+        try {
+            while (!running.isDone())
+                handle(readPacket(context(), input));
+        } catch (final IOException e) {
+            running.completeExceptionally(e);
+        } finally {
+            running.complete("closed");
+            failPending();
+        }
+    }
+    
+    protected void handle(final RPCPacket packet) throws IOException {
+        switch (packet) {
+            case Sync sync                 -> syncFuture.complete(sync);
+            case Request request           -> {
+                final @Nullable ByteArray data = assemble(REQUEST, request.id, request.data);
+                if (data == null) {
+                    response(request.id, ERROR_INVALID_DATA, oversized());
+                    return;
                 }
-                case Response response -> {
-                    final @Nullable CompletableFuture<Object> future = pendingFutures()[response.id];
-                    if (future != null)
+                final int[] p_code = { ERROR_INVALID_INTERFACE };
+                try {
+                    final Class<?> itf = context().interfaces()[request.interfaceIndex];
+                    p_code[0] = ERROR_MISSING_INSTANCE;
+                    final Object instance = requireNonNull(localInstances()[itf]);
+                    p_code[0] = ERROR_INVALID_METHOD;
+                    Objects.checkIndex(request.methodIndex, RPCContext.allMethods(itf).size());
+                    final RPCSkeleton skeleton = RPCSkeleton.of(itf);
+                    localExecutor().execute(() -> {
+                        try {
+                            final @Nullable Object result = skeleton.invoke(instance, request.methodIndex, input(data), context().serializer());
+                            response(request.id, 0, result);
+                        } catch (final RPCSkeleton.InvalidData e) {
+                            response(request.id, ERROR_INVALID_DATA, e.getCause().getMessage());
+                        } catch (final Throwable e) {
+                            response(request.id, ERROR_INVOKE_EXCEPTION, e.getMessage());
+                        }
+                    });
+                } catch (final Throwable e) { response(request.id, p_code[0], e); }
+            }
+            case Response response         -> {
+                final @Nullable ByteArray data = assemble(RESPONSE, response.id, response.data);
+                final @Nullable CompletableFuture<Object> future = pendingFutures().remove(response.id);
+                if (future != null) {
+                    pendingPermits().release();
+                    if (data == null)
+                        future.completeExceptionally(new RPCException(oversized(), ERROR_INVALID_DATA));
+                    else
                         localExecutor().execute(() -> {
                             switch (response.code) {
                                 case ERROR_SERIALIZATION_RESULT -> future.completeExceptionally(new RPCException(response.code));
                                 default                         -> {
                                     try {
-                                        final @Nullable Object result = context().serializer().deserialization(new Deserializable.Input.Limited(new ByteArrayInputStream(response.data.value), response.data.length));
+                                        final @Nullable Object result = context().serializer().deserialization(input(data));
                                         if (response.code != 0)
                                             future.completeExceptionally(new RPCException(ObjectHelper.toString(result), response.code));
                                         else
@@ -105,39 +231,50 @@ public class RPCSocket {
                             }
                             
                         });
-                    else
-                        missing.getAndIncrement();
-                }
-                case Close close       -> running.complete(close.message.value);
+                } else
+                    missing.getAndIncrement();
             }
+            case Continuation continuation -> accumulate(continuation);
+            case Close close               -> running.complete(close.message.value);
         }
     }
     
     protected void response(final int id, final int code, final Object result) throws IOException {
         final Response response = { };
         response.id = id;
+        final Serializable.Output.OfBuffer buffer = RPCPayload.acquire(context().chunkLimit());
         try {
-            final TrustedByteArrayOutputStream buffer = { context.chunkLimit() };
-            final Serializable.Output.Limited output = { buffer, buffer.array().length };
-            context().serializer().serialization(output, result);
+            context().serializer().serialization(buffer, result);
             response.code = code;
-            response.data = { buffer.size(), buffer.array() };
+            response.data = split(RESPONSE, id, RPCPayload.of(buffer));
         } catch (final Throwable e) {
+            RPCPayload.release(buffer);
             response.code = ERROR_SERIALIZATION_RESULT;
             response.data = { };
         }
-        pendingFlush() += response;
+        send(response);
     }
     
+    // Everything queued while the previous batch was being written goes out with a single flush.
     public void runLoop(final OutputStream output) throws IOException {
-        writePacket(context(), output, context().sync());
+        final BufferedOutputStream buffered = { output, context().chunkLimit() };
+        final Serializable.Output packets = { buffered };
+        writePacket(packets, context().sync());
+        buffered.flush();
+        final ArrayList<RPCPacket> batch = { };
         while (!running.isDone())
             try {
-                writePacket(context(), output, pendingFlush.take());
+                batch += pendingFlush.take();
+                pendingFlush.drainTo(batch);
+                for (final RPCPacket packet : batch) {
+                    writePacket(packets, packet);
+                    packet.release();
+                }
+                buffered.flush();
+                batch.clear();
             } catch (final InterruptedException _) { }
     }
     
-    public <T> T projection(final ClassLoader loader = itf.getClassLoader(), final Class<T> itf)
-            = (T) remoteInstances().computeIfAbsent(itf, it -> Proxy.newProxyInstance(loader, new Class[]{ it }, new RPCInvocationHandler(this, it)));
+    public <T> T projection(final ClassLoader loader = itf.getClassLoader(), final Class<T> itf) = (T) remoteInstances().computeIfAbsent(itf, it -> RPCStub.make(this, loader, it));
     
 }
@@ -0,0 +1,175 @@
+package amadeus.maho.util.link.rpc;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+
+import amadeus.maho.lang.AccessLevel;
+import amadeus.maho.lang.FieldDefaults;
+import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.SneakyThrows;
+import amadeus.maho.lang.inspection.Nullable;
+import amadeus.maho.lang.reference.Mutable;
+import amadeus.maho.util.bytecode.generator.MethodGenerator;
+import amadeus.maho.util.concurrent.AsyncHelper;
+import amadeus.maho.util.dynamic.ClassLocal;
+import amadeus.maho.util.dynamic.Wrapper;
+import amadeus.maho.util.runtime.MethodHandleHelper;
+import amadeus.maho.util.serialization.Serializable;
+
+import static amadeus.maho.util.concurrent.AsyncHelper.await;
+
+/*
+ * Base class of the generated client stubs.
+ * Each interface method pushes the remote interface and method index as constants, writes primitive arguments straight into the payload,
+ * passes the others to the serializer of the context and waits for the response.
+ */
+@Getter
+@RequiredArgsConstructor(AccessLevel.PROTECTED)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public abstract class RPCStub {
+    
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public static final class Call {
+        
+        RPCSocket socket;
+        
+        int interfaceIndex, methodIndex;
+        
+        // Borrowed from the payload pool, the transport hands it back once the request has been written.
+        Serializable.Output.OfBuffer output;
+        
+        @Mutable
+        boolean sent;
+        
+        public Call(final RPCSocket socket, final int interfaceIndex, final int methodIndex) {
+            this.socket = socket;
+            this.interfaceIndex = interfaceIndex;
+            this.methodIndex = methodIndex;
+            output = RPCPayload.acquire(socket.context().chunkLimit());
+        }
+        
+        public void write(final @Nullable Object value) throws IOException = socket.context().serializer().serialization(output, value);
+        
+        public CompletableFuture<Object> send() {
+            final RPCPacket.Request request = { };
+            request.id = socket.nextId();
+            request.interfaceIndex = interfaceIndex;
+            request.methodIndex = methodIndex;
+            request.data = RPCPayload.of(output);
+            sent = true;
+            return socket.request(request);
+        }
+        
+        // Called by the stub when writing the arguments failed, the buffer never reached the transport.
+        public void abort() {
+            if (!sent) {
+                sent = true;
+                RPCPayload.release(output);
+            }
+        }
+        
+        public @Nullable Object await() = AsyncHelper.await(send());
+        
+    }
+    
+    // interface -> remote layout -> stub constructor, peers exposing the same interfaces share one stub class.
+    private static final ClassLocal<ConcurrentHashMap<String, MethodHandle>> constructors = { _ -> new ConcurrentHashMap<>() };
+    
+    RPCSocket socket;
+    
+    protected Call call(final int interfaceIndex, final int methodIndex) = { socket, interfaceIndex, methodIndex };
+    
+    @SneakyThrows
+    public static <T> T make(final RPCSocket socket, final ClassLoader loader = itf.getClassLoader(), final Class<T> itf) {
+        final RPCPacket.Sync sync = await(socket.syncFuture());
+        @Nullable RPCPacket.Sync.Itf remote = null;
+        int interfaceIndex = -1;
+        final String name = itf.getCanonicalName();
+        for (int i = 0; i < sync.interfaces.length; i++)
+            if (sync.interfaces[i].name.value.equals(name)) {
+                remote = sync.interfaces[i];
+                interfaceIndex = i;
+                break;
+            }
+        if (remote == null)
+            throw new IllegalArgumentException(STR."Interface not found: \{name}");
+        final HashMap<String, Integer> remoteIndexes = { };
+        for (int i = 0; i < remote.methods; i++)
+            remoteIndexes[remote.identities[i].value] = i;
+        final int methodIndexes[] = RPCContext.allMethods(itf).stream().mapToInt(method -> remoteIndexes.getOrDefault(RPCContext.methodIdentity(method), -1)).toArray();
+        final int index = interfaceIndex;
+        return (T) constructors[itf].computeIfAbsent(STR."\{index}:\{Arrays.toString(methodIndexes)}", _ -> generate(loader, itf, index, methodIndexes)).invoke(socket);
+    }
+    
+    @SneakyThrows
+    protected static MethodHandle generate(final ClassLoader loader, final Class<?> itf, final int interfaceIndex, final int methodIndexes[]) {
+        final Wrapper<RPCStub> wrapper = { loader, RPCStub.class, itf, itf.getName(), "RPCStub", itf };
+        wrapper.copyAllConstructors();
+        final Type stubType = Type.getType(RPCStub.class), callType = Type.getType(Call.class), outputType = Type.getType(Serializable.Output.class);
+        final org.objectweb.asm.commons.Method
+                call   = org.objectweb.asm.commons.Method.getMethod(RPCStub.class.getDeclaredMethod("call", int.class, int.class)),
+                output = org.objectweb.asm.commons.Method.getMethod(Call.class.getMethod("output")),
+                write  = org.objectweb.asm.commons.Method.getMethod(Call.class.getMethod("write", Object.class)),
+                await  = org.objectweb.asm.commons.Method.getMethod(Call.class.getMethod("await")),
+                abort  = org.objectweb.asm.commons.Method.getMethod(Call.class.getMethod("abort"));
+        final List<Method> methods = RPCContext.allMethods(itf);
+        for (int i = 0; i < methods.size(); i++) {
+            final Method method = methods[i];
+            final MethodGenerator generator = wrapper.wrap(method);
+            if (methodIndexes[i] == -1)
+                generator.throwException(Type.getType(IllegalArgumentException.class), STR."Method not found: \{method}");
+            else {
+                generator.loadThis();
+                generator.push(interfaceIndex);
+                generator.push(methodIndexes[i]);
+                generator.invokeVirtual(stubType, call);
+                // The call is kept in the first slot after the arguments, the handler below needs it once the stack has been cleared.
+                final int slot = Type.getArgumentsAndReturnSizes(Type.getMethodDescriptor(method)) >> 2;
+                generator.storeInsn(callType, slot);
+                final Class<?> parameterTypes[] = method.getParameterTypes();
+                final Label start = generator.mark();
+                for (int arg = 0; arg < parameterTypes.length; arg++) {
+                    generator.loadInsn(callType, slot);
+                    if (parameterTypes[arg].isPrimitive()) {
+                        generator.invokeVirtual(callType, output);
+                        generator.loadArg(arg);
+                        generator.invokeVirtual(outputType, org.objectweb.asm.commons.Method.getMethod(Serializable.Output.class.getMethod(STR."write\{RPCContext.primitiveSuffix(parameterTypes[arg])}", parameterTypes[arg])));
+                    } else {
+                        generator.loadArg(arg);
+                        generator.invokeVirtual(callType, write);
+                    }
+                }
+                final Label written = generator.mark();
+                generator.loadInsn(callType, slot);
+                generator.invokeVirtual(callType, await);
+                if (generator.returnType.getSort() == Type.VOID)
+                    generator.pop();
+                else
+                    generator.unbox(generator.returnType);
+                generator.returnValue();
+                if (parameterTypes.length > 0) {
+                    generator.catchException(start, written, Type.getType(Throwable.class));
+                    generator.loadInsn(callType, slot);
+                    generator.invokeVirtual(callType, abort);
+                    generator.throwException();
+                }
+            }
+            generator.endMethod();
+        }
+        wrapper.context().markCompute(wrapper.node());
+        return MethodHandleHelper.lookup().findConstructor(wrapper.defineHiddenWrapperClass(), MethodType.methodType(void.class, RPCSocket.class));
+    }
+    
+}
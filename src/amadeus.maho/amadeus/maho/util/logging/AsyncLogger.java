@@ -5,8 +5,14 @@ import java.io.FileDescriptor;
 import java.io.PrintStream;
 import java.lang.ref.WeakReference;
 import java.nio.channels.ClosedChannelException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -14,6 +20,7 @@ import java.util.stream.Stream;
 import amadeus.maho.lang.AccessLevel;
 import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
+import amadeus.maho.lang.Setter;
 import amadeus.maho.lang.SneakyThrows;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.control.Interrupt;
@@ -24,28 +31,71 @@ import amadeus.maho.util.misc.Environment;
 import amadeus.maho.util.runtime.DebugHelper;
 import amadeus.maho.vm.tools.hotspot.WhiteBox;
 
-import static amadeus.maho.core.MahoExport.MAHO_LOGS_FORCED_INTERRUPTION;
+import static amadeus.maho.core.MahoExport.*;
 
 @FieldDefaults(level = AccessLevel.PRIVATE)
 public class AsyncLogger extends Thread implements AutoCloseable {
     
+    // What publish does when every slot of the ring is taken, SAMPLE keeps one record out of sampleInterval and blocks for it.
+    public enum OverflowPolicy { BLOCK, DROP, SAMPLE }
+    
     protected static final PrintStream syserr = LoggerHelper.makeStdOut(FileDescriptor.err);
     
     // avoid allocating memory on the heap after an OutOfMemoryError has occurred
     protected static final LogRecord oomRecord = { "Logging", LogLevel.FATAL, "OutOfMemoryError" };
     
+    protected static final List<LogRecord> oomBatch = List.of(oomRecord);
+    
+    protected static final long BACKOFF_NANOS = 50_000L;
+    
     @Getter(AccessLevel.PROTECTED)
     final CopyOnWriteArrayList<Consumer<LogRecord>> consumers = { };
     
+    @Getter(AccessLevel.PROTECTED)
+    final CopyOnWriteArrayList<Consumer<List<LogRecord>>> batchConsumers = { };
+    
+    // Multi-producer, single-consumer ring: producers claim a sequence from tail and publish into its slot, the logging thread drains from head.
+    final AtomicReferenceArray<LogRecord> ring;
+    
+    final int mask;
+    
     @Getter
-    final LinkedBlockingQueue<LogRecord> records = { };
+    final int batchSize;
+    
+    @Getter
+    final OverflowPolicy policy;
+    
+    @Getter
+    @Setter
+    volatile int sampleInterval = 16;
+    
+    // The formatters shipped with maho never look at LogRecord#frame, walking the stack is only worth it for consumers that do.
+    @Getter
+    @Setter
+    volatile boolean captureFrame = Environment.local().lookup(MAHO_LOGS_CAPTURE_FRAME, false);
+    
+    final AtomicLong tail = { }, sampled = { };
+    
+    volatile long head;
+    
+    volatile boolean parked;
+    
+    final LongAdder dropped = { };
+    
+    long reportedDropped;
     
     @Getter
     final Thread shutdownHook = initShutdownHook();
     
     volatile boolean closed = false;
     
-    {
+    public AsyncLogger(final int capacity = Environment.local().lookup(MAHO_LOGS_BUFFER_CAPACITY, 1 << 14),
+            final OverflowPolicy policy = OverflowPolicy.valueOf(Environment.local().lookup(MAHO_LOGS_OVERFLOW_POLICY, OverflowPolicy.BLOCK.name())), final int batchSize = 256) {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.policy = policy;
+        this.batchSize = Math.max(batchSize, 1);
         setName("logging");
         setDaemon(true);
         Runtime.getRuntime().addShutdownHook(shutdownHook());
@@ -61,39 +111,116 @@ public class AsyncLogger extends Thread implements AutoCloseable {
     
     public void addCloseableConsumer(final Consumer<LogRecord> consumer, final @Nullable Closeable closeable) = consumers() += CloseableConsumer.of(consumer, closeable);
     
+    // The list handed to batch consumers is reused by the logging thread, it must not be retained after accept returns.
+    public void addBatchConsumer(final Consumer<List<LogRecord>> consumer, final @Nullable Closeable closeable = null) = batchConsumers() += CloseableConsumer.of(consumer, closeable);
+    
+    public int capacity() = ring.length();
+    
+    public long pending() = tail.get() - head;
+    
+    public long dropped() = dropped.sum();
+    
     @Override
     @SneakyThrows
     public void run() {
+        final ArrayList<LogRecord> batch = { batchSize + 1 };
         while (!closed)
             try {
-                Stream.generate(records()::take).forEach(this::forEach);
+                if (drain(batch) == 0) {
+                    parked = true;
+                    if (head == tail.get()) {
+                        LockSupport.park(this);
+                        Thread.interrupted(); // close() interrupts after setting closed, any other interrupt must not turn park into a spin
+                    } else
+                        Thread.onSpinWait(); // a producer has claimed a slot but not filled it yet
+                    parked = false;
+                    continue;
+                }
+                reportDropped(batch);
+                forEach(batch);
             } catch (final Throwable throwable) {
                 if (throwable instanceof OutOfMemoryError)
                     onOutOfMemoryError();
                 if (nonFatalThrowable(throwable))
                     continue;
-                if (!(throwable instanceof InterruptedException) && !(throwable instanceof ClosedChannelException) || !closed) {
+                if (!(throwable instanceof ClosedChannelException) || !closed) {
                     LoggerHelper.resetStdOutIfHasWrapper();
                     DebugHelper.breakpoint();
                     System.err.println("Unexpected interruption!");
                     throwable.printStackTrace();
                     throw throwable;
                 }
-            }
+            } finally { batch.clear(); }
+    }
+    
+    protected int drain(final ArrayList<LogRecord> batch) {
+        long sequence = head;
+        final long limit = sequence + batchSize;
+        @Nullable LogRecord record;
+        while (sequence < limit && (record = ring.getAcquire((int) sequence & mask)) != null) {
+            ring.setPlain((int) sequence & mask, null);
+            batch += record;
+            sequence++;
+        }
+        head = sequence;
+        return batch.size();
+    }
+    
+    protected void reportDropped(final List<LogRecord> batch) {
+        final long dropped = dropped();
+        if (dropped != reportedDropped) {
+            batch += new LogRecord("Logging", LogLevel.WARNING, STR."\{dropped - reportedDropped} records dropped, the buffer is full (\{policy})", Instant.now(), null, this);
+            reportedDropped = dropped;
+        }
     }
     
     public void onOutOfMemoryError() {
         WhiteBox.instance().fullGC(); // force full gc
-        forEach(oomRecord);
+        forEach(oomBatch);
     }
     
     protected boolean nonFatalThrowable(final Throwable throwable) = throwable instanceof OutOfMemoryError;
     
+    protected void forEach(final List<LogRecord> batch) {
+        if (!consumers().isEmpty())
+            batch.forEach(this::forEach);
+        batchConsumers().forEach(consumer -> { try { consumer.accept(batch); } catch (final Exception e) { if (!(e instanceof ClosedChannelException)) e.printStackTrace(syserr); } });
+    }
+    
     protected void forEach(final LogRecord record) { try { consumers().forEach(consumer -> consumer.accept(record)); } catch (final Exception e) { if (!(e instanceof ClosedChannelException)) e.printStackTrace(syserr); } }
     
-    public void publish(final LogRecord record) = records() += record;
+    public void publish(final LogRecord record) {
+        boolean admitted = false;
+        while (true) {
+            final long sequence = tail.get();
+            if (sequence - head >= ring.length()) {
+                if (!admitted) {
+                    // the logging thread itself must never wait for room it is supposed to make
+                    admitted = Thread.currentThread() != this && isAlive() && switch (policy) {
+                        case BLOCK  -> true;
+                        case DROP   -> false;
+                        case SAMPLE -> sampled.getAndIncrement() % sampleInterval == 0;
+                    };
+                    if (!admitted) {
+                        dropped.increment();
+                        return;
+                    }
+                }
+                if (closed)
+                    return;
+                LockSupport.unpark(this);
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            } else if (tail.compareAndSet(sequence, sequence + 1)) {
+                ring.setRelease((int) sequence & mask, record);
+                if (parked)
+                    LockSupport.unpark(this);
+                return;
+            }
+        }
+    }
     
-    public void log(final String name, final LogLevel level, final String message) = publish(new LogRecord(name, level, message));
+    public void log(final String name, final LogLevel level, final String message)
+            = publish(captureFrame ? new LogRecord(name, level, message) : new LogRecord(name, level, message, Instant.now(), null, Thread.currentThread()));
     
     public BiConsumer<LogLevel, String> namedLogger(final String name = CallerContext.caller().getSimpleName()) = (level, message) -> log(name, level, message);
     
@@ -101,11 +228,11 @@ public class AsyncLogger extends Thread implements AutoCloseable {
     public synchronized void close() throws SecurityException {
         if (!closed) {
             if (isAlive() && !Environment.local().lookup(MAHO_LOGS_FORCED_INTERRUPTION, false))
-                while (!records.isEmpty())
+                while (pending() > 0L)
                     Interrupt.doInterruptible(() -> sleep(10L));
             closed = true;
             interrupt();
-            consumers().stream()
+            Stream.concat(consumers().stream(), batchConsumers().stream())
                     .cast(Closeable.class)
                     .forEach(FunctionHelper.ignored(Closeable::close));
         }
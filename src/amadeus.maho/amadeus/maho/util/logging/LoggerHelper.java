@@ -83,12 +83,21 @@ public interface LoggerHelper {
         final PrintStream sysout = makeStdOut(FileDescriptor.out);
         final Charset charset = Charset.forName(Environment.local().lookup(MAHO_LOGS_ENCODE, "UTF-8"));
         final @Nullable SeekableByteChannel channel = logFile ? makeLogFileHandler(formatter) : null;
-        logger.addCloseableConsumer(record -> {
-            final boolean console = record.level().compareTo(level) >= 0;
-            if (!console && channel == null)
-                return;
-            final String message = formatter.apply(record);
-            if (console) {
+        final StringBuilder consoleBuilder = { }, fileBuilder = { };
+        logger.addBatchConsumer(records -> {
+            for (final LogRecord record : records) {
+                final boolean console = record.level().compareTo(level) >= 0;
+                if (!console && channel == null)
+                    continue;
+                final String message = formatter.apply(record);
+                if (console)
+                    consoleBuilder.append(message);
+                if (channel != null)
+                    fileBuilder.append(message);
+            }
+            if (!consoleBuilder.isEmpty()) {
+                final String message = consoleBuilder.toString();
+                consoleBuilder.setLength(0);
                 if (ProgressBar.supported())
                     ProgressBar.render(() -> message);
                 else {
@@ -96,8 +105,12 @@ public interface LoggerHelper {
                     sysout.flush();
                 }
             }
-            if (channel != null)
-                channel.write(ByteBuffer.wrap(formatter.apply(record).getBytes(charset)));
+            if (!fileBuilder.isEmpty()) {
+                final ByteBuffer buffer = ByteBuffer.wrap(fileBuilder.toString().getBytes(charset));
+                fileBuilder.setLength(0);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
         }, channel);
         logger.start();
         return logger;
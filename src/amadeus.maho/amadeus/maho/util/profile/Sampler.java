@@ -3,8 +3,10 @@ package amadeus.maho.util.profile;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import amadeus.maho.lang.AccessLevel;
 import amadeus.maho.lang.EqualsAndHashCode;
@@ -12,6 +14,7 @@ import amadeus.maho.lang.Extension;
 import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
+import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.lang.mark.StateSnapshot;
 import amadeus.maho.util.function.FunctionHelper;
 import amadeus.maho.util.tuple.Tuple;
@@ -34,11 +37,139 @@ public class Sampler<T> {
     
     public static class Empty<T> extends Sampler<T> {
         
+        @Override
+        public void record(final T mark, final long start, final long end) { }
+        
         @Override
         public void submit(final T mark, final Frame frame) { }
         
     }
     
+    // Bounded-memory mode: frames are not retained, every mark owns a Recorder of striped log-bucket histograms that are merged on read.
+    // Values below 2 * SUB_BUCKETS are exact, larger ones are bucketed with a relative error below 1 / SUB_BUCKETS.
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public static class Histogram<T> extends Sampler<T> {
+        
+        public static final int
+                SUB_BUCKET_BITS = 4,
+                SUB_BUCKETS     = 1 << SUB_BUCKET_BITS,
+                BUCKETS         = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS,
+                STRIPES         = 1 << Integer.SIZE - Integer.numberOfLeadingZeros(Math.min(Runtime.getRuntime().availableProcessors(), 8) - 1);
+        
+        // Slots preceding the buckets in every stripe.
+        private static final int COUNT = 0, TOTAL = 1, MIN = 2, MAX = 3, HEADER = 4;
+        
+        public record Snapshot(long count, long total, long min, long max, long buckets[]) {
+            
+            public double average() = count == 0L ? 0D : (double) total / count;
+            
+            public long percentile(final double quantile) {
+                if (count == 0L)
+                    return 0L;
+                final long target = Math.max(1L, (long) Math.ceil(quantile * count));
+                long seen = 0L;
+                for (int i = 0; i < buckets.length; i++)
+                    if ((seen += buckets[i]) >= target)
+                        return Math.clamp(lowestValue(i) + (width(i) >> 1), min, max);
+                return max;
+            }
+            
+            public long p50() = percentile(0.5);
+            
+            public long p99() = percentile(0.99);
+            
+            public long p999() = percentile(0.999);
+            
+            @Override
+            public String toString() = count == 0L ? "<empty>" : "total: %d ms, count: %d, avg: %.3f ns, min: %d ns, p50: %d ns, p99: %d ns, p999: %d ns, max: %d ns"
+                    .formatted(total / (int) 1e6, count, average(), min, p50(), p99(), p999(), max);
+            
+        }
+        
+        public static final class Recorder {
+            
+            private final AtomicLongArray stripes[] = new AtomicLongArray[STRIPES];
+            
+            {
+                for (int i = 0; i < STRIPES; i++)
+                    stripes[i] = new AtomicLongArray(HEADER + BUCKETS);
+                reset();
+            }
+            
+            public void record(final long value) {
+                final long sample = Math.max(value, 0L);
+                final AtomicLongArray stripe = stripes[(int) Thread.currentThread().threadId() & STRIPES - 1];
+                stripe.getAndIncrement(HEADER + bucket(sample));
+                stripe.getAndIncrement(COUNT);
+                stripe.getAndAdd(TOTAL, sample);
+                if (sample < stripe.get(MIN))
+                    stripe.accumulateAndGet(MIN, sample, Math::min);
+                if (sample > stripe.get(MAX))
+                    stripe.accumulateAndGet(MAX, sample, Math::max);
+            }
+            
+            public Snapshot snapshot() = merge(Stream.of(stripes));
+            
+            public void reset() {
+                for (final AtomicLongArray stripe : stripes) {
+                    for (int i = 0; i < stripe.length(); i++)
+                        stripe.set(i, 0L);
+                    stripe.set(MIN, Long.MAX_VALUE);
+                    stripe.set(MAX, Long.MIN_VALUE);
+                }
+            }
+            
+        }
+        
+        ConcurrentHashMap<T, Recorder> recorders = { };
+        
+        public static int bucket(final long value) {
+            if (value < SUB_BUCKETS << 1)
+                return (int) value;
+            final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) (value >>> exponent - SUB_BUCKET_BITS & SUB_BUCKETS - 1);
+        }
+        
+        public static long lowestValue(final int bucket) = bucket < SUB_BUCKETS << 1 ? bucket : (long) (SUB_BUCKETS | bucket & SUB_BUCKETS - 1) << bucket / SUB_BUCKETS - 1;
+        
+        public static long width(final int bucket) = bucket < SUB_BUCKETS << 1 ? 1L : 1L << bucket / SUB_BUCKETS - 1;
+        
+        private static Snapshot merge(final Stream<AtomicLongArray> stripes) {
+            final long buckets[] = new long[BUCKETS];
+            final long header[] = { 0L, 0L, Long.MAX_VALUE, Long.MIN_VALUE };
+            stripes.forEach(stripe -> {
+                header[COUNT] += stripe.get(COUNT);
+                header[TOTAL] += stripe.get(TOTAL);
+                header[MIN] = Math.min(header[MIN], stripe.get(MIN));
+                header[MAX] = Math.max(header[MAX], stripe.get(MAX));
+                for (int i = 0; i < BUCKETS; i++)
+                    buckets[i] += stripe.get(HEADER + i);
+            });
+            return header[COUNT] == 0L ? new Snapshot(0L, 0L, 0L, 0L, buckets) : new Snapshot(header[COUNT], header[TOTAL], header[MIN], header[MAX], buckets);
+        }
+        
+        public Recorder recorder(final T mark) = recorders.computeIfAbsent(mark, _ -> new Recorder());
+        
+        public Snapshot snapshot() = merge(recorders.values().stream().flatMap(recorder -> Stream.of(recorder.stripes)));
+        
+        @Override
+        public void record(final T mark, final long start, final long end) {
+            final @Nullable Recorder recorder = recorders[mark];
+            (recorder ?? recorder(mark)).record(end - start);
+        }
+        
+        @Override
+        public void submit(final T mark, final Frame frame) = record(mark, frame.start(), frame.end());
+        
+        @Override
+        public void clear() = recorders.values().forEach(Recorder::reset);
+        
+        @Override
+        public String toString() = snapshot().toString();
+        
+    }
+    
     @RequiredArgsConstructor
     @FieldDefaults(level = AccessLevel.PROTECTED)
     public class Handle implements StateSnapshot {
@@ -50,7 +181,7 @@ public class Sampler<T> {
         public long now() = System.nanoTime();
         
         @Override
-        public void close() = submit(mark, new Frame(start, now()));
+        public void close() = record(mark, start, now());
         
     }
     
@@ -64,6 +195,11 @@ public class Sampler<T> {
     @Extension.Operator("GET")
     public Handle handle(final T mark) = { mark };
     
+    public void record(final T mark, final long start, final long end) = submit(mark, new Frame(start, end));
+    
+    // Samples a plain quantity, such as a batch size, as a frame of that length so it is aggregated like any timed mark.
+    public void value(final T mark, final long value) = record(mark, 0L, value);
+    
     public void submit(final T mark, final Frame frame) {
         total().addAndGet(frame.total());
         count().incrementAndGet();
@@ -45,6 +45,9 @@ public class ResourcePath implements Closeable {
         
         protected static final String JMOD_SUFFIX = ".jmod";
         
+        // The path the tree was opened from, the archive itself when root lives in a zip file system.
+        final Path source;
+        
         final Path root;
         
         @Nullable FileSystem domain;
@@ -54,6 +57,7 @@ public class ResourcePath implements Closeable {
         final UnaryOperator<Path> classesRedirect;
         
         protected ResourceTree(final Path root) {
+            source = root;
             this.root = checkZipFile(root);
             jmod = domain() instanceof ZipFileSystem && root.getFileName().toString().endsWith(JMOD_SUFFIX);
             classesRedirect = jmod() ? it -> it / "classes" : UnaryOperator.identity();
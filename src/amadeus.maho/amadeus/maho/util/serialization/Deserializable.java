@@ -3,6 +3,9 @@ package amadeus.maho.util.serialization;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
@@ -12,6 +15,8 @@ import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
 
+import static amadeus.maho.util.runtime.MemoryHelper.*;
+
 public interface Deserializable {
     
     @Getter
@@ -39,6 +44,157 @@ public interface Deserializable {
             
         }
         
+        // Reads straight from a heap, native or mapped segment, the offset doubles as the read position.
+        public static class OfBuffer extends Input {
+            
+            @Getter
+            private final MemorySegment segment;
+            
+            private long marked = 0L;
+            
+            public OfBuffer(final MemorySegment segment) {
+                super(InputStream.nullInputStream());
+                this.segment = segment;
+            }
+            
+            public long remaining() = segment.byteSize() - offset;
+            
+            // Returns the position to read at and advances the offset by size.
+            protected long require(final long size) throws IOException {
+                final long position = offset;
+                if (size > segment.byteSize() - position)
+                    throw new EOFException();
+                offset = position + size;
+                return position;
+            }
+            
+            @Override
+            public int read() = offset < segment.byteSize() ? segment.get(ValueLayout.JAVA_BYTE, offset++) & 0xFF : -1;
+            
+            @Override
+            public int read(final byte buffer[], final int at, final int length) {
+                Objects.checkFromIndexSize(at, length, buffer.length);
+                if (length == 0)
+                    return 0;
+                final long remaining = remaining();
+                if (remaining <= 0)
+                    return -1;
+                final int count = (int) Math.min(length, remaining);
+                MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, buffer, at, count);
+                offset += count;
+                return count;
+            }
+            
+            @Override
+            public byte readByte() throws IOException = segment.get(ValueLayout.JAVA_BYTE, require(1L));
+            
+            @Override
+            public int readByteUnsigned() throws IOException = readByte() & 0xFF;
+            
+            @Override
+            public short readShortLittleEndian() throws IOException = segment.get(LE_SHORT, require(Short.BYTES));
+            
+            @Override
+            public short readShortBigEndian() throws IOException = segment.get(BE_SHORT, require(Short.BYTES));
+            
+            @Override
+            public int readIntLittleEndian() throws IOException = segment.get(LE_INT, require(Integer.BYTES));
+            
+            @Override
+            public int readIntBigEndian() throws IOException = segment.get(BE_INT, require(Integer.BYTES));
+            
+            @Override
+            public long readLongLittleEndian() throws IOException = segment.get(LE_LONG, require(Long.BYTES));
+            
+            @Override
+            public long readLongBigEndian() throws IOException = segment.get(BE_LONG, require(Long.BYTES));
+            
+            @Override
+            public float readFloatLittleEndian() throws IOException = segment.get(LE_FLOAT, require(Float.BYTES));
+            
+            @Override
+            public float readFloatBigEndian() throws IOException = segment.get(BE_FLOAT, require(Float.BYTES));
+            
+            @Override
+            public double readDoubleLittleEndian() throws IOException = segment.get(LE_DOUBLE, require(Double.BYTES));
+            
+            @Override
+            public double readDoubleBigEndian() throws IOException = segment.get(BE_DOUBLE, require(Double.BYTES));
+            
+            @Override
+            public int readVarInt() throws IOException {
+                final long size = segment.byteSize();
+                long position = offset;
+                int value = 0, shift = 0;
+                int b;
+                do {
+                    if (position >= size) {
+                        offset = position;
+                        throw new EOFException();
+                    }
+                    b = segment.get(ValueLayout.JAVA_BYTE, position++);
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                offset = position;
+                return value;
+            }
+            
+            @Override
+            public long readVarLong() throws IOException {
+                final long size = segment.byteSize();
+                long position = offset, value = 0, shift = 0;
+                int b;
+                do {
+                    if (position >= size) {
+                        offset = position;
+                        throw new EOFException();
+                    }
+                    b = segment.get(ValueLayout.JAVA_BYTE, position++);
+                    value |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                offset = position;
+                return value;
+            }
+            
+            @Override
+            protected <A> A readArray(final A array, final ValueLayout layout, final int length) throws IOException {
+                MemorySegment.copy(segment, layout, require(length * layout.byteSize()), array, 0, length);
+                return array;
+            }
+            
+            // Zero-copy view of the next length bytes, only valid as long as the backing segment is.
+            public MemorySegment readSlice(final long length) throws IOException = segment.asSlice(require(length), length);
+            
+            @Override
+            public long skip(final long n) {
+                final long skip = Math.max(0L, Math.min(n, remaining()));
+                offset += skip;
+                return skip;
+            }
+            
+            @Override
+            public int available() = (int) Math.min(Integer.MAX_VALUE, remaining());
+            
+            @Override
+            public void mark(final int limit) = marked = offset;
+            
+            @Override
+            public void reset() = offset = marked;
+            
+            @Override
+            public boolean markSupported() = true;
+            
+            // The limited view reads through this buffer, so both offsets keep advancing as in the stream based variant.
+            @Override
+            public Limited limit(final long limit) = { this, limit };
+            
+            // Reads start at the current position of the buffer, the position itself is left untouched.
+            public static OfBuffer of(final ByteBuffer buffer) = { MemorySegment.ofBuffer(buffer) };
+            
+        }
+        
         private final InputStream input;
         
         @Default
@@ -162,6 +318,23 @@ public interface Deserializable {
             return value;
         }
         
+        protected <A> A readArray(final A array, final ValueLayout layout, final int length) throws IOException {
+            MemorySegment.copy(MemorySegment.ofArray(readFully(Math.toIntExact(length * layout.byteSize()))), layout, 0L, array, 0, length);
+            return array;
+        }
+        
+        public short[] readShortArrayLittleEndian(final short array[]) throws IOException = readArray(array, LE_SHORT, array.length);
+        
+        public char[] readCharArrayLittleEndian(final char array[]) throws IOException = readArray(array, LE_CHAR, array.length);
+        
+        public int[] readIntArrayLittleEndian(final int array[]) throws IOException = readArray(array, LE_INT, array.length);
+        
+        public long[] readLongArrayLittleEndian(final long array[]) throws IOException = readArray(array, LE_LONG, array.length);
+        
+        public float[] readFloatArrayLittleEndian(final float array[]) throws IOException = readArray(array, LE_FLOAT, array.length);
+        
+        public double[] readDoubleArrayLittleEndian(final double array[]) throws IOException = readArray(array, LE_DOUBLE, array.length);
+        
         public String readUTF() throws IOException {
             final int length = readVarInt();
             final byte buffer[] = new byte[length];
@@ -2,6 +2,9 @@ package amadeus.maho.util.serialization;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
@@ -11,6 +14,8 @@ import amadeus.maho.lang.FieldDefaults;
 import amadeus.maho.lang.Getter;
 import amadeus.maho.lang.RequiredArgsConstructor;
 
+import static amadeus.maho.util.runtime.MemoryHelper.*;
+
 public interface Serializable {
     
     @Getter
@@ -40,6 +45,117 @@ public interface Serializable {
             
         }
         
+        // Writes straight into a heap or native segment, the offset doubles as the write position.
+        // A fixed segment throws OverflowException when full, a growable one (see ofHeap) is reallocated on demand.
+        public static class OfBuffer extends Output {
+            
+            @Getter
+            private MemorySegment segment;
+            
+            private final boolean growable;
+            
+            public OfBuffer(final MemorySegment segment, final boolean growable = false) {
+                super(OutputStream.nullOutputStream());
+                this.segment = segment;
+                this.growable = growable;
+            }
+            
+            // Returns the position to write at and advances the offset by size.
+            protected long ensure(final long size) throws IOException {
+                final long position = offset, required = position + size;
+                if (required > segment.byteSize()) {
+                    if (!growable || required > Integer.MAX_VALUE - 8)
+                        throw new OverflowException();
+                    final MemorySegment grown = MemorySegment.ofArray(new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, segment.byteSize() << 1))]);
+                    grown.copyFrom(segment.asSlice(0L, position));
+                    segment = grown;
+                }
+                offset = required;
+                return position;
+            }
+            
+            @Override
+            public void write(final int b) throws IOException = segment.set(ValueLayout.JAVA_BYTE, ensure(1L), (byte) b);
+            
+            @Override
+            public void write(final byte buffer[], final int at, final int length) throws IOException {
+                Objects.checkFromIndexSize(at, length, buffer.length);
+                MemorySegment.copy(buffer, at, segment, ValueLayout.JAVA_BYTE, ensure(length), length);
+            }
+            
+            @Override
+            public void writeShortLittleEndian(final short value) throws IOException = segment.set(LE_SHORT, ensure(Short.BYTES), value);
+            
+            @Override
+            public void writeShortBigEndian(final short value) throws IOException = segment.set(BE_SHORT, ensure(Short.BYTES), value);
+            
+            @Override
+            public void writeIntLittleEndian(final int value) throws IOException = segment.set(LE_INT, ensure(Integer.BYTES), value);
+            
+            @Override
+            public void writeIntBigEndian(final int value) throws IOException = segment.set(BE_INT, ensure(Integer.BYTES), value);
+            
+            @Override
+            public void writeLongLittleEndian(final long value) throws IOException = segment.set(LE_LONG, ensure(Long.BYTES), value);
+            
+            @Override
+            public void writeLongBigEndian(final long value) throws IOException = segment.set(BE_LONG, ensure(Long.BYTES), value);
+            
+            @Override
+            public void writeFloatLittleEndian(final float value) throws IOException = segment.set(LE_FLOAT, ensure(Float.BYTES), value);
+            
+            @Override
+            public void writeFloatBigEndian(final float value) throws IOException = segment.set(BE_FLOAT, ensure(Float.BYTES), value);
+            
+            @Override
+            public void writeDoubleLittleEndian(final double value) throws IOException = segment.set(LE_DOUBLE, ensure(Double.BYTES), value);
+            
+            @Override
+            public void writeDoubleBigEndian(final double value) throws IOException = segment.set(BE_DOUBLE, ensure(Double.BYTES), value);
+            
+            @Override
+            public void writeVarInt(final int value) throws IOException {
+                long position = ensure(Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 6) / 7));
+                int b = value;
+                while ((b & 0xFFFFFF80) != 0) {
+                    segment.set(ValueLayout.JAVA_BYTE, position++, (byte) (b & 0x7F | 0x80));
+                    b >>>= 7;
+                }
+                segment.set(ValueLayout.JAVA_BYTE, position, (byte) b);
+            }
+            
+            @Override
+            public void writeVarLong(final long value) throws IOException {
+                long position = ensure(Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7));
+                long b = value;
+                while ((b & 0xFFFFFFFFFFFFFF80L) != 0) {
+                    segment.set(ValueLayout.JAVA_BYTE, position++, (byte) (b & 0x7F | 0x80));
+                    b >>>= 7;
+                }
+                segment.set(ValueLayout.JAVA_BYTE, position, (byte) b);
+            }
+            
+            @Override
+            protected void writeArray(final Object array, final ValueLayout layout, final int length) throws IOException = MemorySegment.copy(array, 0, segment, layout, ensure(length * layout.byteSize()), length);
+            
+            // The limited view writes through this buffer, so both offsets keep advancing as in the stream based variant.
+            @Override
+            public Limited limit(final long limit) = { this, limit };
+            
+            public MemorySegment written() = segment.asSlice(0L, offset);
+            
+            // Rewinds to the start, the (possibly grown) segment is kept for reuse.
+            public void reset() = offset = 0L;
+            
+            public byte[] toByteArray() = written().toArray(ValueLayout.JAVA_BYTE);
+            
+            public static OfBuffer ofHeap(final int initialCapacity = 256) = { MemorySegment.ofArray(new byte[initialCapacity]), true };
+            
+            // Writes start at the current position of the buffer, the position itself is left untouched.
+            public static OfBuffer of(final ByteBuffer buffer) = { MemorySegment.ofBuffer(buffer) };
+            
+        }
+        
         private final OutputStream output;
         
         @Default
@@ -137,6 +253,24 @@ public interface Serializable {
             write((int) (b & 0x7F));
         }
         
+        protected void writeArray(final Object array, final ValueLayout layout, final int length) throws IOException {
+            final byte buffer[] = new byte[Math.toIntExact(length * layout.byteSize())];
+            MemorySegment.copy(array, 0, MemorySegment.ofArray(buffer), layout, 0L, length);
+            write(buffer);
+        }
+        
+        public void writeShortArrayLittleEndian(final short array[]) throws IOException = writeArray(array, LE_SHORT, array.length);
+        
+        public void writeCharArrayLittleEndian(final char array[]) throws IOException = writeArray(array, LE_CHAR, array.length);
+        
+        public void writeIntArrayLittleEndian(final int array[]) throws IOException = writeArray(array, LE_INT, array.length);
+        
+        public void writeLongArrayLittleEndian(final long array[]) throws IOException = writeArray(array, LE_LONG, array.length);
+        
+        public void writeFloatArrayLittleEndian(final float array[]) throws IOException = writeArray(array, LE_FLOAT, array.length);
+        
+        public void writeDoubleArrayLittleEndian(final double array[]) throws IOException = writeArray(array, LE_DOUBLE, array.length);
+        
         public void writeUTF(final String value) throws IOException {
             final byte buffer[] = value.getBytes(StandardCharsets.UTF_8);
             writeVarInt(buffer.length);
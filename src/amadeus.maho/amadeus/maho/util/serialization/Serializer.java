@@ -28,6 +28,10 @@ import java.util.Set;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Method;
 
 import amadeus.maho.core.MahoExport;
 import amadeus.maho.lang.AccessLevel;
@@ -45,7 +49,9 @@ import amadeus.maho.lang.ToString;
 import amadeus.maho.lang.inspection.Nullable;
 import amadeus.maho.util.annotation.mark.HiddenDanger;
 import amadeus.maho.util.container.Indexed;
+import amadeus.maho.util.bytecode.generator.MethodGenerator;
 import amadeus.maho.util.dynamic.ClassLocal;
+import amadeus.maho.util.dynamic.DynamicMethod;
 import amadeus.maho.util.runtime.ArrayHelper;
 import amadeus.maho.util.runtime.DebugHelper;
 import amadeus.maho.util.runtime.MethodHandleHelper;
@@ -278,26 +284,15 @@ public interface Serializer<T> {
                             input.readFully(array);
                             yield array;
                         }
-                        case "short"   -> {
-                            final short array[] = new short[length];
-                            for (int i = 0; i < length; i++)
-                                array[i] = input.readShortLittleEndian();
-                            yield array;
-                        }
-                        case "char"    -> {
-                            final char array[] = new char[length];
-                            for (int i = 0; i < length; i++)
-                                array[i] = input.readCharLittleEndian();
-                            yield array;
-                        }
+                        case "short"   -> { yield input.readShortArrayLittleEndian(new short[length]); }
+                        case "char"    -> { yield input.readCharArrayLittleEndian(new char[length]); }
                         case "int"     -> {
                             final int array[] = new int[length];
                             if (useVarInteger())
                                 for (int i = 0; i < length; i++)
                                     array[i] = input.readVarInt();
                             else
-                                for (int i = 0; i < length; i++)
-                                    array[i] = input.readIntLittleEndian();
+                                input.readIntArrayLittleEndian(array);
                             yield array;
                         }
                         case "long"    -> {
@@ -306,22 +301,11 @@ public interface Serializer<T> {
                                 for (int i = 0; i < length; i++)
                                     array[i] = input.readVarLong();
                             else
-                                for (int i = 0; i < length; i++)
-                                    array[i] = input.readLongLittleEndian();
-                            yield array;
-                        }
-                        case "float"   -> {
-                            final float array[] = new float[length];
-                            for (int i = 0; i < length; i++)
-                                array[i] = input.readFloatLittleEndian();
-                            yield array;
-                        }
-                        case "double"  -> {
-                            final double array[] = new double[length];
-                            for (int i = 0; i < length; i++)
-                                array[i] = input.readDoubleLittleEndian();
+                                input.readLongArrayLittleEndian(array);
                             yield array;
                         }
+                        case "float"   -> { yield input.readFloatArrayLittleEndian(new float[length]); }
+                        case "double"  -> { yield input.readDoubleArrayLittleEndian(new double[length]); }
                         default        -> throw new UnsupportedOperationException(elementType.getName());
                     }
                 } else {
@@ -422,15 +406,13 @@ public interface Serializer<T> {
                 output.write(ARRAY);
                 context.serialization(output, short.class);
                 output.writeVarInt(array.length);
-                for (final short element : array)
-                    output.writeShortLittleEndian(element);
+                output.writeShortArrayLittleEndian(array);
             }
             case char[] array       -> {
                 output.write(ARRAY);
                 context.serialization(output, char.class);
                 output.writeVarInt(array.length);
-                for (final char element : array)
-                    output.writeCharLittleEndian(element);
+                output.writeCharArrayLittleEndian(array);
             }
             case int[] array        -> {
                 output.write(ARRAY);
@@ -440,8 +422,7 @@ public interface Serializer<T> {
                     for (final int element : array)
                         output.writeVarInt(element);
                 else
-                    for (final int element : array)
-                        output.writeIntLittleEndian(element);
+                    output.writeIntArrayLittleEndian(array);
             }
             case long[] array       -> {
                 output.write(ARRAY);
@@ -451,22 +432,19 @@ public interface Serializer<T> {
                     for (final long element : array)
                         output.writeVarLong(element);
                 else
-                    for (final long element : array)
-                        output.writeLongLittleEndian(element);
+                    output.writeLongArrayLittleEndian(array);
             }
             case float[] array      -> {
                 output.write(ARRAY);
                 context.serialization(output, float.class);
                 output.writeVarInt(array.length);
-                for (final float element : array)
-                    output.writeFloatLittleEndian(element);
+                output.writeFloatArrayLittleEndian(array);
             }
             case double[] array     -> {
                 output.write(ARRAY);
                 context.serialization(output, double.class);
                 output.writeVarInt(array.length);
-                for (final double element : array)
-                    output.writeDoubleLittleEndian(element);
+                output.writeDoubleArrayLittleEndian(array);
             }
             case Object[] array     -> {
                 output.write(ARRAY);
@@ -769,6 +747,149 @@ public interface Serializer<T> {
         
     }
     
+    // Positional alternative to the RECORD branch of Base: one class is generated per record type, components are written in declaration order without names,
+    // primitives go straight to the stream and references are delegated back to the context, so both ends must share the same record shape.
+    @RequiredArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    class Generated extends Chain {
+        
+        @FunctionalInterface
+        public interface Writer {
+            
+            void write(Serializable.Output output, Context context, Object instance) throws IOException;
+            
+        }
+        
+        @FunctionalInterface
+        public interface Reader {
+            
+            Object read(Deserializable.Input input, Context context) throws IOException;
+            
+        }
+        
+        public static final int
+                NEXT          = 0,
+                RECORD        = 1,
+                BINARY_MAPPER = 2;
+        
+        private static final Type
+                TYPE_OUTPUT  = Type.getType(Serializable.Output.class),
+                TYPE_INPUT   = Type.getType(Deserializable.Input.class),
+                TYPE_CONTEXT = Type.getType(Context.class);
+        
+        @Getter
+        @Default
+        boolean useVarInteger = true;
+        
+        @Default
+        @Nullable
+        Predicate<Class<?>> filter = null;
+        
+        ClassLocal<Writer> writers = { this::generateWriter };
+        
+        ClassLocal<Reader> readers = { this::generateReader };
+        
+        @Override
+        public @Nullable Object deserialization(final Deserializable.Input input, final Context context) throws IOException = switch (input.readByteUnsigned()) {
+            case NEXT          -> super.deserialization(input, context);
+            case RECORD        -> readers[(Class<?>) requireNonNull(context.deserialization(input))].read(input, context);
+            case BINARY_MAPPER -> context.<BinaryMapper>instantiation(((Class<?>) requireNonNull(context.deserialization(input))).asSubclass(BinaryMapper.class)).deserialization(input);
+            default            -> throw DebugHelper.breakpointBeforeThrow(new UnsupportedOperationException());
+        };
+        
+        @Override
+        public void serialization(final Serializable.Output output, final Context context, final @Nullable Object instance) throws IOException {
+            switch (instance) {
+                case Record record when accept(record.getClass())       -> {
+                    output.write(RECORD);
+                    context.serialization(output, record.getClass());
+                    writers[record.getClass()].write(output, context, record);
+                }
+                case BinaryMapper mapper when accept(mapper.getClass()) -> {
+                    output.write(BINARY_MAPPER);
+                    context.serialization(output, mapper.getClass());
+                    mapper.serialization(output);
+                }
+                case null, default                                      -> {
+                    output.write(NEXT);
+                    super.serialization(output, context, instance);
+                }
+            }
+        }
+        
+        protected boolean accept(final Class<?> type) = filter == null || filter.test(type);
+        
+        // Same encodings as Base uses for the boxed values, minus the type tag.
+        protected String primitiveSuffix(final Class<?> type) = switch (type.getName()) {
+            case "boolean" -> "Boolean";
+            case "byte"    -> "Byte";
+            case "short"   -> "ShortLittleEndian";
+            case "char"    -> "CharLittleEndian";
+            case "int"     -> useVarInteger() ? "VarInt" : "IntLittleEndian";
+            case "long"    -> useVarInteger() ? "VarLong" : "LongLittleEndian";
+            case "float"   -> "FloatLittleEndian";
+            case "double"  -> "DoubleLittleEndian";
+            default        -> throw DebugHelper.breakpointBeforeThrow(new UnsupportedOperationException(type.getName()));
+        };
+        
+        protected Writer generateWriter(final Class<?> recordType) {
+            if (!recordType.isRecord())
+                throw DebugHelper.breakpointBeforeThrow(new UnsupportedOperationException(STR."Not a record: \{recordType}"));
+            final DynamicMethod.Lambda<Writer> lambda = { recordType.getClassLoader(), STR."Serializer.Writer$\{recordType.asDebugName()}", Writer.class };
+            final MethodGenerator generator = lambda.generator();
+            final Type owner = Type.getType(recordType);
+            for (final RecordComponent component : recordType.getRecordComponents()) {
+                final Class<?> componentType = component.getType();
+                if (componentType.isPrimitive()) {
+                    generator.loadArg(0);
+                    generator.loadArg(2);
+                    generator.checkCast(owner);
+                    generator.invokeVirtual(owner, Method.getMethod(component.getAccessor()));
+                    generator.invokeVirtual(TYPE_OUTPUT, Method.getMethod(Serializable.Output.class.getMethod(STR."write\{primitiveSuffix(componentType)}", componentType)));
+                } else {
+                    generator.loadArg(1);
+                    generator.loadArg(0);
+                    generator.loadArg(2);
+                    generator.checkCast(owner);
+                    generator.invokeVirtual(owner, Method.getMethod(component.getAccessor()));
+                    generator.invokeInterface(TYPE_CONTEXT, Method.getMethod(Context.class.getMethod("serialization", Serializable.Output.class, Object.class)));
+                }
+            }
+            generator.returnValue();
+            generator.endMethod();
+            return lambda.allocateInstance();
+        }
+        
+        protected Reader generateReader(final Class<?> recordType) {
+            if (!recordType.isRecord())
+                throw DebugHelper.breakpointBeforeThrow(new UnsupportedOperationException(STR."Not a record: \{recordType}"));
+            final RecordComponent components[] = recordType.getRecordComponents();
+            final Constructor<?> constructor = recordType.getDeclaredConstructor(Stream.of(components).map(RecordComponent::getType).toArray(Class[]::new));
+            final DynamicMethod.Lambda<Reader> lambda = { recordType.getClassLoader(), STR."Serializer.Reader$\{recordType.asDebugName()}", Reader.class };
+            final MethodGenerator generator = lambda.generator();
+            final Type owner = Type.getType(recordType);
+            generator.newInstance(owner);
+            generator.dup();
+            for (final RecordComponent component : components) {
+                final Class<?> componentType = component.getType();
+                if (componentType.isPrimitive()) {
+                    generator.loadArg(0);
+                    generator.invokeVirtual(TYPE_INPUT, Method.getMethod(Deserializable.Input.class.getMethod(STR."read\{primitiveSuffix(componentType)}")));
+                } else {
+                    generator.loadArg(1);
+                    generator.loadArg(0);
+                    generator.invokeInterface(TYPE_CONTEXT, Method.getMethod(Context.class.getMethod("deserialization", Deserializable.Input.class)));
+                    generator.checkCast(Type.getType(componentType));
+                }
+            }
+            generator.invokeTarget(constructor);
+            generator.returnValue();
+            generator.endMethod();
+            return lambda.allocateInstance();
+        }
+        
+    }
+    
     @Deprecated
     @HiddenDanger("RCE(Remote Code Execution) vulnerability")
     @RequiredArgsConstructor
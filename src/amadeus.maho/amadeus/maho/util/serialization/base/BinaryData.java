@@ -12,27 +12,34 @@ import amadeus.maho.util.reference.Reference;
 import amadeus.maho.util.serialization.BinaryMapper;
 
 @Getter
-@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@FieldDefaults(level = AccessLevel.PRIVATE)
 public class BinaryData implements BinaryMapper {
     
+    final long size;
+    
     @Nullable MemorySegment segment;
     
-    int bufferSize;
+    final int bufferSize;
     
     public BinaryData(final long size, final int bufferSize = 1 << 14) {
         assert size > -1;
-        if (size < 1) {
-            segment = null;
-            this.bufferSize = 0;
-        } else {
+        this.size = size;
+        this.bufferSize = size < 1 ? 0 : size < bufferSize ? (int) size : bufferSize;
+    }
+    
+    // Allocated on first use, reading from a segment backed input replaces it with a view of the source instead.
+    public @Nullable MemorySegment segment() {
+        if (segment == null && size > 0)
             segment = Reference.Cleaner.arena().allocate(size);
-            this.bufferSize = size < bufferSize ? (int) size : bufferSize;
-        }
+        return segment;
     }
     
     @Override
     public void read(final Input input) throws IOException {
-        if (segment != null) {
+        if (size > 0 && input instanceof Input.OfBuffer buffer)
+            segment = buffer.readSlice(size);
+        else if (segment() != null) {
+            final MemorySegment segment = segment();
             final byte buffer[] = new byte[bufferSize];
             final MemorySegment bufferSegment = MemorySegment.ofArray(buffer);
             final long size = segment.byteSize();
@@ -49,6 +56,7 @@ public class BinaryData implements BinaryMapper {
     
     @Override
     public void write(final Output output) throws IOException {
+        final @Nullable MemorySegment segment = segment();
         if (segment != null) {
             final byte buffer[] = new byte[bufferSize];
             final MemorySegment bufferSegment = MemorySegment.ofArray(buffer);
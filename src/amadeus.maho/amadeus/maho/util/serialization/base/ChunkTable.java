@@ -1,10 +1,12 @@
 package amadeus.maho.util.serialization.base;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.foreign.MemorySegment;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -12,6 +14,7 @@ import java.util.Map;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
 import org.objectweb.asm.Label;
@@ -155,6 +158,16 @@ public class ChunkTable<H extends BinaryMapper, V extends BinaryMapper> implemen
             return header.eofMark() ? null : header;
         }, endChecker, mapper);
         
+        @SneakyThrows
+        public static <H extends BinaryMapper & AutomaticMapperType> Mapped<H, H> mapped(final Class<? extends H> outerType, final MemorySegment segment,
+                final ToLongFunction<? super H> sizeOf, final BiPredicate<? super Input, ? super H> endChecker = defaultEndChecker()) {
+            final Supplier<H> supplier = TypeHelper.noArgConstructor((Class<H>) cloneBaseType(outerType));
+            return { segment, input -> {
+                final H header = supplier.get().deserialization(input);
+                return header.eofMark() ? null : header;
+            }, (Function<? super H, ? extends H>) mapperLocal()[outerType], sizeOf, endChecker };
+        }
+        
         public static <T> Class<? super T> cloneBaseType(final Class<T> subType) = LinkedIterator.<Class<? super T>>of(Class::getSuperclass, subType).stream(true)
                 .filter(clazz -> clazz != Object.class)
                 .filter(clazz -> clazz.isAnnotationPresent(CloneBase.class))
@@ -163,6 +176,87 @@ public class ChunkTable<H extends BinaryMapper, V extends BinaryMapper> implemen
     
     }
     
+    // Random access view over a mapped (or otherwise in-memory) file: only the chunk headers are read up front, bodies are decoded on first access.
+    // Bodies are read from the whole segment at their absolute offset, so offsets seen by the mappers and zero-copy slices (see BinaryData) behave as in a streamed read.
+    // The size of a body has to be known from its header alone, the format decides where it lives, so sizeOf is given by the caller.
+    // The end checker is only consulted for EndMark chunks, those are decoded while indexing.
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public static class Mapped<H extends BinaryMapper, V extends BinaryMapper> {
+        
+        @FieldDefaults(level = AccessLevel.PRIVATE)
+        public final class Chunk {
+            
+            @Getter
+            final H header;
+            
+            @Getter
+            final long offset, size;
+            
+            final V instance;
+            
+            volatile boolean decoded;
+            
+            private Chunk(final H header, final V instance, final long offset, final long size) {
+                this.header = header;
+                this.instance = instance;
+                this.offset = offset;
+                this.size = size;
+            }
+            
+            public Class<? extends BinaryMapper> type() = instance.getClass();
+            
+            @SneakyThrows
+            public V value() {
+                if (!decoded)
+                    synchronized (this) {
+                        if (!decoded) {
+                            final Input.OfBuffer input = { segment };
+                            input.skip(offset);
+                            instance.deserialization(input);
+                            if (input.offset() != offset + size)
+                                throw new IOException(STR."Chunk at \{offset} declares \{size} bytes but \{input.offset() - offset} were read");
+                            decoded = true;
+                        }
+                    }
+                return instance;
+            }
+            
+        }
+        
+        MemorySegment segment;
+        
+        ArrayList<Chunk> chunks = { };
+        
+        @SneakyThrows
+        public Mapped(final MemorySegment segment, final Function<? super Input, ? extends H> reader, final Function<? super H, ? extends V> mapper,
+                final ToLongFunction<? super H> sizeOf, final BiPredicate<? super Input, ? super V> endChecker = defaultEndChecker()) {
+            this.segment = segment;
+            final Input.OfBuffer input = { segment };
+            @Nullable H header;
+            @Nullable V value;
+            while (input.remaining() > 0 && (header = reader.apply(input)) != null && (value = mapper.apply(header)) != null) {
+                final long offset = input.offset(), size = sizeOf.applyAsLong(header);
+                if (size < 0 || size > input.remaining())
+                    throw new EOFException(STR."Chunk at \{offset} declares \{size} bytes, \{input.remaining()} remaining");
+                final Chunk chunk = { header, value, offset, size };
+                chunks += chunk;
+                input.skip(size);
+                if (value instanceof EndMark && endChecker.test(input, chunk.value()))
+                    break;
+            }
+        }
+        
+        public int size() = chunks.size();
+        
+        public Chunk chunk(final int index) = chunks[index];
+        
+        // Filters on the mapped type before decoding, so only the matching chunks are read.
+        @Extension.Operator("GET")
+        public <T extends V> Stream<T> lookup(final Class<T> type) = chunks.stream().filter(chunk -> type.isAssignableFrom(chunk.type())).map(Chunk::value).cast(type);
+        
+    }
+    
     Function<? super Input, ? extends H> reader;
     
     BiPredicate<? super Input, ? super V> endChecker;